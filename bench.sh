@@ -0,0 +1,14 @@
+#!/bin/sh
+
+PATH_ROOT=.
+PATH_SRC=$PATH_ROOT/src
+PATH_BENCH=$PATH_ROOT/bench
+PATH_BIN=$PATH_ROOT/bin
+PATH_INT=$PATH_BIN/bench
+FILE_RESULTS=$PATH_BIN/bench.json
+
+# Builds the program along with the benchmark suite and runs it, writing the
+# results to $FILE_RESULTS.  Any arguments are passed on to the suite, so
+# './bench.sh Cryptor' only runs the cryptor benchmarks.
+javac $PATH_SRC/*.java $PATH_BENCH/*.java -d $PATH_INT
+java -cp $PATH_INT Bench $FILE_RESULTS "$@"
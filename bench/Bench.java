@@ -0,0 +1,426 @@
+// Benchmark suite for the hashers, cryptors, cryptor sessions, header codec and
+// the full program.  This is a small stand-in for JMH, since the project
+// doesn't have a build system which can pull in dependencies: every benchmark
+// is warmed up, then timed over several fixed-length iterations, and the
+// results are written out as JSON so runs can be compared against each other.
+//
+// Usage: java Bench [results file] [filter]
+//
+// If a results file is given, the JSON is written there instead of standard
+// output.  If a filter is given, only benchmarks whose names contain it are
+// run.
+public class Bench {
+   // How long to spend warming up and measuring each benchmark.
+   private static final long WARMUP_NANOS       = 2_000_000_000L;
+   private static final long ITERATION_NANOS    = 1_000_000_000L;
+   private static final int  ITERATIONS         = 5;
+
+   // Message sizes used for the hasher benchmarks.
+   private static final long [] HASH_SIZES = {
+      0L,
+      64L,
+      1024L,
+      64L * 1024L,
+      1024L * 1024L,
+      64L * 1024L * 1024L,
+      1024L * 1024L * 1024L,
+   };
+
+   // Message sizes used for the session benchmarks.
+   private static final int [] SESSION_SIZES = {
+      64,
+      1024,
+      16 * 1024,
+   };
+
+   // Size of the data used for the cryptor and pipeline benchmarks.
+   private static final int CRYPTOR_SIZE  = 16 * 1024 * 1024;
+   private static final int PIPELINE_SIZE = 64 * 1024 * 1024;
+
+   // A single timed operation.  Java doesn't do function pointers, so we use
+   // anonymous classes.
+   private static interface Operation {
+      public void run() throws java.lang.Exception;
+   }
+
+   // Results of a single benchmark.
+   private static class Result {
+      public String                                benchmark;
+      public java.util.LinkedHashMap<String, String> params;
+      public long                                  bytes_per_op;
+      public long                                  ops;
+      public double                                ns_per_op;
+      public double                                ns_per_op_error;
+   }
+
+   private final String filter;
+   private final java.util.ArrayList<Result> results;
+
+   // Results are folded into this so the JIT can't throw away the work.
+   private static volatile long sink;
+
+   private Bench(String filter) {
+      this.filter = filter;
+      this.results = new java.util.ArrayList<Result>();
+      return;
+   }
+
+   public static void main(String [] args) throws java.lang.Exception {
+      String path_results = args.length > 0 ? args[0] : null;
+      String filter = args.length > 1 ? args[1] : null;
+
+      Bench bench = new Bench(filter);
+      bench.benchHasher();
+      bench.benchCryptors();
+      bench.benchSessions();
+      bench.benchHeader();
+      bench.benchKdf();
+      bench.benchPipeline();
+
+      String json = bench.toJson();
+      if (path_results == null) {
+         System.out.println(json);
+      } else {
+         java.nio.file.Files.write(java.nio.file.Paths.get(path_results), json.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+      }
+
+      return;
+   }
+
+   // --- Benchmarks -----------------------------------------------------------
+
+   private void benchHasher() throws java.lang.Exception {
+      // Large messages are fed through a reusable buffer so the 1 GiB case
+      // doesn't need 1 GiB of heap.  Small messages go through 'digest', which
+      // is what callers hashing whole arrays will use.
+      final int BUFFER_SIZE = 1024 * 1024;
+      final byte [] buffer = randomBytes(BUFFER_SIZE);
+      final Hasher.Sha512 hasher = new Hasher.Sha512();
+
+      for (final long size : HASH_SIZES) {
+         Operation operation;
+         if (size <= BUFFER_SIZE) {
+            final byte [] message = java.util.Arrays.copyOf(buffer, (int)size);
+            operation = new Operation() {
+               public void run() {
+                  sink += hasher.digest(message)[0];
+                  return;
+               }
+            };
+         } else {
+            operation = new Operation() {
+               public void run() {
+                  for (long remaining = size; remaining > 0; remaining -= BUFFER_SIZE) {
+                     hasher.update(buffer, 0, (int)Math.min(BUFFER_SIZE, remaining));
+                  }
+                  sink += hasher.finish()[0];
+                  return;
+               }
+            };
+         }
+
+         this.run("Hasher.Sha512.digest", params("size", Long.toString(size)), size, operation);
+      }
+
+      return;
+   }
+
+   private void benchCryptors() throws java.lang.Exception {
+      final byte [] plaintext = randomBytes(CRYPTOR_SIZE);
+      final byte [] secrets = randomBytes(Hasher.Sha512.DIGEST_SIZE);
+
+      for (Cryptor.Algorithm algorithm : Cryptor.Algorithm.values()) {
+         final Cryptor cryptor = algorithm.cryptor();
+
+         java.io.ByteArrayOutputStream ciphertext_stream = new java.io.ByteArrayOutputStream();
+         cryptor.encrypt(new java.io.ByteArrayInputStream(plaintext), ciphertext_stream, secrets);
+         final byte [] ciphertext = ciphertext_stream.toByteArray();
+
+         this.run("Cryptor.encrypt", params("algorithm", algorithm.name()), plaintext.length, new Operation() {
+            public void run() throws java.lang.Exception {
+               cryptor.encrypt(new java.io.ByteArrayInputStream(plaintext), java.io.OutputStream.nullOutputStream(), secrets);
+               return;
+            }
+         });
+
+         this.run("Cryptor.decrypt", params("algorithm", algorithm.name()), plaintext.length, new Operation() {
+            public void run() throws java.lang.Exception {
+               cryptor.decrypt(new java.io.ByteArrayInputStream(ciphertext), java.io.OutputStream.nullOutputStream(), secrets);
+               return;
+            }
+         });
+      }
+
+      return;
+   }
+
+   // Many small messages encrypted with the same key, which is where setting
+   // the key up once pays off.
+   private void benchSessions() throws java.lang.Exception {
+      final byte [] secrets = randomBytes(Hasher.Sha512.DIGEST_SIZE);
+
+      for (Cryptor.Algorithm algorithm : Cryptor.Algorithm.values()) {
+         final Cryptor.Session session = algorithm.cryptor().session(secrets);
+
+         for (int size : SESSION_SIZES) {
+            final java.nio.ByteBuffer plaintext = java.nio.ByteBuffer.allocateDirect(size);
+            plaintext.put(randomBytes(size)).flip();
+            final java.nio.ByteBuffer ciphertext = java.nio.ByteBuffer.allocateDirect(session.encryptedLength(size));
+            final java.nio.ByteBuffer decrypted = java.nio.ByteBuffer.allocateDirect(size);
+
+            this.run("Session.encrypt", params("algorithm", algorithm.name(), "size", Integer.toString(size)), size, new Operation() {
+               public void run() throws java.lang.Exception {
+                  plaintext.rewind();
+                  ciphertext.clear();
+                  session.encrypt(plaintext, ciphertext);
+                  return;
+               }
+            });
+
+            this.run("Session.decrypt", params("algorithm", algorithm.name(), "size", Integer.toString(size)), size, new Operation() {
+               public void run() throws java.lang.Exception {
+                  ciphertext.rewind();
+                  decrypted.clear();
+                  session.decrypt(ciphertext, decrypted);
+                  return;
+               }
+            });
+         }
+      }
+
+      return;
+   }
+
+   private void benchHeader() throws java.lang.Exception {
+      Header [] headers = new Header [] {
+         new Header(Cryptor.Algorithm.AES256, new byte [Header.HASH_LENGTH], false),
+         new Header(Cryptor.Algorithm.AES256, new byte [Header.HASH_LENGTH], false, new byte [Kdf.SALT_LENGTH], Kdf.DEFAULT_ITERATIONS),
+      };
+
+      for (final Header header : headers) {
+         final java.io.ByteArrayOutputStream output = new java.io.ByteArrayOutputStream();
+
+         header.serialize(output);
+         final java.io.ByteArrayInputStream input = new java.io.ByteArrayInputStream(output.toByteArray());
+
+         this.run("Header.serialize", params("version", Integer.toString(header.version)), 0, new Operation() {
+            public void run() throws java.lang.Exception {
+               output.reset();
+               header.serialize(output);
+               return;
+            }
+         });
+
+         this.run("Header.deserialize", params("version", Integer.toString(header.version)), 0, new Operation() {
+            public void run() throws java.lang.Exception {
+               input.reset();
+               sink += Header.deserialize(input).hash[0];
+               return;
+            }
+         });
+      }
+
+      return;
+   }
+
+   private void benchKdf() throws java.lang.Exception {
+      final byte [] password = "benchmark".getBytes(java.nio.charset.StandardCharsets.UTF_8);
+      final byte [] salt = new byte [Kdf.SALT_LENGTH];
+
+      for (final int iterations : new int [] {1_000, Kdf.DEFAULT_ITERATIONS}) {
+         this.run("Kdf.pbkdf2", params("iterations", Integer.toString(iterations)), 0, new Operation() {
+            public void run() throws java.lang.Exception {
+               sink += Kdf.pbkdf2(password, salt, iterations, Kdf.KEY_LENGTH)[0];
+               return;
+            }
+         });
+      }
+
+      this.run("Kdf.derive", params("cached", "true"), 0, new Operation() {
+         public void run() throws java.lang.Exception {
+            sink += Kdf.derive("benchmark", salt, Kdf.DEFAULT_ITERATIONS)[0];
+            return;
+         }
+      });
+
+      return;
+   }
+
+   private void benchPipeline() throws java.lang.Exception {
+      java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("encrypt-bench");
+      final String path_plain = directory.resolve("plain").toString();
+      final String path_encrypted = directory.resolve("encrypted").toString();
+      final String path_decrypted = directory.resolve("decrypted").toString();
+      final String path_secrets = directory.resolve("secrets").toString();
+
+      java.nio.file.Files.write(java.nio.file.Paths.get(path_plain), randomBytes(PIPELINE_SIZE));
+      java.nio.file.Files.write(java.nio.file.Paths.get(path_secrets), "benchmark".getBytes());
+
+      try {
+         for (Cryptor.Algorithm algorithm : Cryptor.Algorithm.values()) {
+            final String name = Arguments.algorithmName(algorithm);
+
+            for (boolean nio : new boolean [] {false, true}) {
+               // Every encrypted file gets a new salt, so key derivation is
+               // kept cheap here to leave the data path as the thing measured.
+               // Kdf has its own benchmarks.
+               final String [] args_encrypt = pipelineArgs(nio, "--input=" + path_plain, "--output=" + path_encrypted, "--secrets=" + path_secrets, "--algorithm=" + name, "--kdf-iterations=1");
+               final String [] args_decrypt = pipelineArgs(nio, "--input=" + path_encrypted, "--output=" + path_decrypted, "--secrets=" + path_secrets, "--mode=decrypt");
+
+               this.run("Main.encrypt", params("algorithm", algorithm.name(), "nio", Boolean.toString(nio)), PIPELINE_SIZE, new Operation() {
+                  public void run() throws java.lang.Exception {
+                     Main.main(args_encrypt);
+                     return;
+                  }
+               });
+
+               // The encrypt benchmark may have been filtered out, so make sure
+               // there's something to decrypt.
+               if (this.selected("Main.decrypt")) {
+                  Main.main(args_encrypt);
+               }
+
+               this.run("Main.decrypt", params("algorithm", algorithm.name(), "nio", Boolean.toString(nio)), PIPELINE_SIZE, new Operation() {
+                  public void run() throws java.lang.Exception {
+                     Main.main(args_decrypt);
+                     return;
+                  }
+               });
+            }
+         }
+      } finally {
+         for (String path : new String [] {path_plain, path_encrypted, path_decrypted, path_secrets}) {
+            java.nio.file.Files.deleteIfExists(java.nio.file.Paths.get(path));
+         }
+         java.nio.file.Files.deleteIfExists(directory);
+      }
+
+      return;
+   }
+
+   // Builds the command-line arguments for a pipeline benchmark.
+   private static String [] pipelineArgs(boolean nio, String ... args) {
+      java.util.ArrayList<String> list = new java.util.ArrayList<String>(java.util.Arrays.asList(args));
+      if (nio) {
+         list.add("--nio");
+      }
+
+      return list.toArray(new String [0]);
+   }
+
+   // --- Harness --------------------------------------------------------------
+
+   // Warms up and measures 'operation', recording the results.  Each
+   // iteration runs the operation as many times as fit in ITERATION_NANOS,
+   // but always at least once.
+   private void run(String benchmark, java.util.LinkedHashMap<String, String> params, long bytes_per_op, Operation operation) throws java.lang.Exception {
+      if (!this.selected(benchmark)) {
+         return;
+      }
+
+      System.err.printf("%s %s%n", benchmark, params);
+
+      measure(operation, WARMUP_NANOS);
+
+      double [] samples = new double [ITERATIONS];
+      long ops_total = 0;
+      for (int i = 0; i < ITERATIONS; ++i) {
+         long [] measured = measure(operation, ITERATION_NANOS);
+         samples[i] = (double)measured[1] / (double)measured[0];
+         ops_total += measured[0];
+      }
+
+      double mean = 0.0;
+      for (double sample : samples) {
+         mean += sample;
+      }
+      mean /= ITERATIONS;
+
+      double variance = 0.0;
+      for (double sample : samples) {
+         variance += (sample - mean) * (sample - mean);
+      }
+      variance /= ITERATIONS - 1;
+
+      Result result = new Result();
+      result.benchmark        = benchmark;
+      result.params           = params;
+      result.bytes_per_op     = bytes_per_op;
+      result.ops              = ops_total;
+      result.ns_per_op        = mean;
+      result.ns_per_op_error  = Math.sqrt(variance);
+      this.results.add(result);
+
+      System.err.printf("   %.1f ns/op%s%n", mean, bytes_per_op > 0 ? String.format(", %.1f MB/s", throughput(result)) : "");
+      return;
+   }
+
+   // Whether 'benchmark' passes the filter.
+   private boolean selected(String benchmark) {
+      return this.filter == null || benchmark.contains(this.filter);
+   }
+
+   // Runs 'operation' until 'duration' nanoseconds have passed.  Returns the
+   // number of operations run and the time they took.
+   private static long [] measure(Operation operation, long duration) throws java.lang.Exception {
+      long ops = 0;
+      long start = System.nanoTime();
+      long elapsed;
+      do {
+         operation.run();
+         ops += 1;
+         elapsed = System.nanoTime() - start;
+      } while (elapsed < duration);
+
+      return new long [] {ops, elapsed};
+   }
+
+   // Throughput in megabytes (10^6 bytes) per second.
+   private static double throughput(Result result) {
+      return (double)result.bytes_per_op / result.ns_per_op * 1000.0;
+   }
+
+   private String toJson() {
+      StringBuilder json = new StringBuilder();
+      json.append("[\n");
+      for (int i = 0; i < this.results.size(); ++i) {
+         Result result = this.results.get(i);
+
+         json.append("   {\n");
+         json.append(String.format("      \"benchmark\": \"%s\",\n", result.benchmark));
+         json.append("      \"params\": {");
+         int param_index = 0;
+         for (java.util.Map.Entry<String, String> param : result.params.entrySet()) {
+            json.append(String.format("%s\"%s\": \"%s\"", param_index++ == 0 ? "" : ", ", param.getKey(), param.getValue()));
+         }
+         json.append("},\n");
+         json.append(String.format("      \"ops\": %d,\n", result.ops));
+         json.append(String.format(java.util.Locale.ROOT, "      \"ns_per_op\": %.3f,\n", result.ns_per_op));
+         json.append(String.format(java.util.Locale.ROOT, "      \"ns_per_op_error\": %.3f,\n", result.ns_per_op_error));
+         if (result.bytes_per_op > 0) {
+            json.append(String.format(java.util.Locale.ROOT, "      \"mb_per_s\": %.3f\n", throughput(result)));
+         } else {
+            json.append("      \"mb_per_s\": null\n");
+         }
+         json.append(i + 1 < this.results.size() ? "   },\n" : "   }\n");
+      }
+      json.append("]\n");
+
+      return json.toString();
+   }
+
+   private static java.util.LinkedHashMap<String, String> params(String ... pairs) {
+      java.util.LinkedHashMap<String, String> params = new java.util.LinkedHashMap<String, String>();
+      for (int i = 0; i < pairs.length; i += 2) {
+         params.put(pairs[i], pairs[i + 1]);
+      }
+
+      return params;
+   }
+
+   private static byte [] randomBytes(int length) {
+      byte [] bytes = new byte [length];
+      new java.util.Random(0x454e43525950544cL).nextBytes(bytes);
+      return bytes;
+   }
+}
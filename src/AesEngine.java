@@ -0,0 +1,337 @@
+// Table-driven AES-256 block cipher.  The key schedule is expanded once when
+// the engine is constructed, after which encrypting or decrypting a 16-byte
+// block doesn't allocate anything, so a single engine can be reused for every
+// block of a file.
+//
+// The state is kept as four big-endian 32-bit column words instead of a 4x4
+// byte matrix.  Each round is then a handful of table lookups and XORs, since
+// the 'T' tables merge SubBytes, ShiftRows and MixColumns for a single byte
+// into one 32-bit word.  See FIPS PUB 197 for how the algorithm works.
+//
+// Processing a block only touches local variables and read-only tables, so a
+// single engine can safely be shared between threads.
+public final class AesEngine {
+   // Size of a single block in bytes.
+   public static final int BLOCK_SIZE = 16;
+
+   // Size of the key in bytes.
+   public static final int KEY_SIZE = 32;
+
+   // Number of rounds for a 256-bit key.
+   private static final int ROUNDS = 14;
+
+   // Number of 32-bit words in the expanded key schedule.
+   private static final int SCHEDULE_LENGTH = 4 * (ROUNDS + 1);
+
+   private final int [] key_encrypt;   // expanded round keys for encryption
+   private final int [] key_decrypt;   // expanded round keys for decryption
+
+   // Expands the 32-byte key in 'key' starting at 'offset'.
+   public AesEngine(byte [] key, int offset) {
+      this.key_encrypt = new int [SCHEDULE_LENGTH];
+      this.key_decrypt = new int [SCHEDULE_LENGTH];
+      expandKeyEncrypt(this.key_encrypt, key, offset);
+      expandKeyDecrypt(this.key_decrypt, this.key_encrypt);
+      return;
+   }
+
+   // Encrypts the 16-byte block in 'input' at 'input_offset' and writes the
+   // result to 'output' at 'output_offset'.  The input and output may overlap.
+   public void encryptBlock(byte [] input, int input_offset, byte [] output, int output_offset) {
+      final int [] k = this.key_encrypt;
+
+      int s0 = readBigEndian32(input, input_offset)      ^ k[0];
+      int s1 = readBigEndian32(input, input_offset + 4)  ^ k[1];
+      int s2 = readBigEndian32(input, input_offset + 8)  ^ k[2];
+      int s3 = readBigEndian32(input, input_offset + 12) ^ k[3];
+
+      int t0, t1, t2, t3;
+      int r = 4;
+      for (int round = 1; round < ROUNDS; ++round) {
+         t0 = TE0[s0 >>> 24] ^ TE1[(s1 >>> 16) & 0xff] ^ TE2[(s2 >>> 8) & 0xff] ^ TE3[s3 & 0xff] ^ k[r];
+         t1 = TE0[s1 >>> 24] ^ TE1[(s2 >>> 16) & 0xff] ^ TE2[(s3 >>> 8) & 0xff] ^ TE3[s0 & 0xff] ^ k[r + 1];
+         t2 = TE0[s2 >>> 24] ^ TE1[(s3 >>> 16) & 0xff] ^ TE2[(s0 >>> 8) & 0xff] ^ TE3[s1 & 0xff] ^ k[r + 2];
+         t3 = TE0[s3 >>> 24] ^ TE1[(s0 >>> 16) & 0xff] ^ TE2[(s1 >>> 8) & 0xff] ^ TE3[s2 & 0xff] ^ k[r + 3];
+         s0 = t0;
+         s1 = t1;
+         s2 = t2;
+         s3 = t3;
+         r += 4;
+      }
+
+      // The last round has no MixColumns, so we go through the plain S-box.
+      t0 = subColumn(s0, s1, s2, s3, SBOX) ^ k[r];
+      t1 = subColumn(s1, s2, s3, s0, SBOX) ^ k[r + 1];
+      t2 = subColumn(s2, s3, s0, s1, SBOX) ^ k[r + 2];
+      t3 = subColumn(s3, s0, s1, s2, SBOX) ^ k[r + 3];
+
+      writeBigEndian32(output, output_offset,      t0);
+      writeBigEndian32(output, output_offset + 4,  t1);
+      writeBigEndian32(output, output_offset + 8,  t2);
+      writeBigEndian32(output, output_offset + 12, t3);
+      return;
+   }
+
+   // Decrypts the 16-byte block in 'input' at 'input_offset' and writes the
+   // result to 'output' at 'output_offset'.  The input and output may overlap.
+   public void decryptBlock(byte [] input, int input_offset, byte [] output, int output_offset) {
+      final int [] k = this.key_decrypt;
+
+      int s0 = readBigEndian32(input, input_offset)      ^ k[0];
+      int s1 = readBigEndian32(input, input_offset + 4)  ^ k[1];
+      int s2 = readBigEndian32(input, input_offset + 8)  ^ k[2];
+      int s3 = readBigEndian32(input, input_offset + 12) ^ k[3];
+
+      // Same as encryption, except the rows are shifted right instead of left.
+      int t0, t1, t2, t3;
+      int r = 4;
+      for (int round = 1; round < ROUNDS; ++round) {
+         t0 = TD0[s0 >>> 24] ^ TD1[(s3 >>> 16) & 0xff] ^ TD2[(s2 >>> 8) & 0xff] ^ TD3[s1 & 0xff] ^ k[r];
+         t1 = TD0[s1 >>> 24] ^ TD1[(s0 >>> 16) & 0xff] ^ TD2[(s3 >>> 8) & 0xff] ^ TD3[s2 & 0xff] ^ k[r + 1];
+         t2 = TD0[s2 >>> 24] ^ TD1[(s1 >>> 16) & 0xff] ^ TD2[(s0 >>> 8) & 0xff] ^ TD3[s3 & 0xff] ^ k[r + 2];
+         t3 = TD0[s3 >>> 24] ^ TD1[(s2 >>> 16) & 0xff] ^ TD2[(s1 >>> 8) & 0xff] ^ TD3[s0 & 0xff] ^ k[r + 3];
+         s0 = t0;
+         s1 = t1;
+         s2 = t2;
+         s3 = t3;
+         r += 4;
+      }
+
+      t0 = subColumn(s0, s3, s2, s1, SBOX_INVERSE) ^ k[r];
+      t1 = subColumn(s1, s0, s3, s2, SBOX_INVERSE) ^ k[r + 1];
+      t2 = subColumn(s2, s1, s0, s3, SBOX_INVERSE) ^ k[r + 2];
+      t3 = subColumn(s3, s2, s1, s0, SBOX_INVERSE) ^ k[r + 3];
+
+      writeBigEndian32(output, output_offset,      t0);
+      writeBigEndian32(output, output_offset + 4,  t1);
+      writeBigEndian32(output, output_offset + 8,  t2);
+      writeBigEndian32(output, output_offset + 12, t3);
+      return;
+   }
+
+   // Same as the array version, but works on heap and direct buffers without
+   // copying through an array.  'input_index' and 'output_index' are absolute
+   // indices, and neither buffer's position or byte order is used or changed.
+   public void encryptBlock(java.nio.ByteBuffer input, int input_index, java.nio.ByteBuffer output, int output_index) {
+      final int [] k = this.key_encrypt;
+
+      int s0 = (int)INT_BIG_ENDIAN_BUFFER.get(input, input_index)      ^ k[0];
+      int s1 = (int)INT_BIG_ENDIAN_BUFFER.get(input, input_index + 4)  ^ k[1];
+      int s2 = (int)INT_BIG_ENDIAN_BUFFER.get(input, input_index + 8)  ^ k[2];
+      int s3 = (int)INT_BIG_ENDIAN_BUFFER.get(input, input_index + 12) ^ k[3];
+
+      int t0, t1, t2, t3;
+      int r = 4;
+      for (int round = 1; round < ROUNDS; ++round) {
+         t0 = TE0[s0 >>> 24] ^ TE1[(s1 >>> 16) & 0xff] ^ TE2[(s2 >>> 8) & 0xff] ^ TE3[s3 & 0xff] ^ k[r];
+         t1 = TE0[s1 >>> 24] ^ TE1[(s2 >>> 16) & 0xff] ^ TE2[(s3 >>> 8) & 0xff] ^ TE3[s0 & 0xff] ^ k[r + 1];
+         t2 = TE0[s2 >>> 24] ^ TE1[(s3 >>> 16) & 0xff] ^ TE2[(s0 >>> 8) & 0xff] ^ TE3[s1 & 0xff] ^ k[r + 2];
+         t3 = TE0[s3 >>> 24] ^ TE1[(s0 >>> 16) & 0xff] ^ TE2[(s1 >>> 8) & 0xff] ^ TE3[s2 & 0xff] ^ k[r + 3];
+         s0 = t0;
+         s1 = t1;
+         s2 = t2;
+         s3 = t3;
+         r += 4;
+      }
+
+      INT_BIG_ENDIAN_BUFFER.set(output, output_index,      subColumn(s0, s1, s2, s3, SBOX) ^ k[r]);
+      INT_BIG_ENDIAN_BUFFER.set(output, output_index + 4,  subColumn(s1, s2, s3, s0, SBOX) ^ k[r + 1]);
+      INT_BIG_ENDIAN_BUFFER.set(output, output_index + 8,  subColumn(s2, s3, s0, s1, SBOX) ^ k[r + 2]);
+      INT_BIG_ENDIAN_BUFFER.set(output, output_index + 12, subColumn(s3, s0, s1, s2, SBOX) ^ k[r + 3]);
+      return;
+   }
+
+   // Same as the array version, but works on heap and direct buffers.  See
+   // above.
+   public void decryptBlock(java.nio.ByteBuffer input, int input_index, java.nio.ByteBuffer output, int output_index) {
+      final int [] k = this.key_decrypt;
+
+      int s0 = (int)INT_BIG_ENDIAN_BUFFER.get(input, input_index)      ^ k[0];
+      int s1 = (int)INT_BIG_ENDIAN_BUFFER.get(input, input_index + 4)  ^ k[1];
+      int s2 = (int)INT_BIG_ENDIAN_BUFFER.get(input, input_index + 8)  ^ k[2];
+      int s3 = (int)INT_BIG_ENDIAN_BUFFER.get(input, input_index + 12) ^ k[3];
+
+      int t0, t1, t2, t3;
+      int r = 4;
+      for (int round = 1; round < ROUNDS; ++round) {
+         t0 = TD0[s0 >>> 24] ^ TD1[(s3 >>> 16) & 0xff] ^ TD2[(s2 >>> 8) & 0xff] ^ TD3[s1 & 0xff] ^ k[r];
+         t1 = TD0[s1 >>> 24] ^ TD1[(s0 >>> 16) & 0xff] ^ TD2[(s3 >>> 8) & 0xff] ^ TD3[s2 & 0xff] ^ k[r + 1];
+         t2 = TD0[s2 >>> 24] ^ TD1[(s1 >>> 16) & 0xff] ^ TD2[(s0 >>> 8) & 0xff] ^ TD3[s3 & 0xff] ^ k[r + 2];
+         t3 = TD0[s3 >>> 24] ^ TD1[(s2 >>> 16) & 0xff] ^ TD2[(s1 >>> 8) & 0xff] ^ TD3[s0 & 0xff] ^ k[r + 3];
+         s0 = t0;
+         s1 = t1;
+         s2 = t2;
+         s3 = t3;
+         r += 4;
+      }
+
+      INT_BIG_ENDIAN_BUFFER.set(output, output_index,      subColumn(s0, s3, s2, s1, SBOX_INVERSE) ^ k[r]);
+      INT_BIG_ENDIAN_BUFFER.set(output, output_index + 4,  subColumn(s1, s0, s3, s2, SBOX_INVERSE) ^ k[r + 1]);
+      INT_BIG_ENDIAN_BUFFER.set(output, output_index + 8,  subColumn(s2, s1, s0, s3, SBOX_INVERSE) ^ k[r + 2]);
+      INT_BIG_ENDIAN_BUFFER.set(output, output_index + 12, subColumn(s3, s2, s1, s0, SBOX_INVERSE) ^ k[r + 3]);
+      return;
+   }
+
+   // Builds a column for the final round by running one byte from each of the
+   // given columns through 'sbox'.
+   private static int subColumn(int a, int b, int c, int d, byte [] sbox) {
+      return ((sbox[a >>> 24] & 0xff) << 24)
+           | ((sbox[(b >>> 16) & 0xff] & 0xff) << 16)
+           | ((sbox[(c >>> 8) & 0xff] & 0xff) << 8)
+           | (sbox[d & 0xff] & 0xff);
+   }
+
+   // Expands the cipher key into 'schedule' as described in FIPS PUB 197
+   // section 5.2.
+   private static void expandKeyEncrypt(int [] schedule, byte [] key, int offset) {
+      final int N = KEY_SIZE / 4;
+
+      for (int i = 0; i < N; ++i) {
+         schedule[i] = readBigEndian32(key, offset + (i << 2));
+      }
+
+      int rcon = 0x01;
+      for (int i = N; i < SCHEDULE_LENGTH; ++i) {
+         int word = schedule[i - 1];
+         if (i % N == 0) {
+            word = subWord(Integer.rotateLeft(word, 8)) ^ (rcon << 24);
+            rcon = multiply(rcon, 0x02);
+         } else if (i % N == 4) {
+            word = subWord(word);
+         }
+         schedule[i] = schedule[i - N] ^ word;
+      }
+
+      return;
+   }
+
+   // Derives the decryption schedule for the 'equivalent inverse cipher'
+   // (FIPS PUB 197 section 5.3.5), which lets decryption use the same table
+   // layout as encryption.  The round keys are reversed and every key except
+   // the first and last goes through InvMixColumns.
+   private static void expandKeyDecrypt(int [] schedule, int [] schedule_encrypt) {
+      for (int round = 0; round <= ROUNDS; ++round) {
+         int src = (ROUNDS - round) << 2;
+         int dst = round << 2;
+         for (int i = 0; i < 4; ++i) {
+            int word = schedule_encrypt[src + i];
+            if (round != 0 && round != ROUNDS) {
+               word = TD0[SBOX[word >>> 24] & 0xff]
+                    ^ TD1[SBOX[(word >>> 16) & 0xff] & 0xff]
+                    ^ TD2[SBOX[(word >>> 8) & 0xff] & 0xff]
+                    ^ TD3[SBOX[word & 0xff] & 0xff];
+            }
+            schedule[dst + i] = word;
+         }
+      }
+
+      return;
+   }
+
+   // Runs each byte of 'word' through the S-box.
+   private static int subWord(int word) {
+      return ((SBOX[word >>> 24] & 0xff) << 24)
+           | ((SBOX[(word >>> 16) & 0xff] & 0xff) << 16)
+           | ((SBOX[(word >>> 8) & 0xff] & 0xff) << 8)
+           | (SBOX[word & 0xff] & 0xff);
+   }
+
+   // Reads a 32-bit big-endian integer from 'data' at position 'offset'.
+   private static int readBigEndian32(byte [] data, int offset) {
+      return ((data[offset] & 0xff) << 24)
+           | ((data[offset + 1] & 0xff) << 16)
+           | ((data[offset + 2] & 0xff) << 8)
+           | (data[offset + 3] & 0xff);
+   }
+
+   // Writes 'value' into 'data' at position 'offset' in 32-bit big-endian
+   // form.
+   private static void writeBigEndian32(byte [] data, int offset, int value) {
+      data[offset]     = (byte)(value >>> 24);
+      data[offset + 1] = (byte)(value >>> 16);
+      data[offset + 2] = (byte)(value >>> 8);
+      data[offset + 3] = (byte)value;
+      return;
+   }
+
+   // Multiplies two elements of GF(2^8) using the AES reduction polynomial.
+   private static int multiply(int a, int b) {
+      int product = 0;
+      while (b != 0) {
+         if ((b & 1) != 0) {
+            product ^= a;
+         }
+         a <<= 1;
+         if ((a & 0x100) != 0) {
+            a ^= 0x11b;
+         }
+         b >>>= 1;
+      }
+
+      return product;
+   }
+
+   // View of buffers as big-endian ints, ignoring the buffer's own byte order.
+   private static final java.lang.invoke.VarHandle INT_BIG_ENDIAN_BUFFER = java.lang.invoke.MethodHandles.byteBufferViewVarHandle(int [].class, java.nio.ByteOrder.BIG_ENDIAN);
+
+   // The tables are generated once when the class is loaded instead of being
+   // pasted in, which keeps them easy to check against the specification.
+   private static final byte [] SBOX          = new byte [256];
+   private static final byte [] SBOX_INVERSE  = new byte [256];
+   private static final int [] TE0 = new int [256];
+   private static final int [] TE1 = new int [256];
+   private static final int [] TE2 = new int [256];
+   private static final int [] TE3 = new int [256];
+   private static final int [] TD0 = new int [256];
+   private static final int [] TD1 = new int [256];
+   private static final int [] TD2 = new int [256];
+   private static final int [] TD3 = new int [256];
+
+   static {
+      // Walk every non-zero element of the field using 3 as a generator,
+      // which gives us each element along with its multiplicative inverse.
+      int p = 1;
+      int q = 1;
+      do {
+         // p = p * 3
+         p = p ^ (p << 1) ^ ((p & 0x80) != 0 ? 0x1b : 0);
+         p &= 0xff;
+
+         // q = q / 3
+         q ^= q << 1;
+         q ^= q << 2;
+         q ^= q << 4;
+         q &= 0xff;
+         if ((q & 0x80) != 0) {
+            q ^= 0x09;
+         }
+
+         // Affine transformation of the inverse
+         int s = q ^ Integer.rotateLeft(q, 1) ^ Integer.rotateLeft(q, 2) ^ Integer.rotateLeft(q, 3) ^ Integer.rotateLeft(q, 4);
+         s = (s ^ (s >>> 8) ^ 0x63) & 0xff;
+
+         SBOX[p] = (byte)s;
+         SBOX_INVERSE[s] = (byte)p;
+      } while (p != 1);
+
+      // Zero has no inverse, so it's special-cased.
+      SBOX[0] = 0x63;
+      SBOX_INVERSE[0x63] = 0;
+
+      for (int i = 0; i < 256; ++i) {
+         int s = SBOX[i] & 0xff;
+         int te = (multiply(s, 2) << 24) | (s << 16) | (s << 8) | multiply(s, 3);
+         TE0[i] = te;
+         TE1[i] = Integer.rotateRight(te, 8);
+         TE2[i] = Integer.rotateRight(te, 16);
+         TE3[i] = Integer.rotateRight(te, 24);
+
+         int v = SBOX_INVERSE[i] & 0xff;
+         int td = (multiply(v, 14) << 24) | (multiply(v, 9) << 16) | (multiply(v, 13) << 8) | multiply(v, 11);
+         TD0[i] = td;
+         TD1[i] = Integer.rotateRight(td, 8);
+         TD2[i] = Integer.rotateRight(td, 16);
+         TD3[i] = Integer.rotateRight(td, 24);
+      }
+   }
+}
@@ -4,12 +4,36 @@ public class Arguments {
    public String              secrets;    // secreits file path or 'null' for password prompt
    public Mode                mode;       // encryption mode (encrypt or decrypt)
    public Cryptor.Algorithm   algorithm;  // which algorithm to use for encryption or 'null' if decrypting
+   public boolean             armor;      // whether to Base64 armor the encrypted data
+   public boolean             compress;   // whether to compress the data before encrypting it
+   public boolean             incremental; // whether to only encrypt the chunks which changed since the existing output
+   public boolean             nio;        // whether to use file channels instead of streams
+   public int                 kdf_iterations; // PBKDF2 iterations used to derive the key when encrypting
+   public boolean             batch;      // whether 'input' names many files and 'output' a directory
+   public int                 jobs;       // how many files to process at once in batch or server mode
+   public boolean             range;      // whether to only decrypt part of the file
+   public long                range_start; // first byte of the plaintext to decrypt
+   public long                range_end;  // byte after the last one to decrypt
+   public boolean             progress;   // whether to show the rate and time remaining while running
+   public boolean             stats;      // whether to print where the time went once finished
+   public boolean             server;     // whether to keep running and take jobs instead of one file
+   public String              server_socket; // UNIX-domain socket to take jobs from or 'null' for stdin
+   public Checksum            checksum;   // which file to print a checksum of or 'null' for none
+
+   // Path which stands for stdin when given as the input and stdout when given
+   // as the output.
+   public static final String STANDARD_STREAM = "-";
    
    public static enum Mode {
       Encrypt,
       Decrypt,
    }
 
+   public static enum Checksum {
+      Plaintext,
+      Ciphertext,
+   }
+
    // Collection of various different argument parsing exceptions.
    // These are all grouped under a single class as a thin wrapper to bundle
    // them all together as a generic parsing error.
@@ -114,6 +138,20 @@ public class Arguments {
       public String              secrets;
       public Mode                mode;
       public Cryptor.Algorithm   algorithm;
+      public boolean             armor;
+      public boolean             compress;
+      public boolean             incremental;
+      public boolean             nio;
+      public Integer             kdf_iterations;
+      public boolean             batch;
+      public Integer             jobs;
+      public Long                range_start;
+      public Long                range_end;
+      public boolean             progress;
+      public boolean             stats;
+      public boolean             server;
+      public String              server_socket;
+      public Checksum            checksum;
 
       public ArgumentConsumer() {
          this.help      = false;
@@ -123,6 +161,20 @@ public class Arguments {
          this.secrets   = null;
          this.mode      = Mode.Encrypt;
          this.algorithm = null;
+         this.armor     = false;
+         this.compress  = false;
+         this.incremental = false;
+         this.nio       = false;
+         this.kdf_iterations = null;
+         this.batch     = false;
+         this.jobs      = null;
+         this.range_start = null;
+         this.range_end = null;
+         this.progress  = false;
+         this.stats     = false;
+         this.server    = false;
+         this.server_socket = null;
+         this.checksum  = null;
          return;
       }
 
@@ -146,24 +198,120 @@ public class Arguments {
          // This sucks...there's probably some meta-programming thing you can
          // do, but for now we do it manually.  Note that not every field is
          // required, thus not every field is checked.
-         if (this.input == null) {
+         // In server mode all of these come with each job instead.
+         if (this.server) {
+            if (this.input != null) {
+               throw new ParseException.InvalidArgumentCombination("server", "input");
+            }
+            if (this.output != null) {
+               throw new ParseException.InvalidArgumentCombination("server", "output");
+            }
+            if (this.algorithm != null) {
+               throw new ParseException.InvalidArgumentCombination("server", "algorithm");
+            }
+            if (this.armor) {
+               throw new ParseException.InvalidArgumentCombination("server", "armor");
+            }
+            if (this.compress) {
+               throw new ParseException.InvalidArgumentCombination("server", "compress");
+            }
+            if (this.incremental) {
+               throw new ParseException.InvalidArgumentCombination("server", "incremental");
+            }
+            if (this.mode != Mode.Encrypt) {
+               throw new ParseException.InvalidArgumentCombination("server", "mode");
+            }
+            if (this.batch) {
+               throw new ParseException.InvalidArgumentCombination("server", "batch");
+            }
+            if (this.range_start != null) {
+               throw new ParseException.InvalidArgumentCombination("server", "range");
+            }
+            if (this.checksum != null) {
+               throw new ParseException.InvalidArgumentCombination("server", "checksum");
+            }
+         }
+
+         if (this.input == null && !this.server) {
             throw new ParseException.MissingRequiredArgument("input");
          }
-         if (this.output == null) {
+         if (this.output == null && !this.server) {
             throw new ParseException.MissingRequiredArgument("output");
          }
-         if (this.algorithm == null && (this.mode == null || this.mode == Mode.Encrypt)) {
+         if (this.algorithm == null && (this.mode == null || this.mode == Mode.Encrypt) && !this.server) {
             throw new ParseException.MissingRequiredArgument("algorithm");
          }
          if (this.algorithm != null && (this.mode != null && this.mode == Mode.Decrypt)) {
             throw new ParseException.InvalidArgumentCombination("algorithm", "mode=decrypt");
          }
+         if (this.armor && (this.mode != null && this.mode == Mode.Decrypt)) {
+            throw new ParseException.InvalidArgumentCombination("armor", "mode=decrypt");
+         }
+         if (this.compress && (this.mode != null && this.mode == Mode.Decrypt)) {
+            throw new ParseException.InvalidArgumentCombination("compress", "mode=decrypt");
+         }
+         if (this.incremental && (this.mode != null && this.mode == Mode.Decrypt)) {
+            throw new ParseException.InvalidArgumentCombination("incremental", "mode=decrypt");
+         }
+         if (this.incremental && this.armor) {
+            throw new ParseException.InvalidArgumentCombination("incremental", "armor");
+         }
+         if (this.incremental && this.nio) {
+            throw new ParseException.InvalidArgumentCombination("incremental", "nio");
+         }
+         if (this.kdf_iterations != null && (this.mode != null && this.mode == Mode.Decrypt)) {
+            throw new ParseException.InvalidArgumentCombination("kdf-iterations", "mode=decrypt");
+         }
+         if (this.jobs != null && !this.batch && !this.server) {
+            throw new ParseException.MissingRequiredArgument("batch");
+         }
+         if (this.range_start != null && (this.mode == null || this.mode == Mode.Encrypt)) {
+            throw new ParseException.InvalidArgumentCombination("range", "mode=encrypt");
+         }
+         if (this.checksum != null && this.range_start != null) {
+            throw new ParseException.InvalidArgumentCombination("checksum", "range");
+         }
+
+         // Standard streams can only be read or written once from start to
+         // finish, and the password prompt needs them for the console.
+         boolean standard_input = STANDARD_STREAM.equals(this.input);
+         boolean standard_output = STANDARD_STREAM.equals(this.output);
+         if ((standard_input || standard_output) && this.batch) {
+            throw new ParseException.InvalidArgumentCombination("batch", standard_input ? "input=-" : "output=-");
+         }
+         if ((standard_input || standard_output) && this.nio) {
+            throw new ParseException.InvalidArgumentCombination("nio", standard_input ? "input=-" : "output=-");
+         }
+         if (standard_input && this.range_start != null) {
+            throw new ParseException.InvalidArgumentCombination("range", "input=-");
+         }
+         if (standard_output && this.incremental) {
+            throw new ParseException.InvalidArgumentCombination("incremental", "output=-");
+         }
+         if ((standard_input || standard_output) && this.secrets == null) {
+            throw new ParseException.MissingRequiredArgument("secrets");
+         }
 
          args.input     = this.input;
          args.output    = this.output;
          args.secrets   = this.secrets;
          args.mode      = this.mode;
          args.algorithm = this.algorithm;
+         args.armor     = this.armor;
+         args.compress  = this.compress;
+         args.incremental = this.incremental;
+         args.nio       = this.nio;
+         args.kdf_iterations = this.kdf_iterations != null ? this.kdf_iterations : Kdf.DEFAULT_ITERATIONS;
+         args.batch     = this.batch;
+         args.jobs      = this.jobs != null ? this.jobs : Runtime.getRuntime().availableProcessors();
+         args.range     = this.range_start != null;
+         args.range_start = this.range_start != null ? this.range_start : 0;
+         args.range_end = this.range_end != null ? this.range_end : Long.MAX_VALUE;
+         args.progress  = this.progress;
+         args.stats     = this.stats;
+         args.server    = this.server;
+         args.server_socket = this.server_socket;
+         args.checksum  = this.checksum;
          return args;
       }
 
@@ -196,19 +344,29 @@ public class Arguments {
             -v, --version                 | Displays the program version.
                                           |-------------------------------------
             -i, --input=[file path]       | Specifies the input file path to be
-                                          | used with the program.
+                                          | used with the program.  See --batch
+                                          | for processing many files.  '-'
+                                          | reads from stdin, which requires
+                                          | --secrets since the password
+                                          | prompt can't be used.  This can't
+                                          | be combined with --nio or --range.
                                           |
                                           | Valid values:
-                                          | Any valid file path string
+                                          | Any valid file path string, or '-'
                                           | 
                                           | Default value:
                                           | None (required argument)
                                           |-------------------------------------
             -o, --output=[file path]      | Specifies the output file path which
-                                          | will result from the program.
+                                          | will result from the program.  See
+                                          | --batch for processing many files.
+                                          | '-' writes to stdout, which
+                                          | requires --secrets since the
+                                          | password prompt can't be used.
+                                          | This can't be combined with --nio.
                                           |
                                           | Valid values:
-                                          | Any valid file path string
+                                          | Any valid file path string, or '-'
                                           | 
                                           | Default value:
                                           | None (required argument)
@@ -246,9 +404,157 @@ public class Arguments {
                                           | plaintext
                                           | constant-offset
                                           | aes256
+                                          | aes256-ctr
+                                          | aes256-gcm
                                           | 
                                           | Default value:
                                           | none (required for encryption)
+                                          |-------------------------------------
+            -r, --armor                   | Base64 encodes the encrypted data
+                                          | so it can be stored as text.  This
+                                          | should only be specified when
+                                          | encrypting files.  Armoring will be
+                                          | auto-detected when decrypting.
+                                          |-------------------------------------
+            -z, --compress                | Compresses the data before it's
+                                          | encrypted, which makes data that
+                                          | compresses well faster to encrypt
+                                          | and smaller on disk.  Each chunk
+                                          | is compressed on its own with
+                                          | Deflate, on every core at once.
+                                          | This should only be specified
+                                          | when encrypting files.
+                                          | Compression will be auto-detected
+                                          | when decrypting.
+                                          |-------------------------------------
+            -u, --incremental             | Only encrypts the parts of the
+                                          | input which changed since the
+                                          | output was last written with this
+                                          | option, copying the rest over from
+                                          | the existing output.  This is much
+                                          | faster for large files which
+                                          | mostly stay the same.  The output
+                                          | keeps its salt, algorithm and
+                                          | settings, and is written in full
+                                          | if they don't match or there's no
+                                          | output yet.  If the output was
+                                          | encrypted with a different
+                                          | password, nothing is written.  The
+                                          | output is replaced once it's been
+                                          | written.
+                                          | This should only be specified when
+                                          | encrypting files, and doesn't work
+                                          | with --armor or --nio.
+                                          |-------------------------------------
+            -n, --nio                     | Uses file channels instead of
+                                          | buffered streams.  When decrypting,
+                                          | the chunk index is read first and
+                                          | every chunk is read, decrypted and
+                                          | written at its own position in the
+                                          | files on every core at once,
+                                          | rather than in order.  Encrypting
+                                          | still writes the chunks in order.
+                                          | Version 1 files are processed
+                                          | through memory maps instead.  This
+                                          | doesn't work with stdin or stdout.
+                                          |-------------------------------------
+            -k, --kdf-iterations=[count]  | How many rounds of PBKDF2 to use
+                                          | when deriving the key from the
+                                          | password.  More rounds make the
+                                          | password harder to brute-force, but
+                                          | take longer.  This should only be
+                                          | specified when encrypting files.
+                                          | The count is stored in the file, so
+                                          | it will be auto-detected when
+                                          | decrypting.
+                                          |
+                                          | Valid values:
+                                          | Any integer from 1 to 3360000
+                                          |
+                                          | Default value:
+                                          | 210000
+                                          |-------------------------------------
+            -b, --batch                   | Processes many files in one run.
+                                          | The input is either a directory, in
+                                          | which case every file inside it is
+                                          | processed, a glob pattern such as
+                                          | 'logs/*.txt', or a manifest file.
+                                          | The output is a directory which the
+                                          | results are written to under the
+                                          | same file names.
+                                          |
+                                          | A manifest lists one input path per
+                                          | line, optionally followed by a tab
+                                          | and an output path.  Relative input
+                                          | paths are relative to the manifest,
+                                          | and relative output paths are
+                                          | relative to the output directory.
+                                          | Empty lines and lines starting with
+                                          | '#' are ignored.
+                                          |-------------------------------------
+            -j, --jobs=[count]            | How many files to process at once
+                                          | in batch or server mode.
+                                          |
+                                          | Valid values:
+                                          | Any positive integer
+                                          |
+                                          | Default value:
+                                          | Number of available processors
+                                          |-------------------------------------
+            --range=[start]-[end]         | Only decrypts the plaintext from
+                                          | byte 'start' up to but not
+                                          | including byte 'end'.  If 'end'
+                                          | is left out, decrypts to the end of
+                                          | the file.  Only the parts of the
+                                          | file covering the range are read,
+                                          | so this is fast even for huge
+                                          | files.  This may only be specified
+                                          | when decrypting files, and doesn't
+                                          | work on armored files.
+                                          |
+                                          | Valid values:
+                                          | start <= end, e.g. 1000-2000, 500-
+                                          |-------------------------------------
+            -p, --progress                | Shows how much has been processed,
+                                          | the rate, and an estimate of the
+                                          | time remaining on stderr while
+                                          | running.
+                                          |-------------------------------------
+            --stats                       | Prints a summary on stderr once
+                                          | finished, with the bytes read and
+                                          | written and the time spent deriving
+                                          | keys, on headers, in the cipher,
+                                          | and reading and writing files.
+                                          |-------------------------------------
+            --server[=socket path]       | Keeps running and takes jobs as
+                                          | JSON lines, one per line, such as
+                                          | {"id": 1, "mode": "encrypt",
+                                          | "input": "a", "output": "a.enc",
+                                          | "algorithm": "aes256-gcm"}.  Jobs
+                                          | are read from stdin, or from a
+                                          | UNIX-domain socket at the given
+                                          | path, and run concurrently.  Each
+                                          | gets a JSON line back with whether
+                                          | it succeeded and how long it took.
+                                          | Every job uses the same password,
+                                          | so the key is only derived once.
+                                          | --nio and --kdf-iterations apply to
+                                          | every job.
+                                          |-------------------------------------
+            --checksum[=file]             | Prints a checksum of the plaintext
+                                          | or ciphertext file once finished,
+                                          | as 'TREE-SHA512-1M (path) = hash'.
+                                          | The checksum is a SHA-512 tree hash
+                                          | with 1 MiB leaves, so the leaves
+                                          | are hashed on every core, and it
+                                          | won't match a plain SHA-512.
+                                          |
+                                          | Valid values:
+                                          | plaintext
+                                          | ciphertext
+                                          |
+                                          | Default value:
+                                          | plaintext
          
          ENCRYPTION ALGORITHMS:
             plaintext         | File data is left unencrypted and is untouched. 
@@ -260,9 +566,19 @@ public class Arguments {
                               | secrets and will be added to every byte in the
                               | input data.
                               |-------------------------------------------------
-            aes256            | Implementation of AES 256, which is the most
-                              | secure algorithm and is recommended for any
-                              | serious encryption.
+            aes256            | AES 256 in ECB mode.  Every block is encrypted
+                              | on its own, so identical blocks of the file
+                              | stay identical once encrypted.  aes256-gcm
+                              | should be preferred.
+                              |-------------------------------------------------
+            aes256-ctr        | AES 256 in counter mode.  Every block of the
+                              | file can be processed independently, so large
+                              | files are encrypted on all available cores.
+                              |-------------------------------------------------
+            aes256-gcm        | AES 256 in Galois/Counter mode.  Like
+                              | aes256-ctr, but also detects if the encrypted
+                              | data has been damaged or tampered with.  This
+                              | is recommended for any serious encryption.
 
          -----------------------------------------------------------------------""");
          return;
@@ -283,6 +599,18 @@ public class Arguments {
       Secrets,
       Mode,
       Algorithm,
+      Armor,
+      Compress,
+      Incremental,
+      Nio,
+      KdfIterations,
+      Batch,
+      Jobs,
+      Range,
+      Progress,
+      Stats,
+      Server,
+      Checksum,
    }
 
    // Short-form identifier map for parsing.  Edit this if you are adding a new
@@ -295,6 +623,14 @@ public class Arguments {
       put('s', Identifier.Secrets);
       put('m', Identifier.Mode);
       put('a', Identifier.Algorithm);
+      put('r', Identifier.Armor);
+      put('z', Identifier.Compress);
+      put('u', Identifier.Incremental);
+      put('n', Identifier.Nio);
+      put('k', Identifier.KdfIterations);
+      put('b', Identifier.Batch);
+      put('j', Identifier.Jobs);
+      put('p', Identifier.Progress);
    }};
 
    // Long-form identifier map for parsing. Edit this if you are adding a new
@@ -307,6 +643,18 @@ public class Arguments {
       put("secrets",    Identifier.Secrets);
       put("mode",       Identifier.Mode);
       put("algorithm",  Identifier.Algorithm);
+      put("armor",      Identifier.Armor);
+      put("compress",   Identifier.Compress);
+      put("incremental", Identifier.Incremental);
+      put("nio",        Identifier.Nio);
+      put("kdf-iterations", Identifier.KdfIterations);
+      put("batch",      Identifier.Batch);
+      put("jobs",       Identifier.Jobs);
+      put("range",      Identifier.Range);
+      put("progress",   Identifier.Progress);
+      put("stats",      Identifier.Stats);
+      put("server",     Identifier.Server);
+      put("checksum",   Identifier.Checksum);
    }};
 
    // Instead of simply mapping function pointers, we have to use polymorphism
@@ -404,6 +752,8 @@ public class Arguments {
             put("plaintext",        Cryptor.Algorithm.Plaintext);
             put("constant-offset",  Cryptor.Algorithm.ConstantOffset);
             put("aes256",           Cryptor.Algorithm.AES256);
+            put("aes256-ctr",       Cryptor.Algorithm.AES256CTR);
+            put("aes256-gcm",       Cryptor.Algorithm.AES256GCM);
          }};
 
          public void parse(ArgumentConsumer consumer, String identifier, String parameter) throws ParseException {
@@ -420,6 +770,199 @@ public class Arguments {
             return;
          }
       }
+
+      public static class Armor implements Parser {
+         public void parse(ArgumentConsumer consumer, String identifier, String parameter) throws ParseException {
+            if (parameter != null) {
+               throw new ParseException.UnexpectedParameter(identifier, parameter);
+            }
+
+            consumer.armor = true;
+            return;
+         }
+      }
+
+      public static class Compress implements Parser {
+         public void parse(ArgumentConsumer consumer, String identifier, String parameter) throws ParseException {
+            if (parameter != null) {
+               throw new ParseException.UnexpectedParameter(identifier, parameter);
+            }
+
+            consumer.compress = true;
+            return;
+         }
+      }
+
+      public static class Incremental implements Parser {
+         public void parse(ArgumentConsumer consumer, String identifier, String parameter) throws ParseException {
+            if (parameter != null) {
+               throw new ParseException.UnexpectedParameter(identifier, parameter);
+            }
+
+            consumer.incremental = true;
+            return;
+         }
+      }
+
+      public static class Nio implements Parser {
+         public void parse(ArgumentConsumer consumer, String identifier, String parameter) throws ParseException {
+            if (parameter != null) {
+               throw new ParseException.UnexpectedParameter(identifier, parameter);
+            }
+
+            consumer.nio = true;
+            return;
+         }
+      }
+
+      public static class KdfIterations implements Parser {
+         public void parse(ArgumentConsumer consumer, String identifier, String parameter) throws ParseException {
+            if (parameter == null) {
+               throw new ParseException.ExpectedParameter(identifier);
+            }
+
+            int iterations;
+            try {
+               iterations = Integer.parseInt(parameter);
+            } catch (NumberFormatException e) {
+               throw new ParseException.InvalidParameter(identifier, parameter);
+            }
+            if (iterations <= 0 || iterations > Kdf.MAX_ITERATIONS) {
+               throw new ParseException.InvalidParameter(identifier, parameter);
+            }
+
+            consumer.kdf_iterations = iterations;
+            return;
+         }
+      }
+
+      public static class Batch implements Parser {
+         public void parse(ArgumentConsumer consumer, String identifier, String parameter) throws ParseException {
+            if (parameter != null) {
+               throw new ParseException.UnexpectedParameter(identifier, parameter);
+            }
+
+            consumer.batch = true;
+            return;
+         }
+      }
+
+      public static class Jobs implements Parser {
+         public void parse(ArgumentConsumer consumer, String identifier, String parameter) throws ParseException {
+            if (parameter == null) {
+               throw new ParseException.ExpectedParameter(identifier);
+            }
+
+            int jobs;
+            try {
+               jobs = Integer.parseInt(parameter);
+            } catch (NumberFormatException e) {
+               throw new ParseException.InvalidParameter(identifier, parameter);
+            }
+            if (jobs <= 0) {
+               throw new ParseException.InvalidParameter(identifier, parameter);
+            }
+
+            consumer.jobs = jobs;
+            return;
+         }
+      }
+
+      public static class Range implements Parser {
+         public void parse(ArgumentConsumer consumer, String identifier, String parameter) throws ParseException {
+            if (parameter == null) {
+               throw new ParseException.ExpectedParameter(identifier);
+            }
+
+            int separator = parameter.indexOf('-');
+            if (separator == -1) {
+               throw new ParseException.InvalidParameter(identifier, parameter);
+            }
+
+            long start;
+            long end;
+            try {
+               start = Long.parseLong(parameter.substring(0, separator));
+               if (separator == parameter.length() - 1) {
+                  end = Long.MAX_VALUE;
+               } else {
+                  end = Long.parseLong(parameter.substring(separator + 1));
+               }
+            } catch (NumberFormatException e) {
+               throw new ParseException.InvalidParameter(identifier, parameter);
+            }
+            if (start < 0 || end < start) {
+               throw new ParseException.InvalidParameter(identifier, parameter);
+            }
+
+            consumer.range_start = start;
+            consumer.range_end = end;
+            return;
+         }
+      }
+
+      public static class Progress implements Parser {
+         public void parse(ArgumentConsumer consumer, String identifier, String parameter) throws ParseException {
+            if (parameter != null) {
+               throw new ParseException.UnexpectedParameter(identifier, parameter);
+            }
+
+            consumer.progress = true;
+            return;
+         }
+      }
+
+      public static class Stats implements Parser {
+         public void parse(ArgumentConsumer consumer, String identifier, String parameter) throws ParseException {
+            if (parameter != null) {
+               throw new ParseException.UnexpectedParameter(identifier, parameter);
+            }
+
+            consumer.stats = true;
+            return;
+         }
+      }
+
+      public static class Checksum implements Parser {
+         private static final java.util.HashMap<String, Arguments.Checksum> MAP_CHECKSUM = new java.util.HashMap<String, Arguments.Checksum>() {{
+            put("plaintext",  Arguments.Checksum.Plaintext);
+            put("ciphertext", Arguments.Checksum.Ciphertext);
+         }};
+
+         public void parse(ArgumentConsumer consumer, String identifier, String parameter) throws ParseException {
+            if (parameter == null) {
+               consumer.checksum = Arguments.Checksum.Plaintext;
+               return;
+            }
+
+            Arguments.Checksum checksum = MAP_CHECKSUM.get(parameter);
+            if (checksum == null) {
+               throw new ParseException.InvalidParameter(identifier, parameter);
+            }
+
+            consumer.checksum = checksum;
+            return;
+         }
+      }
+
+      public static class Server implements Parser {
+         public void parse(ArgumentConsumer consumer, String identifier, String parameter) throws ParseException {
+            consumer.server = true;
+            consumer.server_socket = parameter != null && parameter.length() != 0 ? parameter : null;
+            return;
+         }
+      }
+   }
+
+   // Returns the name used to select 'algorithm' on the command line.
+   static String algorithmName(Cryptor.Algorithm algorithm) {
+      for (java.util.Map.Entry<String, Cryptor.Algorithm> entry : Parser.Algorithm.MAP_ALGORITHM.entrySet()) {
+         if (entry.getValue() == algorithm) {
+            return entry.getKey();
+         }
+      }
+
+      return null;
    }
 
    // Finally...we can define our map for parsers.  Every single argument should
@@ -432,6 +975,18 @@ public class Arguments {
       put(Identifier.Secrets,    new Parser.Secrets());
       put(Identifier.Mode,       new Parser.Mode());
       put(Identifier.Algorithm,  new Parser.Algorithm());
+      put(Identifier.Armor,      new Parser.Armor());
+      put(Identifier.Compress,   new Parser.Compress());
+      put(Identifier.Incremental, new Parser.Incremental());
+      put(Identifier.Nio,        new Parser.Nio());
+      put(Identifier.KdfIterations, new Parser.KdfIterations());
+      put(Identifier.Batch,      new Parser.Batch());
+      put(Identifier.Jobs,       new Parser.Jobs());
+      put(Identifier.Range,      new Parser.Range());
+      put(Identifier.Progress,   new Parser.Progress());
+      put(Identifier.Stats,      new Parser.Stats());
+      put(Identifier.Server,     new Parser.Server());
+      put(Identifier.Checksum,   new Parser.Checksum());
    }};
 
    // --------------------------------------------------------------------------
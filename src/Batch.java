@@ -0,0 +1,247 @@
+// Batch mode, which encrypts or decrypts many files in a single run.  The
+// files are processed concurrently on a fixed pool of worker threads.  When
+// encrypting, every file in the batch shares the same salt, so the key only
+// has to be derived once for the whole batch.  When decrypting, files which
+// were encrypted in the same batch share their key through the cache in 'Kdf'.
+public class Batch {
+   // A single input file and where its output should be written.
+   public static class Job {
+      public final String input;
+      public final String output;
+
+      public Job(String input, String output) {
+         this.input = input;
+         this.output = output;
+         return;
+      }
+   }
+
+   // The outcome of running a single job.
+   public static class Result {
+      public final Job job;
+      public final long bytes;                  // size of the input file
+      public final long nanos;                  // time taken to process the file
+      public final java.lang.Exception error;   // why the job failed or 'null' if it succeeded
+
+      public Result(Job job, long bytes, long nanos, java.lang.Exception error) {
+         this.job = job;
+         this.bytes = bytes;
+         this.nanos = nanos;
+         this.error = error;
+         return;
+      }
+   }
+
+   // Runs every file named by 'args.input', writing the results into the
+   // 'args.output' directory, then prints a report.  Throws if any of the
+   // files failed, but only after every other file has been processed.
+   public static void run(Arguments args, String password) throws java.lang.Exception {
+      java.util.ArrayList<Job> jobs = collectJobs(args.input, args.output);
+      java.nio.file.Files.createDirectories(java.nio.file.Paths.get(args.output));
+
+      // Derive the key before starting any workers so the per-file times only
+      // cover the files themselves.
+      byte [] kdf_salt = Kdf.generateSalt();
+      if (args.mode == Arguments.Mode.Encrypt) {
+         long start = System.nanoTime();
+         Kdf.derive(password, kdf_salt, args.kdf_iterations);
+         Metrics.timeSince(Metrics.Timer.Kdf, start);
+      }
+
+      // Everything is counted up front so progress covers the whole batch.
+      // Ranges count their own length once each file is opened.
+      if (!args.range) {
+         for (Job job : jobs) {
+            Metrics.count(Metrics.Counter.BytesExpected, new java.io.File(job.input).length());
+         }
+      }
+
+      long start = System.nanoTime();
+      java.util.ArrayList<Result> results = runJobs(args, password, kdf_salt, jobs);
+      long elapsed = System.nanoTime() - start;
+
+      int failed = report(results, elapsed);
+      if (failed != 0) {
+         throw new BatchFailedException(String.format("%d of %d files failed", failed, results.size()));
+      }
+
+      return;
+   }
+
+   // Runs every job on a pool of 'args.jobs' worker threads.  The results are
+   // returned in the same order as the jobs.
+   private static java.util.ArrayList<Result> runJobs(final Arguments args, final String password, final byte [] kdf_salt, java.util.ArrayList<Job> jobs) throws java.lang.Exception {
+      java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newFixedThreadPool(args.jobs);
+
+      java.util.ArrayList<java.util.concurrent.Future<Result>> futures = new java.util.ArrayList<java.util.concurrent.Future<Result>>();
+      for (final Job job : jobs) {
+         futures.add(executor.submit(new java.util.concurrent.Callable<Result>() {
+            public Result call() {
+               return runJob(args, password, kdf_salt, job);
+            }
+         }));
+      }
+
+      java.util.ArrayList<Result> results = new java.util.ArrayList<Result>();
+      try {
+         for (java.util.concurrent.Future<Result> future : futures) {
+            results.add(future.get());
+         }
+      } finally {
+         executor.shutdownNow();
+      }
+
+      return results;
+   }
+
+   // Runs a single job, catching any error so one bad file doesn't stop the
+   // rest of the batch.
+   private static Result runJob(Arguments args, String password, byte [] kdf_salt, Job job) {
+      long start = System.nanoTime();
+      long bytes = 0;
+
+      try {
+         bytes = java.nio.file.Files.size(java.nio.file.Paths.get(job.input));
+
+         // Manifests may put outputs in subdirectories of the output directory.
+         java.nio.file.Path parent = java.nio.file.Paths.get(job.output).toAbsolutePath().getParent();
+         java.nio.file.Files.createDirectories(parent);
+
+         Main.runFile(args, password, job.input, job.output, kdf_salt);
+      } catch (java.lang.Exception e) {
+         return new Result(job, bytes, System.nanoTime() - start, e);
+      }
+
+      return new Result(job, bytes, System.nanoTime() - start, null);
+   }
+
+   // Prints a line for every file followed by the totals for the batch.
+   // Returns how many of the files failed.
+   private static int report(java.util.ArrayList<Result> results, long elapsed) {
+      int failed = 0;
+      long bytes = 0;
+
+      for (Result result : results) {
+         if (result.error != null) {
+            failed += 1;
+            System.out.println(String.format("FAIL %s -> %s: %s", result.job.input, result.job.output, result.error));
+            continue;
+         }
+
+         bytes += result.bytes;
+         System.out.println(String.format("ok   %s -> %s (%s in %.1f ms)", result.job.input, result.job.output, Metrics.formatBytes(result.bytes), result.nanos / 1e6));
+      }
+
+      double seconds = elapsed / 1e9;
+      System.out.println(String.format(
+         "%d files, %d failed, %s in %.2f s (%s/s)",
+         results.size(), failed, Metrics.formatBytes(bytes), seconds, Metrics.formatBytes((long)(bytes / Math.max(seconds, 1e-9)))
+      ));
+
+      return failed;
+   }
+
+   // --- Collecting jobs ------------------------------------------------------
+
+   // Works out which files 'source' names.  A directory means every regular
+   // file inside it, an existing file is read as a manifest, and anything else
+   // is treated as a glob pattern for file names.  Outputs are placed inside
+   // 'output_directory'.
+   public static java.util.ArrayList<Job> collectJobs(String source, String output_directory) throws java.lang.Exception {
+      java.nio.file.Path output = java.nio.file.Paths.get(output_directory);
+
+      // Glob patterns may contain characters which aren't valid in paths on
+      // some platforms, so they have to be recognized before building a Path.
+      int separator = Math.max(source.lastIndexOf('/'), source.lastIndexOf(java.io.File.separatorChar));
+      String pattern = source.substring(separator + 1);
+      if (isGlob(pattern)) {
+         String directory = separator == -1 ? "." : source.substring(0, separator + 1);
+         return collectGlob(java.nio.file.Paths.get(directory), pattern, output);
+      }
+
+      java.nio.file.Path path = java.nio.file.Paths.get(source);
+      if (java.nio.file.Files.isDirectory(path)) {
+         return collectGlob(path, "*", output);
+      }
+
+      return collectManifest(path, output);
+   }
+
+   private static boolean isGlob(String pattern) {
+      for (char c : pattern.toCharArray()) {
+         if (c == '*' || c == '?' || c == '[' || c == '{') {
+            return true;
+         }
+      }
+
+      return false;
+   }
+
+   // Every regular file in 'directory' whose name matches 'pattern', sorted by
+   // name so the report comes out in a predictable order.
+   private static java.util.ArrayList<Job> collectGlob(java.nio.file.Path directory, String pattern, java.nio.file.Path output) throws java.lang.Exception {
+      java.util.ArrayList<java.nio.file.Path> paths = new java.util.ArrayList<java.nio.file.Path>();
+
+      java.nio.file.DirectoryStream<java.nio.file.Path> stream = java.nio.file.Files.newDirectoryStream(directory, pattern);
+      try {
+         for (java.nio.file.Path path : stream) {
+            if (java.nio.file.Files.isRegularFile(path)) {
+               paths.add(path);
+            }
+         }
+      } finally {
+         stream.close();
+      }
+
+      java.util.Collections.sort(paths);
+
+      java.util.ArrayList<Job> jobs = new java.util.ArrayList<Job>();
+      for (java.nio.file.Path path : paths) {
+         jobs.add(new Job(path.toString(), output.resolve(path.getFileName()).toString()));
+      }
+
+      return jobs;
+   }
+
+   // Reads a manifest with one input path per line, optionally followed by a
+   // tab and the output path.
+   private static java.util.ArrayList<Job> collectManifest(java.nio.file.Path manifest, java.nio.file.Path output) throws java.lang.Exception {
+      java.nio.file.Path base = manifest.toAbsolutePath().getParent();
+
+      java.util.ArrayList<Job> jobs = new java.util.ArrayList<Job>();
+      for (String line : java.nio.file.Files.readAllLines(manifest)) {
+         if (line.trim().isEmpty() || line.startsWith("#")) {
+            continue;
+         }
+
+         String [] fields = line.split("\t", -1);
+         if (fields.length > 2 || fields[0].isEmpty()) {
+            throw new MalformedManifestException(String.format("invalid manifest line \'%s\'", line));
+         }
+
+         java.nio.file.Path input = base.resolve(fields[0]);
+         java.nio.file.Path destination;
+         if (fields.length == 2 && !fields[1].isEmpty()) {
+            destination = output.resolve(fields[1]);
+         } else {
+            destination = output.resolve(input.getFileName());
+         }
+
+         jobs.add(new Job(input.toString(), destination.toString()));
+      }
+
+      return jobs;
+   }
+}
+
+class BatchFailedException extends java.lang.Exception {
+   public BatchFailedException(String err) {
+      super(err);
+   }
+}
+
+class MalformedManifestException extends java.lang.Exception {
+   public MalformedManifestException(String err) {
+      super(err);
+   }
+}
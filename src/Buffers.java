@@ -0,0 +1,195 @@
+// Pools of reusable buffers for the hot paths, so encrypting a stream of
+// files doesn't allocate a new buffer for every file and chunk.  There is one
+// pool of byte arrays and one of direct buffers.  Buffers are handed out at
+// exactly the length asked for, which works because the hot paths only ever
+// ask for a few fixed sizes, such as the chunk size.
+//
+// Each pool is split into stripes to keep threads from contending over a
+// single lock.  Threads release into their own stripe and take from their own
+// stripe first, falling back to the others, since a buffer is often released
+// by a different thread than the one which acquired it.  Each pool holds on
+// to a limited amount of memory, and anything released past that is left to
+// the garbage collector.
+//
+// Pooled buffers aren't cleared, so they may still hold whatever was last in
+// them.  Don't release a buffer which is still in use, and don't assume a
+// buffer starts out zeroed.
+public class Buffers {
+   // Most memory the heap pool holds on to.
+   public static final long HEAP_CAPACITY = Runtime.getRuntime().maxMemory() / 4;
+
+   // Most memory the direct pool holds on to.
+   public static final long DIRECT_CAPACITY = 64L * 1024L * 1024L;
+
+   // Number of different lengths each stripe keeps buffers of.
+   private static final int SHELVES = 8;
+
+   private static final Pool<byte []> HEAP = new Pool<byte []>(HEAP_CAPACITY) {
+      protected byte [] allocate(int length) {
+         return new byte [length];
+      }
+
+      protected int length(byte [] buffer) {
+         return buffer.length;
+      }
+   };
+
+   private static final Pool<java.nio.ByteBuffer> DIRECT = new Pool<java.nio.ByteBuffer>(DIRECT_CAPACITY) {
+      protected java.nio.ByteBuffer allocate(int length) {
+         return java.nio.ByteBuffer.allocateDirect(length);
+      }
+
+      protected int length(java.nio.ByteBuffer buffer) {
+         return buffer.capacity();
+      }
+   };
+
+   // Returns an array of exactly 'length' bytes.
+   public static byte [] acquire(int length) {
+      return HEAP.acquire(length);
+   }
+
+   // Returns an array acquired with 'acquire' to the pool.  Arrays which
+   // weren't acquired from the pool may be released too.
+   public static void release(byte [] buffer) {
+      HEAP.release(buffer);
+      return;
+   }
+
+   // Returns a cleared direct buffer with a capacity of exactly 'capacity'
+   // bytes.
+   public static java.nio.ByteBuffer acquireDirect(int capacity) {
+      java.nio.ByteBuffer buffer = DIRECT.acquire(capacity);
+      buffer.clear();
+      return buffer;
+   }
+
+   // Returns a buffer acquired with 'acquireDirect' to the pool.  Anything
+   // other than a writable direct buffer is ignored.
+   public static void releaseDirect(java.nio.ByteBuffer buffer) {
+      if (!buffer.isDirect() || buffer.isReadOnly()) {
+         return;
+      }
+
+      DIRECT.release(buffer);
+      return;
+   }
+
+   private static abstract class Pool<T> {
+      private final long capacity;
+      private final java.util.ArrayList<Stripe<T>> stripes;
+      private final int stripe_mask;
+      private final java.util.concurrent.atomic.AtomicLong retained;     // bytes held by every stripe
+
+      public Pool(long capacity) {
+         // One stripe per core, rounded up to a power of two.
+         int cores = Runtime.getRuntime().availableProcessors();
+         int count = cores <= 1 ? 1 : Integer.highestOneBit(cores - 1) << 1;
+
+         this.capacity = capacity;
+         this.stripes = new java.util.ArrayList<Stripe<T>>(count);
+         this.stripe_mask = count - 1;
+         this.retained = new java.util.concurrent.atomic.AtomicLong(0);
+
+         for (int i = 0; i < count; ++i) {
+            this.stripes.add(new Stripe<T>());
+         }
+
+         return;
+      }
+
+      protected abstract T allocate(int length);
+
+      protected abstract int length(T buffer);
+
+      public T acquire(int length) {
+         int home = this.home();
+         for (int i = 0; i < this.stripes.size(); ++i) {
+            T buffer = this.stripes.get((home + i) & this.stripe_mask).take(length);
+            if (buffer != null) {
+               this.retained.addAndGet(-length);
+               return buffer;
+            }
+         }
+
+         Metrics.count(Metrics.Counter.BuffersAllocated, length);
+         return this.allocate(length);
+      }
+
+      public void release(T buffer) {
+         int length = this.length(buffer);
+         if (length == 0) {
+            return;
+         }
+
+         // Claim room for the buffer first, so threads releasing at once
+         // can't overshoot the capacity between them.
+         if (this.retained.addAndGet(length) > this.capacity) {
+            this.retained.addAndGet(-length);
+            return;
+         }
+
+         if (!this.stripes.get(this.home()).put(buffer, length)) {
+            this.retained.addAndGet(-length);
+         }
+
+         return;
+      }
+
+      // Stripe belonging to the current thread.
+      private int home() {
+         return (int)Thread.currentThread().getId() & this.stripe_mask;
+      }
+   }
+
+   // Buffers of up to SHELVES different lengths, each on a shelf of its own.
+   private static class Stripe<T> {
+      private final int [] lengths;
+      private final java.util.ArrayList<java.util.ArrayDeque<T>> shelves;
+
+      public Stripe() {
+         this.lengths = new int [SHELVES];
+         this.shelves = new java.util.ArrayList<java.util.ArrayDeque<T>>(SHELVES);
+         for (int i = 0; i < SHELVES; ++i) {
+            this.shelves.add(new java.util.ArrayDeque<T>());
+         }
+
+         return;
+      }
+
+      // Takes a buffer of 'length' bytes, or returns null if there isn't one.
+      public synchronized T take(int length) {
+         for (int i = 0; i < SHELVES; ++i) {
+            if (this.lengths[i] == length && !this.shelves.get(i).isEmpty()) {
+               return this.shelves.get(i).removeLast();
+            }
+         }
+
+         return null;
+      }
+
+      // Stores a buffer of 'length' bytes on the shelf for that length.  If
+      // there isn't one, an empty shelf is taken over for it.  Returns false
+      // if there's no room.
+      public synchronized boolean put(T buffer, int length) {
+         int empty = -1;
+         for (int i = 0; i < SHELVES; ++i) {
+            if (this.lengths[i] == length) {
+               this.shelves.get(i).addLast(buffer);
+               return true;
+            }
+            if (empty == -1 && this.shelves.get(i).isEmpty()) {
+               empty = i;
+            }
+         }
+
+         if (empty == -1) {
+            return false;
+         }
+
+         this.lengths[empty] = length;
+         this.shelves.get(empty).addLast(buffer);
+         return true;
+      }
+   }
+}
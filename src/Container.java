@@ -0,0 +1,1426 @@
+// Chunked layout for the data following a version 2 header.  The plaintext is
+// split into fixed-size chunks which are encrypted independently, so chunks
+// can be encrypted and decrypted in parallel, and any range of the plaintext
+// can be decrypted by only reading the chunks which cover it.  The data is
+// formatted as such:
+//
+// frame[]  chunks
+// uint32   0
+// uint32   0
+// entry[]  index
+// byte[16] index_tag
+// uint64   index_offset
+// uint32   index_count
+// byte     magic_trailer_upper
+// byte     magic_trailer_lower
+//
+// Where each chunk frame is formatted as such:
+//
+// uint32   plaintext_length
+// uint32   ciphertext_length
+// byte[]   ciphertext
+// byte[16] tag
+//
+// And each index entry is formatted as such:
+//
+// uint64   offset of the frame from the start of the data
+// uint32   plaintext_length
+// byte[16] tag
+// byte[32] digest, only if the header asks for digests
+//
+// All integers are big-endian.  The frames can be read in order without
+// knowing where they end, which lets the data be decrypted as a stream, while
+// the trailer has a fixed size so the index can be found by seeking to the end
+// of the file.  Every chunk is authenticated with a tag over its position and
+// ciphertext, and the index has a tag of its own, so chunks can't be modified,
+// reordered or dropped without it being noticed.  Chunk tags are HMAC-SHA512,
+// unless the algorithm authenticates the data itself, in which case its own
+// tag is used instead.
+//
+// If the header asks for compression, each chunk is compressed on its own
+// before it's encrypted, so chunks can still be compressed in parallel and
+// decrypted on their own.  The lengths in the frames and the index are always
+// those of the uncompressed plaintext.  Chunks which don't get any smaller are
+// stored as they are, which is told apart by the decrypted data being exactly
+// as long as the plaintext.
+//
+// Digests are keyed hashes of the plaintext of each chunk, which let a later
+// version of the same file be written incrementally.  Chunks whose plaintext
+// hasn't changed are copied over from the previous version rather than being
+// encrypted again, see 'Previous'.
+public class Container {
+   // Size of the plaintext in every chunk except the last one.
+   public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+   // Largest chunk size accepted from a header, which stops a corrupt header
+   // from making us allocate huge buffers.
+   public static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+
+   // Length of the random nonce stored in the header of every file.
+   public static final int NONCE_LENGTH = 16;
+
+   // Length of the tags authenticating each chunk and the index.
+   public static final int TAG_LENGTH = 16;
+
+   // Length of the digests of the plaintext of each chunk.
+   public static final int DIGEST_LENGTH = 32;
+
+   private static final int FRAME_HEADER_LENGTH = 4 + 4;
+   private static final int INDEX_ENTRY_LENGTH = 8 + 4 + TAG_LENGTH;
+
+   private static final byte MAGIC_TRAILER_UPPER = 'E';   // EnCrypt
+   private static final byte MAGIC_TRAILER_LOWER = 'I';   // Index
+   private static final byte [] MAGIC_TRAILER = {MAGIC_TRAILER_UPPER, MAGIC_TRAILER_LOWER};
+   private static final int TRAILER_LENGTH = 8 + 4 + MAGIC_TRAILER.length;
+
+   // How many chunks may be queued up between the stages of the pipelines in
+   // 'Writer' and 'Reader'.  This is enough to keep every core busy without
+   // holding too much of the file in memory.
+   private static final int PIPELINE_DEPTH = Math.max(2, java.util.concurrent.ForkJoinPool.getCommonPoolParallelism() * 2);
+
+   // Number of reusable plaintext buffers in the ring used by 'Writer'.  There
+   // is one for every queued chunk, plus one being filled.
+   private static final int PIPELINE_BUFFERS = PIPELINE_DEPTH + 1;
+
+   // Marks the end of the data in the pipeline queues.
+   private static final java.util.concurrent.Future<Sealed> END_SEALED = new java.util.concurrent.CompletableFuture<Sealed>();
+   private static final java.util.concurrent.Future<Opened> END_OPENED = new java.util.concurrent.CompletableFuture<Opened>();
+
+   // The first byte of every tagged message, so a chunk tag can never be
+   // passed off as an index tag or the other way around.
+   private static final byte DOMAIN_CHUNK = 0;
+   private static final byte DOMAIN_INDEX = 1;
+
+   private static final java.security.SecureRandom RANDOM = new java.security.SecureRandom();
+
+   // Generates a new random nonce for a header.
+   public static byte [] generateNonce() {
+      byte [] nonce = new byte [NONCE_LENGTH];
+      RANDOM.nextBytes(nonce);
+      return nonce;
+   }
+
+   // How the plaintext of each chunk is compressed before it's encrypted.
+   public static enum Compression {
+      None,
+      Deflate,
+   }
+
+   // Compression level used for 'Deflate'.  The fastest level already gets
+   // most of the way on data which compresses well, and keeps compressing
+   // from holding up the rest of the pipeline.
+   private static final int DEFLATE_LEVEL = java.util.zip.Deflater.BEST_SPEED;
+
+   // Compressors are reset after every chunk, so each thread only sets one
+   // up once rather than once per chunk.
+   private static final ThreadLocal<java.util.zip.Deflater> DEFLATER = new ThreadLocal<java.util.zip.Deflater>() {
+      protected java.util.zip.Deflater initialValue() {
+         return new java.util.zip.Deflater(DEFLATE_LEVEL);
+      }
+   };
+   private static final ThreadLocal<java.util.zip.Inflater> INFLATER = new ThreadLocal<java.util.zip.Inflater>() {
+      protected java.util.zip.Inflater initialValue() {
+         return new java.util.zip.Inflater();
+      }
+   };
+
+   // An entry in the chunk index.
+   public static class Chunk {
+      public final long offset;           // offset of the frame from the start of the data
+      public final int plaintext_length;  // length of the chunk once decrypted
+      public final byte [] tag;           // tag authenticating the chunk
+      public final byte [] digest;        // digest of the plaintext, 'null' if the file has none
+
+      public Chunk(long offset, int plaintext_length, byte [] tag, byte [] digest) {
+         this.offset = offset;
+         this.plaintext_length = plaintext_length;
+         this.tag = tag;
+         this.digest = digest;
+         return;
+      }
+   }
+
+   // An encrypted chunk along with its tag and digest.  The ciphertext is
+   // the first 'ciphertext_length' bytes of 'ciphertext', which may be longer.
+   private static class Sealed {
+      public final int plaintext_length;
+      public final byte [] ciphertext;
+      public final int ciphertext_length;
+      public final byte [] tag;
+      public final byte [] digest;
+
+      public Sealed(int plaintext_length, byte [] ciphertext, int ciphertext_length, byte [] tag, byte [] digest) {
+         this.plaintext_length = plaintext_length;
+         this.ciphertext = ciphertext;
+         this.ciphertext_length = ciphertext_length;
+         this.tag = tag;
+         this.digest = digest;
+         return;
+      }
+   }
+
+   // A decrypted chunk.  The plaintext is the first 'plaintext_length' bytes
+   // of 'plaintext', which may be longer.
+   private static class Opened {
+      public final byte [] plaintext;
+      public final int plaintext_length;
+
+      public Opened(byte [] plaintext, int plaintext_length) {
+         this.plaintext = plaintext;
+         this.plaintext_length = plaintext_length;
+         return;
+      }
+   }
+
+   // Encrypts, decrypts and authenticates the chunks of a single file.  This
+   // is safe to share between threads.
+   public static class Codec {
+      public final int chunk_size;
+
+      // Length of the ciphertext of a full chunk, which is the most any chunk
+      // can have.  Frames claiming more are rejected as corrupt.
+      public final int ciphertext_size;
+
+      // Whether the index holds a digest of every chunk, and how long each
+      // entry is because of it.
+      public final boolean digests;
+      private final int index_entry_length;
+
+      private final Compression compression;
+      private final Cryptor cryptor;
+      private final Cryptor.Session session;
+      private final byte [] secrets;
+      private final byte [] nonce;
+      private final byte [] tag_key;
+      private final byte [] digest_key;
+
+      // HMACs keyed with 'tag_key' and 'digest_key', which are reset after
+      // every tag or digest, so each thread only sets one up once.
+      private final ThreadLocal<Hasher.HmacSha512> tag_hmac;
+      private final ThreadLocal<Hasher.HmacSha512> digest_hmac;
+
+      public Codec(Header header, Cryptor cryptor, byte [] secrets) throws java.lang.Exception {
+         if (header.chunk_size <= 0 || header.chunk_size > MAX_CHUNK_SIZE) {
+            throw new Header.DeserializeException("chunk size is invalid, file may be corrupt");
+         }
+         if (header.nonce == null || header.nonce.length != NONCE_LENGTH) {
+            throw new Header.DeserializeException("nonce is invalid, file may be corrupt");
+         }
+
+         this.chunk_size = header.chunk_size;
+         this.compression = header.compression;
+         this.cryptor = cryptor;
+         this.session = Cryptor.SessionCache.session(cryptor, secrets);
+         this.secrets = secrets;
+         this.nonce = header.nonce;
+         this.tag_key = deriveTagKey(secrets);
+         this.digest_key = deriveDigestKey(secrets);
+         this.digests = header.digests;
+         this.index_entry_length = INDEX_ENTRY_LENGTH + (header.digests ? DIGEST_LENGTH : 0);
+
+         if (this.session instanceof Cryptor.Authenticated.Session) {
+            this.ciphertext_size = ((Cryptor.Authenticated.Session)this.session).sealedLength(this.chunk_size);
+         } else {
+            this.ciphertext_size = this.session.encryptedLength(this.chunk_size);
+         }
+
+         final byte [] tag_key = this.tag_key;
+         this.tag_hmac = new ThreadLocal<Hasher.HmacSha512>() {
+            protected Hasher.HmacSha512 initialValue() {
+               return new Hasher.HmacSha512(tag_key);
+            }
+         };
+
+         final byte [] digest_key = this.digest_key;
+         this.digest_hmac = new ThreadLocal<Hasher.HmacSha512>() {
+            protected Hasher.HmacSha512 initialValue() {
+               return new Hasher.HmacSha512(digest_key);
+            }
+         };
+         return;
+      }
+
+      // The tags use a key of their own rather than the secrets themselves,
+      // so the cryptors and the tags never share a key.
+      private static byte [] deriveTagKey(byte [] secrets) {
+         final byte [] TAG_KEY_LABEL = "### ENCRYPT 2024 CHUNK TAGS ###".getBytes();
+
+         return new Hasher.HmacSha512(secrets).digest(TAG_KEY_LABEL);
+      }
+
+      // Digests are keyed as well, so they don't give away anything about
+      // the plaintext to someone without the password.
+      private static byte [] deriveDigestKey(byte [] secrets) {
+         final byte [] DIGEST_KEY_LABEL = "### ENCRYPT 2024 CHUNK DIGESTS ###".getBytes();
+
+         return new Hasher.HmacSha512(secrets).digest(DIGEST_KEY_LABEL);
+      }
+
+      // Returns the digest of the first 'length' bytes of 'plaintext', or
+      // 'null' if the index doesn't hold digests.  Like the tags, the time
+      // taken counts towards the cipher.
+      public byte [] digest(byte [] plaintext, int length) {
+         if (!this.digests) {
+            return null;
+         }
+
+         long start = System.nanoTime();
+         Hasher.HmacSha512 hmac = this.digest_hmac.get();
+         hmac.update(plaintext, 0, length);
+         byte [] digest = java.util.Arrays.copyOf(hmac.finish(), DIGEST_LENGTH);
+         Metrics.timeSince(Metrics.Timer.Cipher, start);
+         return digest;
+      }
+
+      // Compresses the first 'length' bytes of 'plaintext' if the header asks
+      // for it, then encrypts them as chunk number 'number' and computes its
+      // tag, counting the time taken towards compression and the cipher.
+      // 'digest' is the digest of the plaintext, which is kept with the chunk
+      // for the index.
+      private Sealed seal(long number, byte [] plaintext, int length, byte [] digest) throws java.lang.Exception {
+         if (this.compression == Compression.None) {
+            return this.sealTimed(number, length, plaintext, length, digest);
+         }
+
+         byte [] stored = Buffers.acquire(this.chunk_size);
+         try {
+            long start = System.nanoTime();
+            int stored_length = compress(plaintext, length, stored);
+            Metrics.timeSince(Metrics.Timer.Compress, start);
+
+            if (stored_length == -1) {
+               return this.sealTimed(number, length, plaintext, length, digest);
+            }
+            return this.sealTimed(number, length, stored, stored_length, digest);
+         } finally {
+            Buffers.release(stored);
+         }
+      }
+
+      private Sealed sealTimed(long number, int plaintext_length, byte [] stored, int stored_length, byte [] digest) throws java.lang.Exception {
+         long start = System.nanoTime();
+         try {
+            return this.sealChunk(number, plaintext_length, stored, stored_length, digest);
+         } finally {
+            Metrics.timeSince(Metrics.Timer.Cipher, start);
+         }
+      }
+
+      // Checks the tag of chunk number 'number' then decrypts it, counting the
+      // time taken towards the cipher, then decompresses it if it was
+      // compressed.  The plaintext is returned at the start of a buffer from
+      // the pool which is big enough for a full chunk, and is exactly as long
+      // as the index says.
+      private byte [] open(long number, int plaintext_length, byte [] ciphertext, int ciphertext_length, byte [] tag) throws java.lang.Exception {
+         byte [] stored = Buffers.acquire(this.chunk_size);
+         int stored_length;
+         long start = System.nanoTime();
+         try {
+            stored_length = this.openChunk(number, plaintext_length, ciphertext, ciphertext_length, tag, stored);
+         } catch (java.lang.Exception e) {
+            Buffers.release(stored);
+            throw e;
+         } finally {
+            Metrics.timeSince(Metrics.Timer.Cipher, start);
+         }
+
+         if (stored_length == plaintext_length) {
+            return stored;
+         }
+         if (this.compression == Compression.None) {
+            Buffers.release(stored);
+            throw new CorruptException(String.format("chunk %d has the wrong length, file may be corrupt", number));
+         }
+
+         byte [] plaintext = Buffers.acquire(this.chunk_size);
+         start = System.nanoTime();
+         try {
+            if (!decompress(stored, stored_length, plaintext, plaintext_length)) {
+               Buffers.release(plaintext);
+               throw new CorruptException(String.format("chunk %d failed to decompress, file may be corrupt", number));
+            }
+         } finally {
+            Buffers.release(stored);
+            Metrics.timeSince(Metrics.Timer.Compress, start);
+         }
+
+         return plaintext;
+      }
+
+      // Authenticated algorithms produce the tag themselves, so the chunk
+      // doesn't have to be hashed a second time.  Everything else goes
+      // through the session, which already has the key set up.
+      //
+      // 'stored' is what actually gets encrypted, which is the plaintext
+      // itself unless it was compressed.  The tag always covers the length of
+      // the plaintext.
+      //
+      // Chunks are encrypted into buffers from the pool which are big enough
+      // for a full chunk, so the last chunk of a file can use them too.
+      // Whoever writes the chunk out gives the buffer back to the pool.
+      private Sealed sealChunk(long number, int plaintext_length, byte [] stored, int stored_length, byte [] digest) throws java.lang.Exception {
+         byte [] ciphertext = Buffers.acquire(this.ciphertext_size);
+
+         if (this.session instanceof Cryptor.Authenticated.Session) {
+            Cryptor.Authenticated.Session session = (Cryptor.Authenticated.Session)this.session;
+            byte [] tag = new byte [TAG_LENGTH];
+            session.seal(stored, stored_length, this.associated(number, plaintext_length), ciphertext, tag);
+            return new Sealed(plaintext_length, ciphertext, session.sealedLength(stored_length), tag, digest);
+         }
+
+         int ciphertext_length;
+         if (this.cryptor instanceof Cryptor.Transform) {
+            ((Cryptor.Transform)this.cryptor).encrypt(stored, 0, stored_length, ciphertext, 0, this.secrets);
+            ciphertext_length = stored_length;
+         } else {
+            java.nio.ByteBuffer output = java.nio.ByteBuffer.wrap(ciphertext);
+            this.session.encrypt(java.nio.ByteBuffer.wrap(stored, 0, stored_length), output);
+            ciphertext_length = output.position();
+         }
+
+         return new Sealed(plaintext_length, ciphertext, ciphertext_length, this.chunkTag(number, plaintext_length, ciphertext, ciphertext_length), digest);
+      }
+
+      // Checks and decrypts the first 'ciphertext_length' bytes of
+      // 'ciphertext' into 'stored', which is big enough for a full chunk.
+      // Returns the length of the decrypted data, which is the plaintext
+      // length in the index unless the chunk was compressed.  Anything which
+      // comes out longer is corrupt.
+      private int openChunk(long number, int plaintext_length, byte [] ciphertext, int ciphertext_length, byte [] tag, byte [] stored) throws java.lang.Exception {
+         if (this.session instanceof Cryptor.Authenticated.Session) {
+            Cryptor.Authenticated.Session session = (Cryptor.Authenticated.Session)this.session;
+            if (ciphertext_length < session.sealedLength(0) || ciphertext_length > session.sealedLength(plaintext_length)) {
+               throw new CorruptException(String.format("chunk %d has the wrong length, file may be corrupt", number));
+            }
+
+            try {
+               return session.open(ciphertext, ciphertext_length, this.associated(number, plaintext_length), tag, stored);
+            } catch (Cryptor.DecryptException e) {
+               throw new CorruptException(String.format("chunk %d failed authentication, file may be corrupt or tampered with", number));
+            }
+         }
+
+         if (!java.security.MessageDigest.isEqual(tag, this.chunkTag(number, plaintext_length, ciphertext, ciphertext_length))) {
+            throw new CorruptException(String.format("chunk %d failed authentication, file may be corrupt or tampered with", number));
+         }
+
+         if (this.cryptor instanceof Cryptor.Transform) {
+            if (ciphertext_length > plaintext_length) {
+               throw new CorruptException(String.format("chunk %d has the wrong length, file may be corrupt", number));
+            }
+
+            ((Cryptor.Transform)this.cryptor).decrypt(ciphertext, 0, ciphertext_length, stored, 0, this.secrets);
+            return ciphertext_length;
+         }
+
+         // The output is limited to the length in the index, so anything
+         // longer can't fit.
+         java.nio.ByteBuffer output = java.nio.ByteBuffer.wrap(stored, 0, plaintext_length);
+         try {
+            this.session.decrypt(java.nio.ByteBuffer.wrap(ciphertext, 0, ciphertext_length), output);
+         } catch (java.nio.BufferOverflowException e) {
+            throw new CorruptException(String.format("chunk %d has the wrong length, file may be corrupt", number));
+         }
+
+         return output.position();
+      }
+
+      // What gets authenticated along with the ciphertext of a chunk, which
+      // ties the chunk to its place in this particular file.
+      private byte [] associated(long number, int plaintext_length) {
+         return java.nio.ByteBuffer.allocate(NONCE_LENGTH + 1 + 8 + 4).put(this.nonce).put(DOMAIN_CHUNK).putLong(number).putInt(plaintext_length).array();
+      }
+
+      // Compresses the first 'length' bytes of 'plaintext' into 'stored'.
+      // Returns the compressed length, or -1 if it wouldn't be any shorter,
+      // in which case the chunk is stored as it is.
+      private static int compress(byte [] plaintext, int length, byte [] stored) {
+         java.util.zip.Deflater deflater = DEFLATER.get();
+         try {
+            deflater.setInput(plaintext, 0, length);
+            deflater.finish();
+
+            // Anything not strictly shorter would look like an uncompressed
+            // chunk when it's decrypted.
+            int limit = length - 1;
+            int stored_length = 0;
+            while (!deflater.finished() && stored_length < limit) {
+               stored_length += deflater.deflate(stored, stored_length, limit - stored_length);
+            }
+
+            return deflater.finished() ? stored_length : -1;
+         } finally {
+            deflater.reset();
+         }
+      }
+
+      // Decompresses the first 'stored_length' bytes of 'stored' into
+      // 'plaintext'.  Returns false unless it comes out as exactly
+      // 'plaintext_length' bytes with nothing left over.
+      private static boolean decompress(byte [] stored, int stored_length, byte [] plaintext, int plaintext_length) {
+         java.util.zip.Inflater inflater = INFLATER.get();
+         try {
+            inflater.setInput(stored, 0, stored_length);
+
+            int length = 0;
+            while (!inflater.finished() && length < plaintext_length) {
+               int count = inflater.inflate(plaintext, length, plaintext_length - length);
+               if (count == 0 && !inflater.finished()) {
+                  return false;
+               }
+               length += count;
+            }
+
+            return inflater.finished() && length == plaintext_length && inflater.getRemaining() == 0;
+         } catch (java.util.zip.DataFormatException e) {
+            return false;
+         } finally {
+            inflater.reset();
+         }
+      }
+
+      private byte [] chunkTag(long number, int plaintext_length, byte [] ciphertext, int ciphertext_length) {
+         byte [] associated = this.associated(number, plaintext_length);
+
+         Hasher.HmacSha512 hmac = this.tag_hmac.get();
+         hmac.update(associated, 0, associated.length);
+         hmac.update(ciphertext, 0, ciphertext_length);
+         return java.util.Arrays.copyOf(hmac.finish(), TAG_LENGTH);
+      }
+
+      private byte [] indexTag(byte [] entries) {
+         Hasher.HmacSha512 hmac = new Hasher.HmacSha512(this.tag_key);
+         hmac.update(this.nonce, 0, this.nonce.length);
+         hmac.update(new byte [] {DOMAIN_INDEX}, 0, 1);
+         hmac.update(entries, 0, entries.length);
+         return java.util.Arrays.copyOf(hmac.finish(), TAG_LENGTH);
+      }
+   }
+
+   // Encrypts everything written to it into chunks, writing the index once
+   // it's closed.  Closing also closes the underlying stream.
+   //
+   // This runs as a pipeline, so reading the input, encrypting and writing
+   // the output all happen at once.  The thread calling 'write' fills chunks
+   // from a ring of reusable buffers, full chunks are encrypted on the common
+   // fork-join pool, and a writer thread writes them out in order.  The queue
+   // between them is bounded, so if the output can't keep up, 'write' blocks
+   // rather than piling up encrypted chunks in memory.
+   //
+   // If there's an earlier version of the file, chunks whose digest matches
+   // are copied from it instead of being encrypted, still on the pool.
+   public static class Writer extends java.io.OutputStream {
+      private final java.io.OutputStream output;
+      private final Codec codec;
+      private final Previous previous;                      // earlier version of the file or 'null'
+      private final java.util.concurrent.ArrayBlockingQueue<byte []> free;                                    // buffers ready to be filled
+      private final java.util.concurrent.ArrayBlockingQueue<java.util.concurrent.Future<Sealed>> queue;       // chunks waiting to be written, in order
+      private final Thread writer;
+      private volatile java.lang.Throwable failure;
+      private volatile boolean aborted;                     // whether to stop without writing the index
+      private boolean finished;                             // whether the underlying stream has been closed
+      private byte [] chunk;                                // chunk being filled
+      private int chunk_length;
+      private long chunk_count;
+      private boolean ended;                                // whether the end of the data has been queued
+      private boolean closed;
+
+      public Writer(java.io.OutputStream output, Codec codec) {
+         this(output, codec, null);
+         return;
+      }
+
+      // Same as above, but copies unchanged chunks from 'previous', which must
+      // have been written with the same header.
+      public Writer(java.io.OutputStream output, Codec codec, Previous previous) {
+         this.output = output;
+         this.codec = codec;
+         this.previous = previous;
+         this.free = new java.util.concurrent.ArrayBlockingQueue<byte []>(PIPELINE_BUFFERS);
+         this.queue = new java.util.concurrent.ArrayBlockingQueue<java.util.concurrent.Future<Sealed>>(PIPELINE_DEPTH);
+         this.failure = null;
+         this.aborted = false;
+         this.finished = false;
+         this.chunk_length = 0;
+         this.chunk_count = 0;
+         this.ended = false;
+         this.closed = false;
+
+         for (int i = 0; i < PIPELINE_BUFFERS; ++i) {
+            this.free.add(Buffers.acquire(codec.chunk_size));
+         }
+         this.chunk = this.free.poll();
+
+         this.writer = new Thread() {
+            public void run() {
+               drain();
+               return;
+            }
+         };
+         this.writer.setDaemon(true);
+         this.writer.start();
+         return;
+      }
+
+      public void write(int b) throws java.io.IOException {
+         this.write(new byte [] {(byte)b}, 0, 1);
+         return;
+      }
+
+      public void write(byte [] data, int offset, int length) throws java.io.IOException {
+         while (length > 0) {
+            int count = Math.min(length, this.chunk.length - this.chunk_length);
+            System.arraycopy(data, offset, this.chunk, this.chunk_length, count);
+            this.chunk_length += count;
+            offset += count;
+            length -= count;
+
+            if (this.chunk_length == this.chunk.length) {
+               this.submit(this.chunk, this.chunk_length);
+               this.chunk = this.take(this.free);
+               this.chunk_length = 0;
+            }
+         }
+
+         return;
+      }
+
+      public void close() throws java.io.IOException {
+         if (this.closed) {
+            return;
+         }
+         this.closed = true;
+
+         if (this.chunk_length != 0) {
+            this.submit(this.chunk, this.chunk_length);
+            this.chunk = null;
+         }
+         this.end();
+
+         try {
+            this.writer.join();
+         } catch (java.lang.InterruptedException e) {
+            throw new java.io.InterruptedIOException();
+         }
+
+         this.releaseRing();
+         this.finished = true;
+         try {
+            this.checkFailure();
+         } finally {
+            this.output.close();
+         }
+
+         return;
+      }
+
+      // Stops without writing the index, for when the rest of the data isn't
+      // coming.  Waits for the chunks already queued, gives every buffer back
+      // to the pool and closes the underlying stream.  Also cleans up after a
+      // 'write' or 'close' which failed part way through, and does nothing
+      // once 'close' has finished.
+      public void abort() throws java.io.IOException {
+         if (this.finished) {
+            return;
+         }
+         this.finished = true;
+         this.closed = true;
+         this.aborted = true;
+
+         try {
+            this.end();
+            this.writer.join();
+         } catch (java.lang.InterruptedException e) {
+            throw new java.io.InterruptedIOException();
+         } finally {
+            this.output.close();
+         }
+
+         this.releaseRing();
+         return;
+      }
+
+      // Gives the ring back to the pool once the writer thread is done.  The
+      // writer thread waits for every queued chunk, so by then every buffer
+      // is back in the ring.
+      private void releaseRing() {
+         if (this.chunk != null) {
+            Buffers.release(this.chunk);
+            this.chunk = null;
+         }
+         for (byte [] buffer = this.free.poll(); buffer != null; buffer = this.free.poll()) {
+            Buffers.release(buffer);
+         }
+
+         return;
+      }
+
+      // Starts encrypting the first 'length' bytes of 'plaintext' and queues
+      // them to be written.  The buffer goes back into the ring once it's
+      // encrypted.
+      private void submit(final byte [] plaintext, final int length) throws java.io.IOException {
+         final long number = this.chunk_count;
+         this.chunk_count += 1;
+
+         this.put(java.util.concurrent.ForkJoinPool.commonPool().submit(new java.util.concurrent.Callable<Sealed>() {
+            public Sealed call() throws java.lang.Exception {
+               try {
+                  byte [] digest = codec.digest(plaintext, length);
+                  if (previous != null) {
+                     Sealed unchanged = previous.reuse(number, length, digest);
+                     if (unchanged != null) {
+                        return unchanged;
+                     }
+                  }
+
+                  return codec.seal(number, plaintext, length, digest);
+               } finally {
+                  free.offer(plaintext);
+               }
+            }
+         }));
+         return;
+      }
+
+      // Runs on the writer thread, writing chunks in order until the end of
+      // the data, then the index.  If anything fails or the writer is
+      // aborted, the rest of the queue is still drained so 'write' never
+      // blocks forever, and the chunks are discarded once they're done.
+      private void drain() {
+         java.util.ArrayList<Chunk> index = new java.util.ArrayList<Chunk>();
+         long offset = 0;
+
+         byte [] frame_header = new byte [FRAME_HEADER_LENGTH];
+         while (true) {
+            java.util.concurrent.Future<Sealed> future;
+            try {
+               future = this.queue.take();
+            } catch (java.lang.InterruptedException e) {
+               this.failure = e;
+               return;
+            }
+            if (future == END_SEALED) {
+               break;
+            }
+            if (this.failure != null || this.aborted) {
+               discard(future);
+               continue;
+            }
+
+            try {
+               Sealed chunk = await(future);
+
+               java.nio.ByteBuffer.wrap(frame_header).putInt(chunk.plaintext_length).putInt(chunk.ciphertext_length);
+               this.output.write(frame_header);
+               this.output.write(chunk.ciphertext, 0, chunk.ciphertext_length);
+               this.output.write(chunk.tag);
+               Buffers.release(chunk.ciphertext);
+
+               index.add(new Chunk(offset, chunk.plaintext_length, chunk.tag, chunk.digest));
+               offset += FRAME_HEADER_LENGTH + chunk.ciphertext_length + TAG_LENGTH;
+            } catch (java.lang.Throwable e) {
+               this.failure = e;
+            }
+         }
+
+         if (this.failure != null || this.aborted) {
+            return;
+         }
+
+         try {
+            java.nio.ByteBuffer entries = java.nio.ByteBuffer.allocate(index.size() * this.codec.index_entry_length);
+            for (Chunk chunk : index) {
+               entries.putLong(chunk.offset).putInt(chunk.plaintext_length).put(chunk.tag);
+               if (this.codec.digests) {
+                  entries.put(chunk.digest);
+               }
+            }
+
+            java.nio.ByteBuffer trailer = java.nio.ByteBuffer.allocate(TRAILER_LENGTH);
+            trailer.putLong(offset + FRAME_HEADER_LENGTH).putInt(index.size()).put(MAGIC_TRAILER);
+
+            this.output.write(new byte [FRAME_HEADER_LENGTH]);
+            this.output.write(entries.array());
+            this.output.write(this.codec.indexTag(entries.array()));
+            this.output.write(trailer.array());
+            this.output.flush();
+         } catch (java.lang.Throwable e) {
+            this.failure = e;
+         }
+
+         return;
+      }
+
+      // Waits for a chunk which won't be written and gives its buffer back.
+      private static void discard(java.util.concurrent.Future<Sealed> future) {
+         try {
+            Buffers.release(await(future).ciphertext);
+         } catch (java.lang.Throwable e) {
+            // It was never going to be written anyway.
+         }
+
+         return;
+      }
+
+      private void put(java.util.concurrent.Future<Sealed> future) throws java.io.IOException {
+         this.checkFailure();
+         try {
+            this.queue.put(future);
+         } catch (java.lang.InterruptedException e) {
+            throw new java.io.InterruptedIOException();
+         }
+
+         return;
+      }
+
+      private byte [] take(java.util.concurrent.ArrayBlockingQueue<byte []> queue) throws java.io.IOException {
+         try {
+            return queue.take();
+         } catch (java.lang.InterruptedException e) {
+            throw new java.io.InterruptedIOException();
+         }
+      }
+
+      // Rethrows anything which went wrong on the writer thread.
+      private void checkFailure() throws java.io.IOException {
+         java.lang.Throwable failure = this.failure;
+         if (failure == null) {
+            return;
+         }
+
+         // Let the writer thread finish up, since nothing else will be
+         // written.
+         this.closed = true;
+         this.end();
+
+         throw asIOException(failure);
+      }
+
+      // Queues the end of the data.  The writer thread keeps draining the
+      // queue even after a failure, so this never blocks for long.
+      private void end() throws java.io.IOException {
+         if (this.ended) {
+            return;
+         }
+         this.ended = true;
+
+         try {
+            this.queue.put(END_SEALED);
+         } catch (java.lang.InterruptedException e) {
+            throw new java.io.InterruptedIOException();
+         }
+
+         return;
+      }
+   }
+
+   // Decrypts the chunks read from a stream in order.  The index at the end is
+   // checked against the chunks which were read, so a truncated file is an
+   // error rather than silently coming out short.
+   //
+   // Like the writer, this runs as a pipeline.  A reader thread reads frames
+   // ahead of time and hands them to the common fork-join pool to decrypt,
+   // while 'read' hands out the decrypted chunks in order.  The queue between
+   // them is bounded, so the reader thread waits if 'read' falls behind.
+   public static class Reader extends java.io.InputStream {
+      private final java.io.DataInputStream input;
+      private final Codec codec;
+      private final java.util.concurrent.ArrayBlockingQueue<java.util.concurrent.Future<Opened>> queue;    // decrypted chunks, in order
+      private final Thread reader;
+      private byte [] current;
+      private int current_offset;
+      private int current_length;         // length of the plaintext in 'current'
+      private boolean finished;
+      private volatile boolean closed;
+
+      public Reader(java.io.InputStream input, Codec codec) {
+         this.input = new java.io.DataInputStream(input);
+         this.codec = codec;
+         this.queue = new java.util.concurrent.ArrayBlockingQueue<java.util.concurrent.Future<Opened>>(PIPELINE_DEPTH);
+         this.current = null;
+         this.current_offset = 0;
+         this.current_length = 0;
+         this.finished = false;
+         this.closed = false;
+
+         this.reader = new Thread() {
+            public void run() {
+               fill();
+               return;
+            }
+         };
+         this.reader.setDaemon(true);
+         this.reader.start();
+         return;
+      }
+
+      public int read() throws java.io.IOException {
+         byte [] b = new byte [1];
+         if (this.read(b, 0, 1) == -1) {
+            return -1;
+         }
+
+         return b[0] & 0xff;
+      }
+
+      public int read(byte [] data, int offset, int length) throws java.io.IOException {
+         if (length == 0) {
+            return 0;
+         }
+
+         while (this.current_offset == this.current_length) {
+            if (this.finished) {
+               return -1;
+            }
+
+            // The chunk which was just used up goes back to the pool.
+            if (this.current != null) {
+               Buffers.release(this.current);
+               this.current = null;
+            }
+
+            java.util.concurrent.Future<Opened> future;
+            try {
+               future = this.queue.take();
+            } catch (java.lang.InterruptedException e) {
+               throw new java.io.InterruptedIOException();
+            }
+            if (future == END_OPENED) {
+               this.finished = true;
+               return -1;
+            }
+
+            Opened chunk;
+            try {
+               chunk = await(future);
+            } catch (java.lang.Throwable e) {
+               this.finished = true;
+               throw asIOException(e);
+            }
+            this.current = chunk.plaintext;
+            this.current_offset = 0;
+            this.current_length = chunk.plaintext_length;
+         }
+
+         int count = Math.min(length, this.current_length - this.current_offset);
+         System.arraycopy(this.current, this.current_offset, data, offset, count);
+         this.current_offset += count;
+         return count;
+      }
+
+      // Stops the reader thread and gives back every decrypted chunk which
+      // wasn't read, so closing part way through doesn't leave the thread
+      // waiting on the queue forever.
+      public void close() throws java.io.IOException {
+         if (this.closed) {
+            return;
+         }
+         this.closed = true;
+
+         this.reader.interrupt();
+         this.discardQueue();
+         if (this.current != null) {
+            Buffers.release(this.current);
+            this.current = null;
+         }
+
+         this.input.close();
+         return;
+      }
+
+      // Gives back everything in the queue.  Both 'close' and the reader
+      // thread call this, whichever gets there last, so nothing queued after
+      // 'close' is left behind either.
+      private void discardQueue() {
+         for (java.util.concurrent.Future<Opened> future = this.queue.poll(); future != null; future = this.queue.poll()) {
+            if (future == END_OPENED) {
+               continue;
+            }
+
+            try {
+               Buffers.release(await(future).plaintext);
+            } catch (java.lang.Throwable e) {
+               // Nobody is going to read it.
+            }
+         }
+
+         return;
+      }
+
+      // Runs on the reader thread, reading frames and starting to decrypt
+      // them until the end of the data.  Anything which goes wrong is passed
+      // along the queue so 'read' throws it in the right place.
+      private void fill() {
+         try {
+            java.util.ArrayList<Chunk> index = new java.util.ArrayList<Chunk>();
+            long offset = 0;
+
+            while (true) {
+               int plaintext_length;
+               int ciphertext_length;
+               try {
+                  plaintext_length = this.input.readInt();
+                  ciphertext_length = this.input.readInt();
+               } catch (java.io.EOFException e) {
+                  throw new CorruptException("data is truncated, file may be corrupt");
+               }
+
+               if (plaintext_length == 0 && ciphertext_length == 0) {
+                  this.readIndex(index, offset + FRAME_HEADER_LENGTH);
+                  break;
+               }
+               if (plaintext_length < 0 || plaintext_length > this.codec.chunk_size || ciphertext_length < 0 || ciphertext_length > this.codec.ciphertext_size) {
+                  throw new CorruptException("chunk frame is invalid, file may be corrupt");
+               }
+
+               final byte [] ciphertext = Buffers.acquire(this.codec.ciphertext_size);
+               final int ciphertext_bytes = ciphertext_length;
+               final byte [] tag = new byte [TAG_LENGTH];
+               try {
+                  this.input.readFully(ciphertext, 0, ciphertext_length);
+                  this.input.readFully(tag);
+               } catch (java.io.EOFException e) {
+                  Buffers.release(ciphertext);
+                  throw new CorruptException("data is truncated, file may be corrupt");
+               } catch (java.io.IOException e) {
+                  Buffers.release(ciphertext);
+                  throw e;
+               }
+
+               final long number = index.size();
+               final Chunk chunk = new Chunk(offset, plaintext_length, tag, null);
+               index.add(chunk);
+               offset += FRAME_HEADER_LENGTH + ciphertext_length + TAG_LENGTH;
+
+               this.put(java.util.concurrent.ForkJoinPool.commonPool().submit(new java.util.concurrent.Callable<Opened>() {
+                  public Opened call() throws java.lang.Exception {
+                     try {
+                        return new Opened(codec.open(number, chunk.plaintext_length, ciphertext, ciphertext_bytes, chunk.tag), chunk.plaintext_length);
+                     } finally {
+                        Buffers.release(ciphertext);
+                     }
+                  }
+               }));
+            }
+
+            this.put(END_OPENED);
+         } catch (java.lang.InterruptedException e) {
+            // 'close' was called, so nobody is reading any more.
+            return;
+         } catch (java.lang.Throwable e) {
+            java.util.concurrent.CompletableFuture<Opened> failed = new java.util.concurrent.CompletableFuture<Opened>();
+            failed.completeExceptionally(e);
+            try {
+               this.put(failed);
+            } catch (java.lang.InterruptedException e_interrupted) {
+               return;
+            }
+         }
+
+         return;
+      }
+
+      // Queues 'future' for 'read'.  If 'close' has already been called, it
+      // won't be read, so it's given back straight away.  A chunk which can't
+      // be queued because the thread was interrupted is given back too.
+      private void put(java.util.concurrent.Future<Opened> future) throws java.lang.InterruptedException {
+         try {
+            this.queue.put(future);
+         } catch (java.lang.InterruptedException e) {
+            this.queue.offer(future);
+            this.discardQueue();
+            throw e;
+         }
+
+         if (this.closed) {
+            this.discardQueue();
+         }
+
+         return;
+      }
+
+      // Reads the index and trailer after the last chunk and checks they
+      // match the chunks which were read.
+      private void readIndex(java.util.ArrayList<Chunk> index, long index_offset_expected) throws java.io.IOException {
+         byte [] entries = new byte [index.size() * this.codec.index_entry_length];
+         byte [] index_tag = new byte [TAG_LENGTH];
+         byte [] trailer = new byte [TRAILER_LENGTH];
+         try {
+            this.input.readFully(entries);
+            this.input.readFully(index_tag);
+            this.input.readFully(trailer);
+         } catch (java.io.EOFException e) {
+            throw new CorruptException("chunk index is truncated, file may be corrupt");
+         }
+
+         java.nio.ByteBuffer trailer_buffer = java.nio.ByteBuffer.wrap(trailer);
+         long index_offset = trailer_buffer.getLong();
+         int index_count = trailer_buffer.getInt();
+         if (index_offset != index_offset_expected || index_count != index.size() || trailer_buffer.get() != MAGIC_TRAILER_UPPER || trailer_buffer.get() != MAGIC_TRAILER_LOWER) {
+            throw new CorruptException("chunk index doesn't match the data, file may be corrupt");
+         }
+         if (!java.security.MessageDigest.isEqual(index_tag, this.codec.indexTag(entries))) {
+            throw new CorruptException("chunk index failed authentication, file may be corrupt or tampered with");
+         }
+
+         java.nio.ByteBuffer entries_buffer = java.nio.ByteBuffer.wrap(entries);
+         byte [] tag = new byte [TAG_LENGTH];
+         for (Chunk chunk : index) {
+            long offset = entries_buffer.getLong();
+            int plaintext_length = entries_buffer.getInt();
+            entries_buffer.get(tag);
+
+            // The digests can't be checked without hashing the plaintext
+            // again.  They're covered by the index tag anyway.
+            if (this.codec.digests) {
+               entries_buffer.position(entries_buffer.position() + DIGEST_LENGTH);
+            }
+            if (offset != chunk.offset || plaintext_length != chunk.plaintext_length || !java.util.Arrays.equals(tag, chunk.tag)) {
+               throw new CorruptException("chunk index doesn't match the data, file may be corrupt");
+            }
+         }
+
+         return;
+      }
+   }
+
+   // The chunk index of a file, read by seeking to the end of it.  This lets
+   // any chunk be found and decrypted without reading the ones before it.
+   public static class Index {
+      public final java.util.ArrayList<Chunk> chunks;
+      public final long length;        // total length of the plaintext
+
+      private final long [] starts;    // offset of each chunk in the plaintext
+      private final long frames_end;   // offset of the end of the last frame from the start of the data
+
+      private Index(java.util.ArrayList<Chunk> chunks, long frames_end) {
+         this.chunks = chunks;
+         this.starts = new long [chunks.size()];
+         this.frames_end = frames_end;
+
+         long length = 0;
+         for (int i = 0; i < chunks.size(); ++i) {
+            this.starts[i] = length;
+            length += chunks.get(i).plaintext_length;
+         }
+
+         this.length = length;
+         return;
+      }
+
+      // Reads the index of the data starting at 'data_offset' in 'channel'.
+      public static Index read(java.nio.channels.SeekableByteChannel channel, long data_offset, Codec codec) throws java.lang.Exception {
+         long size = channel.size();
+         if (size - data_offset < FRAME_HEADER_LENGTH + TAG_LENGTH + TRAILER_LENGTH) {
+            throw new CorruptException("chunk index is missing, file may be corrupt");
+         }
+
+         java.nio.ByteBuffer trailer = readFully(channel, size - TRAILER_LENGTH, TRAILER_LENGTH);
+         long index_offset = trailer.getLong();
+         int index_count = trailer.getInt();
+         if (trailer.get() != MAGIC_TRAILER_UPPER || trailer.get() != MAGIC_TRAILER_LOWER) {
+            throw new CorruptException("chunk index is missing, file may be corrupt");
+         }
+
+         long entries_length = (long)index_count * codec.index_entry_length;
+         if (index_count < 0 || index_offset < FRAME_HEADER_LENGTH || data_offset + index_offset + entries_length + TAG_LENGTH + TRAILER_LENGTH != size) {
+            throw new CorruptException("chunk index is invalid, file may be corrupt");
+         }
+
+         java.nio.ByteBuffer entries = readFully(channel, data_offset + index_offset, (int)entries_length + TAG_LENGTH);
+         byte [] entries_bytes = java.util.Arrays.copyOf(entries.array(), (int)entries_length);
+         byte [] index_tag = java.util.Arrays.copyOfRange(entries.array(), (int)entries_length, (int)entries_length + TAG_LENGTH);
+         if (!java.security.MessageDigest.isEqual(index_tag, codec.indexTag(entries_bytes))) {
+            throw new CorruptException("chunk index failed authentication, file may be corrupt or tampered with");
+         }
+
+         java.util.ArrayList<Chunk> chunks = new java.util.ArrayList<Chunk>(index_count);
+         for (int i = 0; i < index_count; ++i) {
+            long offset = entries.getLong();
+            int plaintext_length = entries.getInt();
+            byte [] tag = new byte [TAG_LENGTH];
+            entries.get(tag);
+            byte [] digest = null;
+            if (codec.digests) {
+               digest = new byte [DIGEST_LENGTH];
+               entries.get(digest);
+            }
+            chunks.add(new Chunk(offset, plaintext_length, tag, digest));
+         }
+
+         return new Index(chunks, index_offset - FRAME_HEADER_LENGTH);
+      }
+
+      // Returns the number of the chunk containing 'position' in the
+      // plaintext, which must be less than 'length'.
+      public int find(long position) {
+         int low = 0;
+         int high = this.starts.length - 1;
+         while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (this.starts[middle] <= position) {
+               low = middle;
+            } else {
+               high = middle - 1;
+            }
+         }
+
+         return low;
+      }
+
+      // Returns the offset of chunk 'number' in the plaintext.
+      public long start(int number) {
+         return this.starts[number];
+      }
+
+      // Returns how many bytes of the data chunk 'number' takes up, which is
+      // everything up to the next frame.
+      private long frameLength(int number) {
+         long end = number + 1 < this.chunks.size() ? this.chunks.get(number + 1).offset : this.frames_end;
+         return end - this.chunks.get(number).offset;
+      }
+   }
+
+   // An earlier version of a file, which 'Writer' copies chunks from rather
+   // than encrypting them again wherever the plaintext hasn't changed.  It
+   // must have been written with the same header, so its chunks are still
+   // valid at the same positions in the new version, and with digests so the
+   // plaintext can be compared without decrypting it.  Copied chunks aren't
+   // decrypted, so they're taken on trust as far as the index is.
+   public static class Previous {
+      private final java.nio.channels.FileChannel channel;
+      private final long data_offset;
+      private final Codec codec;
+      private final Index index;
+
+      // Reads the index of the data starting at 'data_offset' in 'channel'.
+      public Previous(java.nio.channels.FileChannel channel, long data_offset, Codec codec) throws java.lang.Exception {
+         if (!codec.digests) {
+            throw new java.lang.IllegalArgumentException("earlier version has no digests");
+         }
+
+         this.channel = channel;
+         this.data_offset = data_offset;
+         this.codec = codec;
+         this.index = Index.read(channel, data_offset, codec);
+         return;
+      }
+
+      // Returns chunk number 'number' as it was, if its plaintext was
+      // 'length' bytes with the digest 'digest'.  Returns 'null' if it's
+      // changed, or if the earlier version didn't have that many chunks.
+      // This is safe to call from multiple threads at once.
+      private Sealed reuse(long number, int length, byte [] digest) throws java.lang.Exception {
+         if (number >= this.index.chunks.size()) {
+            return null;
+         }
+
+         Chunk chunk = this.index.chunks.get((int)number);
+         if (chunk.plaintext_length != length || !java.security.MessageDigest.isEqual(chunk.digest, digest)) {
+            return null;
+         }
+
+         long start = System.nanoTime();
+         java.nio.ByteBuffer frame_header = readFully(this.channel, this.data_offset + chunk.offset, FRAME_HEADER_LENGTH);
+         int plaintext_length = frame_header.getInt();
+         int ciphertext_length = frame_header.getInt();
+         if (plaintext_length != chunk.plaintext_length || ciphertext_length < 0 || ciphertext_length > this.codec.ciphertext_size) {
+            throw new CorruptException("chunk frame doesn't match the index, file may be corrupt");
+         }
+
+         byte [] ciphertext = Buffers.acquire(this.codec.ciphertext_size);
+         try {
+            readFully(this.channel, this.data_offset + chunk.offset + FRAME_HEADER_LENGTH, java.nio.ByteBuffer.wrap(ciphertext, 0, ciphertext_length));
+            java.nio.ByteBuffer tag = readFully(this.channel, this.data_offset + chunk.offset + FRAME_HEADER_LENGTH + ciphertext_length, TAG_LENGTH);
+            if (!java.util.Arrays.equals(tag.array(), chunk.tag)) {
+               throw new CorruptException("chunk frame doesn't match the index, file may be corrupt");
+            }
+         } catch (java.lang.Exception e) {
+            Buffers.release(ciphertext);
+            throw e;
+         }
+         Metrics.timeSince(Metrics.Timer.Read, start);
+         Metrics.count(Metrics.Counter.ChunksReused, 1);
+
+         return new Sealed(length, ciphertext, ciphertext_length, chunk.tag, digest);
+      }
+   }
+
+   // Reads and decrypts chunk 'number' of the data starting at 'data_offset'
+   // in 'channel'.  The plaintext is returned at the start of a buffer from
+   // the pool which is big enough for a full chunk, and its length is the one
+   // in the index.  Give the buffer back with 'Buffers.release' once done.
+   public static byte [] readChunk(java.nio.channels.SeekableByteChannel channel, long data_offset, Codec codec, Index index, int number) throws java.lang.Exception {
+      Chunk chunk = index.chunks.get(number);
+
+      byte [] ciphertext = Buffers.acquire(codec.ciphertext_size);
+      try {
+         int ciphertext_length = readFrame(channel, data_offset, codec, chunk, ciphertext);
+         return codec.open(number, chunk.plaintext_length, ciphertext, ciphertext_length, chunk.tag);
+      } finally {
+         Buffers.release(ciphertext);
+      }
+   }
+
+   // Reads the frame of 'chunk' into 'ciphertext', checking it against the
+   // index.  Returns the length of the ciphertext.
+   private static int readFrame(java.nio.channels.SeekableByteChannel channel, long data_offset, Codec codec, Chunk chunk, byte [] ciphertext) throws java.lang.Exception {
+      java.nio.ByteBuffer frame_header = readFully(channel, data_offset + chunk.offset, FRAME_HEADER_LENGTH);
+      int plaintext_length = frame_header.getInt();
+      int ciphertext_length = frame_header.getInt();
+      if (plaintext_length != chunk.plaintext_length || ciphertext_length < 0 || ciphertext_length > codec.ciphertext_size) {
+         throw new CorruptException("chunk frame doesn't match the index, file may be corrupt");
+      }
+
+      readFully(channel, data_offset + chunk.offset + FRAME_HEADER_LENGTH, java.nio.ByteBuffer.wrap(ciphertext, 0, ciphertext_length));
+      java.nio.ByteBuffer tag = readFully(channel, data_offset + chunk.offset + FRAME_HEADER_LENGTH + ciphertext_length, TAG_LENGTH);
+      if (!java.util.Arrays.equals(tag.array(), chunk.tag)) {
+         throw new CorruptException("chunk frame doesn't match the index, file may be corrupt");
+      }
+
+      return ciphertext_length;
+   }
+
+   // Decrypts all of the data starting at 'data_offset' in 'input', writing
+   // the plaintext to 'output' starting at 'output_offset'.  The index says
+   // where every frame is and where its plaintext goes, so rather than
+   // reading the frames in order like 'Reader', each chunk is read, decrypted
+   // and written at its own position in both files on the common fork-join
+   // pool.  No more than 'PIPELINE_DEPTH' chunks are in flight at once.
+   public static void decrypt(final java.nio.channels.FileChannel input, final long data_offset, final Codec codec, final java.nio.channels.FileChannel output, final long output_offset) throws java.lang.Exception {
+      final Index index = Index.read(input, data_offset, codec);
+      Metrics.count(Metrics.Counter.BytesIn, input.size() - data_offset - index.frames_end);
+
+      java.util.ArrayDeque<java.util.concurrent.Future<Void>> pending = new java.util.ArrayDeque<java.util.concurrent.Future<Void>>();
+      try {
+         for (int i = 0; i < index.chunks.size(); ++i) {
+            if (pending.size() == PIPELINE_DEPTH) {
+               await(pending.removeFirst());
+            }
+
+            final int number = i;
+            pending.addLast(java.util.concurrent.ForkJoinPool.commonPool().submit(new java.util.concurrent.Callable<Void>() {
+               public Void call() throws java.lang.Exception {
+                  decryptChunk(input, data_offset, codec, index, number, output, output_offset + index.start(number));
+                  return null;
+               }
+            }));
+         }
+
+         while (!pending.isEmpty()) {
+            await(pending.removeFirst());
+         }
+      } catch (java.lang.Exception e) {
+         // The chunks still in flight are left to finish, so nothing writes
+         // to the output once the caller thinks we're done with it.
+         for (java.util.concurrent.Future<Void> future : pending) {
+            try {
+               future.get();
+            } catch (java.util.concurrent.ExecutionException e_ignored) {
+            }
+         }
+         throw e;
+      }
+
+      return;
+   }
+
+   // Reads, decrypts and writes chunk 'number' for 'decrypt', writing its
+   // plaintext at 'position' in 'output'.
+   private static void decryptChunk(java.nio.channels.FileChannel input, long data_offset, Codec codec, Index index, int number, java.nio.channels.FileChannel output, long position) throws java.lang.Exception {
+      Chunk chunk = index.chunks.get(number);
+
+      byte [] ciphertext = Buffers.acquire(codec.ciphertext_size);
+      byte [] plaintext;
+      try {
+         long start = System.nanoTime();
+         int ciphertext_length = readFrame(input, data_offset, codec, chunk, ciphertext);
+         Metrics.timeSince(Metrics.Timer.Read, start);
+         Metrics.count(Metrics.Counter.BytesIn, index.frameLength(number));
+
+         plaintext = codec.open(number, chunk.plaintext_length, ciphertext, ciphertext_length, chunk.tag);
+      } finally {
+         Buffers.release(ciphertext);
+      }
+
+      try {
+         long start = System.nanoTime();
+         java.nio.ByteBuffer buffer = java.nio.ByteBuffer.wrap(plaintext, 0, chunk.plaintext_length);
+         while (buffer.hasRemaining()) {
+            output.write(buffer, position + buffer.position());
+         }
+         Metrics.timeSince(Metrics.Timer.Write, start);
+         Metrics.count(Metrics.Counter.BytesOut, chunk.plaintext_length);
+      } finally {
+         Buffers.release(plaintext);
+      }
+
+      return;
+   }
+
+   private static java.nio.ByteBuffer readFully(java.nio.channels.SeekableByteChannel channel, long position, int length) throws java.lang.Exception {
+      return readFully(channel, position, java.nio.ByteBuffer.allocate(length));
+   }
+
+   // Same as above, but fills 'buffer' rather than a new one.
+   private static java.nio.ByteBuffer readFully(java.nio.channels.SeekableByteChannel channel, long position, java.nio.ByteBuffer buffer) throws java.lang.Exception {
+      // FileChannel can read from a position without moving the channel, which
+      // also makes it safe for multiple threads to read at once.
+      if (channel instanceof java.nio.channels.FileChannel) {
+         java.nio.channels.FileChannel file = (java.nio.channels.FileChannel)channel;
+         while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position()) == -1) {
+               throw new CorruptException("data is truncated, file may be corrupt");
+            }
+         }
+      } else {
+         channel.position(position);
+         while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+               throw new CorruptException("data is truncated, file may be corrupt");
+            }
+         }
+      }
+
+      buffer.flip();
+      return buffer;
+   }
+
+   // Waits for 'future', unwrapping the exception if it failed.
+   private static <T> T await(java.util.concurrent.Future<T> future) throws java.lang.Exception {
+      try {
+         return future.get();
+      } catch (java.util.concurrent.ExecutionException e) {
+         // The pool wraps checked exceptions thrown by the tasks in plain
+         // RuntimeExceptions, which would hide what actually went wrong.
+         java.lang.Throwable cause = e.getCause();
+         while (cause.getClass() == java.lang.RuntimeException.class && cause.getCause() != null) {
+            cause = cause.getCause();
+         }
+         if (cause instanceof java.lang.Error) {
+            throw (java.lang.Error)cause;
+         }
+         throw (java.lang.Exception)cause;
+      }
+   }
+
+   // Streams can only throw IOExceptions, so anything else gets wrapped.
+   private static java.io.IOException asIOException(java.lang.Throwable e) {
+      if (e instanceof java.io.IOException) {
+         return (java.io.IOException)e;
+      }
+      if (e instanceof java.lang.Error) {
+         throw (java.lang.Error)e;
+      }
+
+      return new java.io.IOException(e);
+   }
+
+   // The data doesn't match its tags or index.  This is an IOException since
+   // it's thrown from inside the streams above.
+   public static class CorruptException extends java.io.IOException {
+      public CorruptException(String msg) {
+         super(msg);
+      }
+   }
+}
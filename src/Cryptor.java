@@ -1,5 +1,3 @@
-import java.util.Base64;
-import java.io.ByteArrayOutputStream;
 public interface Cryptor {
    // Encrypts the data read from 'input', writing to 'output', deriving the
    // encryption key from 'secrets'.
@@ -9,51 +7,329 @@ public interface Cryptor {
    // encryption key from 'secrets'.
    public void decrypt(java.io.InputStream input, java.io.OutputStream output, byte [] secrets) throws java.lang.Exception;
 
+   // Encrypts the remaining bytes of 'input' as a single message, writing the
+   // result to 'output'.  These work on heap and direct buffers without
+   // copying the data through intermediate arrays.  This is the same as
+   // calling 'encrypt' on 'session(secrets)', so see 'Session' for the
+   // details, and use a session directly when encrypting many messages.
+   public void encrypt(java.nio.ByteBuffer input, java.nio.ByteBuffer output, byte [] secrets) throws java.lang.Exception;
+
+   // Decrypts the remaining bytes of 'input' as a single message, writing the
+   // result to 'output'.  See above.
+   public void decrypt(java.nio.ByteBuffer input, java.nio.ByteBuffer output, byte [] secrets) throws java.lang.Exception;
+
+   // Sets up the key derived from 'secrets' once, returning a session which
+   // can encrypt and decrypt any number of messages with it.
+   public Session session(byte [] secrets) throws java.lang.Exception;
+
+   // A key which has already been set up for an algorithm, such as an
+   // expanded AES key schedule, so encrypting many small messages doesn't
+   // redo that work for every one.  Sessions don't change after they're
+   // created, so a single session can be shared between any number of
+   // threads.  Scratch space is kept per thread, so after the first call on a
+   // thread, encrypting and decrypting don't allocate any buffers.
+   //
+   // Every call encrypts or decrypts one whole message in the same format the
+   // stream entry points use.  All of the remaining bytes of 'input' are
+   // consumed and the result is written to 'output', advancing the position
+   // of both.  Heap and direct buffers are both read and written in place,
+   // and byte order doesn't matter.  'input' and 'output' must not overlap,
+   // except for length-preserving algorithms, which can work in place.
+   // 'output' must have room for the result, which is at most
+   // 'encryptedLength' or 'decryptedLength' bytes, otherwise
+   // BufferOverflowException is thrown before anything is written.  If
+   // anything else is thrown, the positions and contents of both buffers are
+   // unspecified.
+   public static interface Session {
+      // The most bytes 'encrypt' can write for 'length' bytes of plaintext.
+      public int encryptedLength(int length);
+
+      // The most bytes 'decrypt' can write for 'length' bytes of ciphertext.
+      public int decryptedLength(int length);
+
+      public void encrypt(java.nio.ByteBuffer input, java.nio.ByteBuffer output) throws java.lang.Exception;
+
+      public void decrypt(java.nio.ByteBuffer input, java.nio.ByteBuffer output) throws java.lang.Exception;
+   }
+
+   // Least-recently-used cache of sessions, so files sharing a key, such as a
+   // batch or the jobs given to a server, only set the key up once.  Sessions
+   // are keyed on the cryptor and a hash of the secrets so the cache doesn't
+   // hold on to the secrets as a key.  This is safe to use from multiple
+   // threads.
+   public static class SessionCache {
+      // Maximum number of sessions kept.
+      private static final int CAPACITY = 64;
+
+      private static final java.util.LinkedHashMap<java.nio.ByteBuffer, Session> SESSIONS = new java.util.LinkedHashMap<java.nio.ByteBuffer, Session>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(java.util.Map.Entry<java.nio.ByteBuffer, Session> eldest) {
+            return this.size() > CAPACITY;
+         }
+      };
+
+      // Returns a session for 'cryptor' with 'secrets', reusing one from an
+      // earlier file with the same key if there is one.
+      public static Session session(Cryptor cryptor, byte [] secrets) throws java.lang.Exception {
+         byte [] name = cryptor.getClass().getName().getBytes(java.nio.charset.StandardCharsets.UTF_8);
+
+         Hasher.Sha512 hasher = new Hasher.Sha512();
+         hasher.update(name, 0, name.length);
+         hasher.update(new byte [] {0}, 0, 1);
+         hasher.update(secrets, 0, secrets.length);
+         java.nio.ByteBuffer cache_key = java.nio.ByteBuffer.wrap(hasher.finish());
+
+         synchronized (SESSIONS) {
+            Session session = SESSIONS.get(cache_key);
+            if (session != null) {
+               return session;
+            }
+         }
+
+         // Setting up a session is cheap enough that two threads occasionally
+         // doing it at once doesn't matter.
+         Session session = cryptor.session(secrets);
+         synchronized (SESSIONS) {
+            SESSIONS.put(cache_key, session);
+         }
+
+         return session;
+      }
+   }
+
    // A specific algorithm to use for crypto.
    public static enum Algorithm {
-      Plaintext,
-      ConstantOffset,
-      AES256,
+      Plaintext(new Cryptor.Plaintext()),
+      ConstantOffset(new Cryptor.ConstantOffset()),
+      AES256(new Cryptor.AES256()),
+      AES256CTR(new Cryptor.AES256CTR()),
+      AES256GCM(new Cryptor.AES256GCM());
+
+      private final Cryptor cryptor;
+
+      private Algorithm(Cryptor cryptor) {
+         this.cryptor = cryptor;
+         return;
+      }
+
+      // The cryptor for this algorithm, which is shared by every caller.
+      public Cryptor cryptor() {
+         return this.cryptor;
+      }
+   }
+
+   // Algorithms which authenticate the data they encrypt, so any change to the
+   // ciphertext is caught when decrypting.  These work on whole buffers rather
+   // than streams, since the tag has to be checked before any of the plaintext
+   // can be trusted.
+   public static interface Authenticated {
+      // Length of the tags produced by 'seal'.
+      public static final int TAG_SIZE = 16;
+
+      // Encrypts 'plaintext', writing a tag which authenticates both the
+      // ciphertext and 'associated' into 'tag'.  'associated' isn't stored in
+      // the ciphertext, so the same value has to be given to 'open'.
+      public byte [] seal(byte [] plaintext, byte [] associated, byte [] tag, byte [] secrets) throws java.lang.Exception;
+
+      // Checks 'tag' against 'ciphertext' and 'associated', then decrypts
+      // 'ciphertext'.  Throws DecryptException if the tag doesn't match.
+      public byte [] open(byte [] ciphertext, byte [] associated, byte [] tag, byte [] secrets) throws java.lang.Exception;
+
+      // Sessions for these algorithms can also seal and open with the key
+      // they already hold.
+      public static interface Session extends Cryptor.Session {
+         public byte [] seal(byte [] plaintext, byte [] associated, byte [] tag) throws java.lang.Exception;
+
+         public byte [] open(byte [] ciphertext, byte [] associated, byte [] tag) throws java.lang.Exception;
+
+         // Length of the ciphertext 'seal' produces from 'length' bytes of
+         // plaintext.
+         public int sealedLength(int length);
+
+         // Same as above, but working on the first 'length' bytes of the
+         // input and writing into an array given by the caller, so buffers
+         // can be reused.  'ciphertext' must have room for at least
+         // 'sealedLength(length)' bytes.
+         public void seal(byte [] plaintext, int length, byte [] associated, byte [] ciphertext, byte [] tag) throws java.lang.Exception;
+
+         // Returns the length of the plaintext written into 'plaintext'.
+         // Throws DecryptException if it doesn't fit.
+         public int open(byte [] ciphertext, int length, byte [] associated, byte [] tag, byte [] plaintext) throws java.lang.Exception;
+      }
    }
 
-   public static class Plaintext implements Cryptor {
+   // Base for algorithms where every output byte depends only on the input
+   // byte in the same position, which means the ciphertext is the same length
+   // as the plaintext and any range of the data can be transformed on its own.
+   // These expose buffer-level entry points which work on whole arrays at a
+   // time, and the stream entry points move data through a single reusable
+   // buffer instead of going byte-by-byte.
+   public static abstract class Transform implements Cryptor {
+      // Size of the buffer used by the stream entry points.
+      public static final int BUFFER_SIZE = 64 * 1024;
+
+      // Encrypts 'length' bytes from 'input' starting at 'input_offset',
+      // writing them to 'output' starting at 'output_offset'.  'input' and
+      // 'output' may be the same array.
+      public abstract void encrypt(byte [] input, int input_offset, int length, byte [] output, int output_offset, byte [] secrets);
+
+      // Decrypts 'length' bytes from 'input' starting at 'input_offset',
+      // writing them to 'output' starting at 'output_offset'.  'input' and
+      // 'output' may be the same array.
+      public abstract void decrypt(byte [] input, int input_offset, int length, byte [] output, int output_offset, byte [] secrets);
+
+      // Encrypts the remaining bytes of 'input' into 'output', advancing the
+      // position of both.  These work on heap and direct buffers, which lets
+      // memory-mapped files be transformed without copying them into arrays.
+      // 'output' must have at least as many bytes remaining as 'input'.
+      public abstract void encrypt(java.nio.ByteBuffer input, java.nio.ByteBuffer output, byte [] secrets);
+
+      // Decrypts the remaining bytes of 'input' into 'output', advancing the
+      // position of both.  'output' must have at least as many bytes remaining
+      // as 'input'.
+      public abstract void decrypt(java.nio.ByteBuffer input, java.nio.ByteBuffer output, byte [] secrets);
+
       public void encrypt(java.io.InputStream input, java.io.OutputStream output, byte [] secrets) throws java.lang.Exception {
-         int content = input.read();
-         while(content!=-1){
-            output.write(content);
-            content = input.read();
+         byte [] buffer = Buffers.acquire(BUFFER_SIZE);
+         try {
+            int length;
+            while ((length = input.read(buffer, 0, BUFFER_SIZE)) != -1) {
+               encrypt(buffer, 0, length, buffer, 0, secrets);
+               output.write(buffer, 0, length);
+            }
+         } finally {
+            Buffers.release(buffer);
          }
+
          return;
       }
 
       public void decrypt(java.io.InputStream input, java.io.OutputStream output, byte [] secrets) throws java.lang.Exception {
-         int content = input.read();
-         while(content!=-1){
-            output.write(content);
-            content = input.read();
+         byte [] buffer = Buffers.acquire(BUFFER_SIZE);
+         try {
+            int length;
+            while ((length = input.read(buffer, 0, BUFFER_SIZE)) != -1) {
+               decrypt(buffer, 0, length, buffer, 0, secrets);
+               output.write(buffer, 0, length);
+            }
+         } finally {
+            Buffers.release(buffer);
          }
+
          return;
       }
+
+      // There's no key setup for these, so sessions just hold on to a copy of
+      // the secrets and use the buffer entry points directly.
+      public Session session(byte [] secrets) {
+         return new TransformSession(this, secrets.clone());
+      }
+
+      private static class TransformSession implements Session {
+         private final Transform cryptor;
+         private final byte [] secrets;
+
+         public TransformSession(Transform cryptor, byte [] secrets) {
+            this.cryptor = cryptor;
+            this.secrets = secrets;
+            return;
+         }
+
+         public int encryptedLength(int length) {
+            return length;
+         }
+
+         public int decryptedLength(int length) {
+            return length;
+         }
+
+         public void encrypt(java.nio.ByteBuffer input, java.nio.ByteBuffer output) {
+            checkRemaining(output, input.remaining());
+            this.cryptor.encrypt(input, output, this.secrets);
+            return;
+         }
+
+         public void decrypt(java.nio.ByteBuffer input, java.nio.ByteBuffer output) {
+            checkRemaining(output, input.remaining());
+            this.cryptor.decrypt(input, output, this.secrets);
+            return;
+         }
+      }
    }
 
-   public static class ConstantOffset implements Cryptor {
-      public void encrypt(java.io.InputStream input, java.io.OutputStream output, byte [] secrets) throws java.lang.Exception {
-         byte offset = deriveOffset(secrets);
-         int content = input.read();
-         while(content!=-1){
-            output.write(content+offset);
-            content = input.read();
+   public static class Plaintext extends Transform {
+      public void encrypt(byte [] input, int input_offset, int length, byte [] output, int output_offset, byte [] secrets) {
+         copy(input, input_offset, length, output, output_offset);
+         return;
+      }
+
+      public void decrypt(byte [] input, int input_offset, int length, byte [] output, int output_offset, byte [] secrets) {
+         copy(input, input_offset, length, output, output_offset);
+         return;
+      }
+
+      public void encrypt(java.nio.ByteBuffer input, java.nio.ByteBuffer output, byte [] secrets) {
+         copy(input, output);
+         return;
+      }
+
+      public void decrypt(java.nio.ByteBuffer input, java.nio.ByteBuffer output, byte [] secrets) {
+         copy(input, output);
+         return;
+      }
+
+      private static void copy(java.nio.ByteBuffer input, java.nio.ByteBuffer output) {
+         if (input == output) {
+            input.position(input.limit());
+            return;
          }
+
+         output.put(input);
          return;
       }
 
-      public void decrypt(java.io.InputStream input, java.io.OutputStream output, byte [] secrets) throws java.lang.Exception {
-         byte offset = deriveOffset(secrets);
-         int content = input.read();
-         while(content!=-1){
-            output.write(content-offset);
-            content = input.read();
+      private static void copy(byte [] input, int input_offset, int length, byte [] output, int output_offset) {
+         // Transforming in place is the common case, and there's nothing to do.
+         if (input == output && input_offset == output_offset) {
+            return;
          }
+
+         System.arraycopy(input, input_offset, output, output_offset, length);
+         return;
+      }
+   }
+
+   public static class ConstantOffset extends Transform {
+      public void encrypt(byte [] input, int input_offset, int length, byte [] output, int output_offset, byte [] secrets) {
+         Kernels.add(input, input_offset, output, output_offset, length, deriveOffset(secrets));
+         return;
+      }
+
+      public void decrypt(byte [] input, int input_offset, int length, byte [] output, int output_offset, byte [] secrets) {
+         Kernels.add(input, input_offset, output, output_offset, length, (byte)-deriveOffset(secrets));
+         return;
+      }
+
+      public void encrypt(java.nio.ByteBuffer input, java.nio.ByteBuffer output, byte [] secrets) {
+         add(input, output, deriveOffset(secrets));
+         return;
+      }
+
+      public void decrypt(java.nio.ByteBuffer input, java.nio.ByteBuffer output, byte [] secrets) {
+         add(input, output, (byte)-deriveOffset(secrets));
+         return;
+      }
+
+      // Adds 'offset' to every remaining byte of 'input', storing the results
+      // in 'output'.
+      private static void add(java.nio.ByteBuffer input, java.nio.ByteBuffer output, byte offset) {
+         int position_input = input.position();
+         int position_output = output.position();
+         int length = input.remaining();
+
+         Kernels.add(input, position_input, output, position_output, length, offset);
+
+         input.position(position_input + length);
+         output.position(position_output + length);
          return;
       }
 
@@ -67,154 +343,1075 @@ public interface Cryptor {
          return offset;
       }
    }
+
    public static class AES256 implements Cryptor {
-      public void encrypt(java.io.InputStream input, java.io.OutputStream output, byte [] secrets) throws java.lang.Exception{
-         //TODO:
-         /*
-          * better block handling
-          better byte manipulation
-          better bit manipulation
-          functionize everything
-          */
-         int bytesRead = 0;
-         byte[][] stateMatrix = new byte[4][4]; //I'm imagining it as columns x rows
-         //byte[] initialKey = new byte[32]; //32 byte (256 bit) key
-         
-         int N = 8; //length of the key in 32-bit (4-byte) words
-         byte[][] K = new byte[N][4]; //32-bit word index x byte index (32 words with 4 bytes each)
-         for(int i = 0; i<N; i++){
-            for(int j = 0; j<4;j++){
-               K[i][j] = secrets[4*i+j];
-            }
-         }
-         
-         //The Key Schedule (Generating expandedKeys)
-         int R = 15; //number of rounds needed, 15 for 256
-         byte[][] W = new byte[4*R][4]; //W: rounds x keys, each key is a 4x4x8 bit block (128bit)
-         byte[][] rcon = new byte[8][4];
-         byte[] rc = new byte[8];
-         //Round Constant Generation(rcon[1] to rcon[7] for 256)
-         for(int i = 1; i<8;i++){
-            if(i==1){
-               rc[i] = 1;
-            }
-            else if(i>1 && rc[i-1]<128){
-               rc[i] = (byte)(rc[i-1] << 1);
-            }
-            else if(i>1 && rc[i-1]>=128){
-               rc[i] = (byte)((rc[i-1] << 1) ^ 283);
-            }
-            rcon[i][0] = rc[i];
-            for(int j = 1; j<=3; j++){
-               rcon[i][j] = 0;
-            }
-         }
-         //Expanded Key Word Generation
-         for(int i = 0; i<4*R; i++){
-            if(i<N){
-               W[i] = K[i];
-            }
-            else if(i>=N && i%N==0){
-               W[i] = wordXOR(wordXOR(W[i-N], SubWord(RotateWord(W[i-1]))), rcon[i/N]);
-            }
-            else if(i>=N && i%N==4){
-               W[i] = wordXOR(W[i-N], SubWord(W[i-1]));
-            }
-            else{
-               W[i] = wordXOR(W[i-N], W[i-1]);
-            }
-         }
-         //read & encrypt
-         ByteArrayOutputStream out = new ByteArrayOutputStream();
-         while(bytesRead != -1){
-            //Read 1 block to the state matrix (read 4 words columnwise)
-            for(int c = 0; c<4; c++){
-               bytesRead = input.read(stateMatrix[c]);
-            }
-            //Now we have a full 4x4x8 bit block, 128 bits total
-
-            //Traverse 14 rounds, r
-            for(int r = 0; r<=14; r++){
-               if(r>0){
-                  //SubBytes
-                  for(int c = 0; c<4; c++){
-                     for(int i = 0; i<4; i++){
-                        stateMatrix[c][i] = sBox(stateMatrix[c][i]);
-                     }
-                  }
-                  //ShiftRows left circular byte shift each row incrementally
-                  for(int i=1; i<4; i++){
-                     for(int j=0; j<i; j++){
-                        byte tempByte = stateMatrix[0][i];
-                        stateMatrix[0][i] = stateMatrix[1][i];
-                        stateMatrix[1][i] = stateMatrix[2][i];
-                        stateMatrix[2][i] = stateMatrix[3][i];
-                        stateMatrix[3][i] = tempByte;
-                     }
-                  }
-               }
-               if(r>0 && r<14){
-                  //MixColumns
-                  byte[][] matrix_constant = {{2,1,1,3}, {3,2,1,1}, {1,3,2,1}, {1,1,3,2}};
-                  byte[][] new_matrix = new byte[4][4];
-                  for(int j = 0; j<4; j++){
-                     for(int k = 0; k<4; k++){
-                        for(int l = 0; l<4; l++){
-                           new_matrix[j][k] ^= (byte)(matrix_constant[k][l] * stateMatrix[j][k]);
-                        }
-                     }
-                  }
-               }
-               //AddRoundKey
-               for(int c = 0; c<4; c++){
-                  for(int i = 0; i<4; i++){
-                     stateMatrix[c][i] = (byte)(stateMatrix[c][i] ^ W[4*r+c][i]);
-                  }
+      // Ciphertext is read and written in chunks of this many bytes, so memory
+      // use stays constant regardless of the size of the input.  This must be
+      // a multiple of the block size.
+      public static final int CHUNK_SIZE = 64 * 1024;
+
+      // Blocks are encrypted independently with PKCS #7 padding on the last
+      // block, so the ciphertext is always a whole number of blocks and at
+      // least one block longer than a block-aligned plaintext.
+      public void encrypt(java.io.InputStream input, java.io.OutputStream output, byte [] secrets) throws java.lang.Exception {
+         AesEngine engine = new AesEngine(secrets, 0);
+         byte [] chunk = Buffers.acquire(CHUNK_SIZE);
+         try {
+            // Full chunks never need padding, since there's always at least
+            // one more (possibly empty) chunk after them.
+            int length;
+            while ((length = input.readNBytes(chunk, 0, CHUNK_SIZE)) == CHUNK_SIZE) {
+               encryptBlocks(engine, chunk, CHUNK_SIZE);
+               output.write(chunk, 0, CHUNK_SIZE);
+            }
+
+            // The final chunk is always shorter than CHUNK_SIZE, so there's
+            // always room for the padding.
+            int len_padded = (length / AesEngine.BLOCK_SIZE + 1) * AesEngine.BLOCK_SIZE;
+            byte padding = (byte)(len_padded - length);
+            for (int i = length; i < len_padded; ++i) {
+               chunk[i] = padding;
+            }
+
+            encryptBlocks(engine, chunk, len_padded);
+            output.write(chunk, 0, len_padded);
+         } finally {
+            Buffers.release(chunk);
+         }
+
+         return;
+      }
+
+      public void decrypt(java.io.InputStream input, java.io.OutputStream output, byte [] secrets) throws java.lang.Exception {
+         AesEngine engine = new AesEngine(secrets, 0);
+         byte [] chunk = Buffers.acquire(CHUNK_SIZE);
+         try {
+            // We can't tell which block is the last one, and thus has padding,
+            // until we hit the end of the input.  Because of this, the last
+            // block of every full chunk is held back and moved to the front of
+            // the next chunk.
+            int length = 0;
+            while ((length += input.readNBytes(chunk, length, CHUNK_SIZE - length)) == CHUNK_SIZE) {
+               int len_ready = CHUNK_SIZE - AesEngine.BLOCK_SIZE;
+               decryptBlocks(engine, chunk, len_ready);
+               output.write(chunk, 0, len_ready);
+
+               System.arraycopy(chunk, len_ready, chunk, 0, AesEngine.BLOCK_SIZE);
+               length = AesEngine.BLOCK_SIZE;
+            }
+
+            if (length == 0 || length % AesEngine.BLOCK_SIZE != 0) {
+               throw new DecryptException("ciphertext length is invalid, file may be corrupt");
+            }
+
+            decryptBlocks(engine, chunk, length);
+
+            int padding = paddingLength(chunk, length);
+
+            output.write(chunk, 0, length - padding);
+         } finally {
+            Buffers.release(chunk);
+         }
+
+         return;
+      }
+
+      public Session session(byte [] secrets) {
+         return new EcbSession(new AesEngine(secrets, 0));
+      }
+
+      public void encrypt(java.nio.ByteBuffer input, java.nio.ByteBuffer output, byte [] secrets) throws java.lang.Exception {
+         this.session(secrets).encrypt(input, output);
+         return;
+      }
+
+      public void decrypt(java.nio.ByteBuffer input, java.nio.ByteBuffer output, byte [] secrets) throws java.lang.Exception {
+         this.session(secrets).decrypt(input, output);
+         return;
+      }
+
+      // Space for the last block while decrypting, since its padding has to
+      // be checked before we know how much of it to write out.
+      private static final ThreadLocal<java.nio.ByteBuffer> LAST_BLOCK = new ThreadLocal<java.nio.ByteBuffer>() {
+         protected java.nio.ByteBuffer initialValue() {
+            return java.nio.ByteBuffer.allocate(AesEngine.BLOCK_SIZE);
+         }
+      };
+
+      // Blocks are read from and written to the buffers directly.
+      private static class EcbSession implements Session {
+         private final AesEngine engine;
+
+         public EcbSession(AesEngine engine) {
+            this.engine = engine;
+            return;
+         }
+
+         public int encryptedLength(int length) {
+            return (length / AesEngine.BLOCK_SIZE + 1) * AesEngine.BLOCK_SIZE;
+         }
+
+         public int decryptedLength(int length) {
+            return Math.max(length - 1, 0);
+         }
+
+         public void encrypt(java.nio.ByteBuffer input, java.nio.ByteBuffer output) {
+            checkRemaining(output, this.encryptedLength(input.remaining()));
+
+            int position_input = input.position();
+            int position_output = output.position();
+            int end = position_input + (input.remaining() & ~(AesEngine.BLOCK_SIZE - 1));
+            for (; position_input < end; position_input += AesEngine.BLOCK_SIZE) {
+               this.engine.encryptBlock(input, position_input, output, position_output);
+               position_output += AesEngine.BLOCK_SIZE;
+            }
+
+            // The last block is padded where it lands in the output, then
+            // encrypted in place.
+            int length = input.limit() - position_input;
+            byte padding = (byte)(AesEngine.BLOCK_SIZE - length);
+            for (int i = 0; i < AesEngine.BLOCK_SIZE; ++i) {
+               output.put(position_output + i, i < length ? input.get(position_input + i) : padding);
+            }
+            this.engine.encryptBlock(output, position_output, output, position_output);
+
+            input.position(input.limit());
+            output.position(position_output + AesEngine.BLOCK_SIZE);
+            return;
+         }
+
+         public void decrypt(java.nio.ByteBuffer input, java.nio.ByteBuffer output) throws DecryptException {
+            int length = input.remaining();
+            if (length == 0 || length % AesEngine.BLOCK_SIZE != 0) {
+               throw new DecryptException("ciphertext length is invalid, file may be corrupt");
+            }
+
+            // Blocks are independent, so the last one is decrypted first to
+            // find out exactly how long the plaintext is.
+            java.nio.ByteBuffer last = LAST_BLOCK.get();
+            int last_index = input.limit() - AesEngine.BLOCK_SIZE;
+            this.engine.decryptBlock(input, last_index, last, 0);
+
+            int padding = paddingLength(last.array(), AesEngine.BLOCK_SIZE);
+
+            checkRemaining(output, length - padding);
+
+            int position_output = output.position();
+            for (int position_input = input.position(); position_input < last_index; position_input += AesEngine.BLOCK_SIZE) {
+               this.engine.decryptBlock(input, position_input, output, position_output);
+               position_output += AesEngine.BLOCK_SIZE;
+            }
+
+            output.put(position_output, last.array(), 0, AesEngine.BLOCK_SIZE - padding);
+
+            input.position(input.limit());
+            output.position(position_output + AesEngine.BLOCK_SIZE - padding);
+            return;
+         }
+      }
+
+      // Returns the length of the PKCS #7 padding ending at 'end' in 'data',
+      // which holds at least one decrypted block.  Every padding byte has to
+      // hold the padding length, otherwise the padding is rejected.
+      private static int paddingLength(byte [] data, int end) throws DecryptException {
+         int padding = data[end - 1] & 0xff;
+         if (padding == 0 || padding > AesEngine.BLOCK_SIZE) {
+            throw new DecryptException("padding is invalid, file may be corrupt");
+         }
+
+         for (int i = end - padding; i < end - 1; ++i) {
+            if ((data[i] & 0xff) != padding) {
+               throw new DecryptException("padding is invalid, file may be corrupt");
+            }
+         }
+
+         return padding;
+      }
+
+      // Encrypts the first 'length' bytes of 'data' in place.
+      private static void encryptBlocks(AesEngine engine, byte [] data, int length) {
+         for (int i = 0; i < length; i += AesEngine.BLOCK_SIZE) {
+            engine.encryptBlock(data, i, data, i);
+         }
+
+         return;
+      }
+
+      // Decrypts the first 'length' bytes of 'data' in place.
+      private static void decryptBlocks(AesEngine engine, byte [] data, int length) {
+         for (int i = 0; i < length; i += AesEngine.BLOCK_SIZE) {
+            engine.decryptBlock(data, i, data, i);
+         }
+
+         return;
+      }
+   }
+
+   // AES 256 in counter mode (NIST SP 800-38A).  The data is XORed with a
+   // keystream made by encrypting successive values of a 128-bit counter,
+   // starting from a random initial value which is stored before the data.
+   // Every keystream block only depends on the key and its position, so the
+   // data can be split up and processed on as many cores as are available.
+   public static class AES256CTR implements Cryptor {
+      // Size of the initial counter value stored before the data.
+      public static final int IV_SIZE = AesEngine.BLOCK_SIZE;
+
+      // Data is read and written in chunks of this many bytes when streaming.
+      // Each chunk is big enough to be split across every core.
+      public static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+      // Work is split into segments of at most this many bytes.
+      private static final int SEGMENT_SIZE_MEMORY = 256 * 1024;
+
+      // How many blocks of keystream are generated at once before being
+      // XORed into the data in bulk.
+      private static final int KEYSTREAM_BLOCKS = 16;
+      private static final int KEYSTREAM_SIZE = KEYSTREAM_BLOCKS * AesEngine.BLOCK_SIZE;
+
+      private static final java.security.SecureRandom RANDOM = new java.security.SecureRandom();
+
+      public void encrypt(java.io.InputStream input, java.io.OutputStream output, byte [] secrets) throws java.lang.Exception {
+         byte [] iv = new byte [IV_SIZE];
+         RANDOM.nextBytes(iv);
+         output.write(iv);
+
+         transformStream(input, output, new AesEngine(secrets, 0), iv);
+         return;
+      }
+
+      public void decrypt(java.io.InputStream input, java.io.OutputStream output, byte [] secrets) throws java.lang.Exception {
+         byte [] iv = new byte [IV_SIZE];
+         if (input.readNBytes(iv, 0, IV_SIZE) != IV_SIZE) {
+            throw new DecryptException("initial counter is missing, file may be corrupt");
+         }
+
+         transformStream(input, output, new AesEngine(secrets, 0), iv);
+         return;
+      }
+
+      public Session session(byte [] secrets) {
+         return new CtrSession(new AesEngine(secrets, 0));
+      }
+
+      public void encrypt(java.nio.ByteBuffer input, java.nio.ByteBuffer output, byte [] secrets) throws java.lang.Exception {
+         this.session(secrets).encrypt(input, output);
+         return;
+      }
+
+      public void decrypt(java.nio.ByteBuffer input, java.nio.ByteBuffer output, byte [] secrets) throws java.lang.Exception {
+         this.session(secrets).decrypt(input, output);
+         return;
+      }
+
+      // Per-thread space for sessions and segments.  Messages are short, so
+      // sessions run on the calling thread rather than being split across
+      // cores.
+      private static class Scratch {
+         public final byte [] iv = new byte [IV_SIZE];
+         public final byte [] counter = new byte [AesEngine.BLOCK_SIZE];
+         public final byte [] keystream = new byte [KEYSTREAM_SIZE];
+      }
+
+      private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+         protected Scratch initialValue() {
+            return new Scratch();
+         }
+      };
+
+      // The keystream is XORed from one buffer straight into the other.
+      private static class CtrSession implements Session {
+         private final AesEngine engine;
+
+         public CtrSession(AesEngine engine) {
+            this.engine = engine;
+            return;
+         }
+
+         public int encryptedLength(int length) {
+            return IV_SIZE + length;
+         }
+
+         public int decryptedLength(int length) {
+            return Math.max(length - IV_SIZE, 0);
+         }
+
+         public void encrypt(java.nio.ByteBuffer input, java.nio.ByteBuffer output) {
+            checkRemaining(output, this.encryptedLength(input.remaining()));
+            Scratch scratch = SCRATCH.get();
+
+            RANDOM.nextBytes(scratch.iv);
+            output.put(scratch.iv);
+
+            applyKeystream(this.engine, scratch.iv, 0, input, output, scratch.counter, scratch.keystream);
+            return;
+         }
+
+         public void decrypt(java.nio.ByteBuffer input, java.nio.ByteBuffer output) throws DecryptException {
+            if (input.remaining() < IV_SIZE) {
+               throw new DecryptException("initial counter is missing, file may be corrupt");
+            }
+
+            checkRemaining(output, this.decryptedLength(input.remaining()));
+            Scratch scratch = SCRATCH.get();
+
+            input.get(scratch.iv);
+
+            applyKeystream(this.engine, scratch.iv, 0, input, output, scratch.counter, scratch.keystream);
+            return;
+         }
+      }
+
+      // Since encryption and decryption are both an XOR with the keystream,
+      // they share the same code from here on.
+
+      private static void transformStream(java.io.InputStream input, java.io.OutputStream output, AesEngine engine, byte [] iv) throws java.lang.Exception {
+         byte [] chunk = Buffers.acquire(CHUNK_SIZE);
+         try {
+            long position = 0;
+
+            int length;
+            while ((length = input.readNBytes(chunk, 0, CHUNK_SIZE)) > 0) {
+               java.nio.ByteBuffer buffer = java.nio.ByteBuffer.wrap(chunk, 0, length);
+               java.util.concurrent.ForkJoinPool.commonPool().invoke(new MemorySegment(engine, iv, position, buffer, buffer));
+
+               output.write(chunk, 0, length);
+               position += length;
+            }
+         } finally {
+            Buffers.release(chunk);
+         }
+
+         return;
+      }
+
+      // Transforms a range of memory, splitting it in half until each piece is
+      // small enough to be worth running on its own.
+      private static class MemorySegment extends java.util.concurrent.RecursiveAction {
+         private final AesEngine             engine;
+         private final byte []               iv;
+         private final long                  position;   // position of 'input' in the data
+         private final java.nio.ByteBuffer   input;
+         private final java.nio.ByteBuffer   output;
+
+         public MemorySegment(AesEngine engine, byte [] iv, long position, java.nio.ByteBuffer input, java.nio.ByteBuffer output) {
+            this.engine    = engine;
+            this.iv        = iv;
+            this.position  = position;
+            this.input     = input;
+            this.output    = output;
+            return;
+         }
+
+         protected void compute() {
+            int length = this.input.remaining();
+            if (length <= SEGMENT_SIZE_MEMORY) {
+               applyKeystream(this.engine, this.iv, this.position, this.input, this.output);
+               return;
+            }
+
+            // Splitting on a block boundary keeps both halves on the fast path.
+            int half = (length >>> 1) & ~(AesEngine.BLOCK_SIZE - 1);
+
+            java.nio.ByteBuffer input_lower = this.input.slice(this.input.position(), half);
+            java.nio.ByteBuffer input_upper = this.input.slice(this.input.position() + half, length - half);
+            java.nio.ByteBuffer output_lower = this.output.slice(this.output.position(), half);
+            java.nio.ByteBuffer output_upper = this.output.slice(this.output.position() + half, length - half);
+
+            invokeAll(
+               new MemorySegment(this.engine, this.iv, this.position, input_lower, output_lower),
+               new MemorySegment(this.engine, this.iv, this.position + half, input_upper, output_upper)
+            );
+            return;
+         }
+      }
+
+      // XORs the remaining bytes of 'input' with the keystream and stores the
+      // results in 'output', advancing both.  'position' is the offset of the
+      // first byte of 'input' in the data, which doesn't have to be aligned to
+      // a block.
+      private static void applyKeystream(AesEngine engine, byte [] iv, long position, java.nio.ByteBuffer input, java.nio.ByteBuffer output) {
+         Scratch scratch = SCRATCH.get();
+         applyKeystream(engine, iv, position, input, output, scratch.counter, scratch.keystream);
+         return;
+      }
+
+      // Same as above, using 'counter' as space for a single block and
+      // 'keystream' as space for 'KEYSTREAM_BLOCKS' blocks.
+      private static void applyKeystream(AesEngine engine, byte [] iv, long position, java.nio.ByteBuffer input, java.nio.ByteBuffer output, byte [] counter, byte [] keystream) {
+         long iv_upper = readBigEndian64(iv, 0);
+         long iv_lower = readBigEndian64(iv, 8);
+
+         long block = position >>> 4;
+         int skip = (int)(position & (AesEngine.BLOCK_SIZE - 1));
+
+         int position_input = input.position();
+         int position_output = output.position();
+         int remaining = input.remaining();
+
+         while (remaining > 0) {
+            // Only as many blocks as are needed for the rest of the data.
+            int blocks = Math.min(KEYSTREAM_BLOCKS, (skip + remaining + AesEngine.BLOCK_SIZE - 1) / AesEngine.BLOCK_SIZE);
+            for (int i = 0; i < blocks; ++i) {
+               // counter = iv + block, as a 128-bit integer
+               long counter_lower = iv_lower + block + i;
+               long counter_upper = iv_upper;
+               if (Long.compareUnsigned(counter_lower, iv_lower) < 0) {
+                  counter_upper += 1;
                }
+               writeBigEndian64(counter, 0, counter_upper);
+               writeBigEndian64(counter, 8, counter_lower);
+
+               engine.encryptBlock(counter, 0, keystream, i * AesEngine.BLOCK_SIZE);
             }
-            for(byte[] column: stateMatrix){
-               out.write(column);
+
+            // The start of the first block is skipped if the data doesn't
+            // start on a block, which only happens at the start of a range.
+            int count = Math.min(blocks * AesEngine.BLOCK_SIZE - skip, remaining);
+            Kernels.xor(input, position_input, keystream, skip, output, position_output, count);
+            skip = 0;
+
+            position_input += count;
+            position_output += count;
+            remaining -= count;
+            block += blocks;
+         }
+
+         input.position(position_input);
+         output.position(position_output);
+         return;
+      }
+
+      // Reads a 64-bit big-endian integer from 'data' at position 'offset'.
+      private static long readBigEndian64(byte [] data, int offset) {
+         long value = 0;
+         for (int i = 0; i < 8; ++i) {
+            value = (value << 8) | (data[offset + i] & 0xff);
+         }
+
+         return value;
+      }
+
+      // Writes 'value' into 'data' at position 'offset' in 64-bit big-endian
+      // form.
+      private static void writeBigEndian64(byte [] data, int offset, long value) {
+         for (int i = 7; i >= 0; --i) {
+            data[offset + i] = (byte)value;
+            value >>>= 8;
+         }
+
+         return;
+      }
+
+   }
+
+   // AES 256 in Galois/Counter Mode (NIST SP 800-38D).  The data is encrypted
+   // in counter mode and authenticated with GHASH, a polynomial hash over
+   // GF(2^128), so any change to the ciphertext is caught when decrypting.
+   //
+   // Streams are formatted as a random 12-byte IV, the ciphertext, then the
+   // 16-byte tag.  Streamed decryption has to write out the plaintext before
+   // it reaches the tag at the end, so the tag only tells us after the fact
+   // that the data was damaged.  Chunked files use 'seal' and 'open' instead,
+   // which check each chunk before handing any of it out.
+   public static class AES256GCM implements Cryptor, Authenticated {
+      public static final int IV_SIZE = 12;
+
+      // Data is read and written in chunks of this many bytes.  This must be
+      // a multiple of the block size.
+      public static final int CHUNK_SIZE = 64 * 1024;
+
+      // How many blocks of keystream are generated at once before being
+      // XORed into the data in bulk.
+      private static final int KEYSTREAM_BLOCKS = 16;
+      private static final int KEYSTREAM_SIZE = KEYSTREAM_BLOCKS * AesEngine.BLOCK_SIZE;
+
+      // The counter is only 32 bits and its first value is used for the tag,
+      // which limits how much can be encrypted with a single IV.
+      public static final long MAX_LENGTH = (0xffffffffL - 1L) * AesEngine.BLOCK_SIZE;
+
+      private static final java.security.SecureRandom RANDOM = new java.security.SecureRandom();
+
+      public void encrypt(java.io.InputStream input, java.io.OutputStream output, byte [] secrets) throws java.lang.Exception {
+         byte [] iv = new byte [IV_SIZE];
+         RANDOM.nextBytes(iv);
+         output.write(iv);
+
+         Gcm gcm = new Gcm(new AesEngine(secrets, 0), iv, 0, ASSOCIATED_NONE);
+         byte [] chunk = Buffers.acquire(CHUNK_SIZE);
+         try {
+            int length;
+            while ((length = input.readNBytes(chunk, 0, CHUNK_SIZE)) != 0) {
+               gcm.encrypt(chunk, 0, length);
+               output.write(chunk, 0, length);
             }
+
+            output.write(gcm.finish());
+         } finally {
+            Buffers.release(chunk);
          }
-         output.write(Base64.getEncoder().encode(out.toByteArray()));
 
-         
          return;
       }
-      public void decrypt(java.io.InputStream input, java.io.OutputStream output, byte [] secrets) throws java.lang.Exception{
-         //TODO
+
+      public void decrypt(java.io.InputStream input, java.io.OutputStream output, byte [] secrets) throws java.lang.Exception {
+         byte [] iv = new byte [IV_SIZE];
+         if (input.readNBytes(iv, 0, IV_SIZE) != IV_SIZE) {
+            throw new DecryptException("IV is missing, file may be corrupt");
+         }
+
+         Gcm gcm = new Gcm(new AesEngine(secrets, 0), iv, 0, ASSOCIATED_NONE);
+
+         // We can't tell where the tag starts until we hit the end of the
+         // input, so the last TAG_SIZE bytes of every full chunk are held back
+         // and moved to the front of the next one.
+         byte [] chunk = Buffers.acquire(CHUNK_SIZE + TAG_SIZE);
+         try {
+            int length = 0;
+            while ((length += input.readNBytes(chunk, length, chunk.length - length)) == chunk.length) {
+               gcm.decrypt(chunk, 0, CHUNK_SIZE);
+               output.write(chunk, 0, CHUNK_SIZE);
+
+               System.arraycopy(chunk, CHUNK_SIZE, chunk, 0, TAG_SIZE);
+               length = TAG_SIZE;
+            }
+
+            if (length < TAG_SIZE) {
+               throw new DecryptException("authentication tag is missing, file may be corrupt");
+            }
+
+            gcm.decrypt(chunk, 0, length - TAG_SIZE);
+            checkTag(gcm.finish(), chunk, length - TAG_SIZE);
+
+            output.write(chunk, 0, length - TAG_SIZE);
+         } finally {
+            Buffers.release(chunk);
+         }
+
+         return;
+      }
+
+      public Authenticated.Session session(byte [] secrets) {
+         return new GcmSession(new AesEngine(secrets, 0));
+      }
+
+      public void encrypt(java.nio.ByteBuffer input, java.nio.ByteBuffer output, byte [] secrets) throws java.lang.Exception {
+         this.session(secrets).encrypt(input, output);
          return;
       }
-      private static byte[] RotateWord(byte[] word){
-         byte[] new_word = new byte[4];
-         new_word[3]=word[0];
-         new_word[2]=word[3];
-         new_word[1]=word[2];
-         new_word[0]=word[1];
-         return new_word;
+
+      public void decrypt(java.nio.ByteBuffer input, java.nio.ByteBuffer output, byte [] secrets) throws java.lang.Exception {
+         this.session(secrets).decrypt(input, output);
+         return;
       }
-      private static byte[] SubWord(byte[] word){
-         byte[] newWord = new byte[4];
-         for(int i = 0; i<4; i++){
-            byte b = word[i];
-            newWord[i] = sBox(b);
+
+      // Per-thread space shared by every session.
+      private static class Scratch {
+         public final byte [] iv = new byte [IV_SIZE];
+         public final byte [] tag = new byte [TAG_SIZE];
+         public final byte [] tag_expected = new byte [TAG_SIZE];
+      }
+
+      private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+         protected Scratch initialValue() {
+            return new Scratch();
+         }
+      };
+
+      private static final byte [] ASSOCIATED_NONE = new byte [0];
+
+      // Data is encrypted and hashed straight from one buffer into the other.
+      private static class GcmSession implements Authenticated.Session {
+         private final AesEngine engine;
+         private final Ghash.Key key;
+         private final ThreadLocal<Gcm> gcm;
+
+         public GcmSession(final AesEngine engine) {
+            this.engine = engine;
+            this.key = new Ghash.Key(engine);
+
+            // The GHASH tables are shared, so each thread's state is small.
+            final Ghash.Key key = this.key;
+            this.gcm = new ThreadLocal<Gcm>() {
+               protected Gcm initialValue() {
+                  return new Gcm(engine, key);
+               }
+            };
+            return;
+         }
+
+         public int encryptedLength(int length) {
+            return IV_SIZE + length + TAG_SIZE;
+         }
+
+         public int decryptedLength(int length) {
+            return Math.max(length - IV_SIZE - TAG_SIZE, 0);
+         }
+
+         public void encrypt(java.nio.ByteBuffer input, java.nio.ByteBuffer output) {
+            checkRemaining(output, this.encryptedLength(input.remaining()));
+            Scratch scratch = SCRATCH.get();
+            Gcm gcm = this.gcm.get();
+
+            RANDOM.nextBytes(scratch.iv);
+            output.put(scratch.iv);
+            gcm.start(scratch.iv, 0, ASSOCIATED_NONE);
+
+            int length = input.remaining();
+            gcm.encrypt(input, input.position(), output, output.position(), length);
+            input.position(input.limit());
+            output.position(output.position() + length);
+
+            gcm.finish(scratch.tag, 0);
+            output.put(scratch.tag);
+            return;
+         }
+
+         // The ciphertext is read twice, once to check the tag and again to
+         // decrypt it, so nothing is written unless the tag matches.
+         public void decrypt(java.nio.ByteBuffer input, java.nio.ByteBuffer output) throws DecryptException {
+            if (input.remaining() < IV_SIZE + TAG_SIZE) {
+               throw new DecryptException("ciphertext is too short, file may be corrupt");
+            }
+
+            checkRemaining(output, this.decryptedLength(input.remaining()));
+            Scratch scratch = SCRATCH.get();
+            Gcm gcm = this.gcm.get();
+
+            int start = input.position() + IV_SIZE;
+            int end = input.limit() - TAG_SIZE;
+
+            input.get(input.position(), scratch.iv);
+            input.get(end, scratch.tag);
+            gcm.start(scratch.iv, 0, ASSOCIATED_NONE);
+
+            gcm.authenticate(input, start, end - start);
+            gcm.finish(scratch.tag_expected, 0);
+            if (!java.security.MessageDigest.isEqual(scratch.tag_expected, scratch.tag)) {
+               throw new DecryptException("authentication failed, file may be corrupt or tampered with");
+            }
+
+            gcm.applyKeystream(input, start, output, output.position(), end - start);
+            input.position(input.limit());
+            output.position(output.position() + end - start);
+            return;
+         }
+
+         public int sealedLength(int length) {
+            return IV_SIZE + length;
+         }
+
+         public byte [] seal(byte [] plaintext, byte [] associated, byte [] tag) {
+            byte [] ciphertext = new byte [this.sealedLength(plaintext.length)];
+            this.seal(plaintext, plaintext.length, associated, ciphertext, tag);
+            return ciphertext;
+         }
+
+         public byte [] open(byte [] ciphertext, byte [] associated, byte [] tag) throws DecryptException {
+            byte [] plaintext = new byte [Math.max(ciphertext.length - IV_SIZE, 0)];
+            this.open(ciphertext, ciphertext.length, associated, tag, plaintext);
+            return plaintext;
+         }
+
+         public void seal(byte [] plaintext, int length, byte [] associated, byte [] ciphertext, byte [] tag) {
+            Scratch scratch = SCRATCH.get();
+            RANDOM.nextBytes(scratch.iv);
+
+            System.arraycopy(scratch.iv, 0, ciphertext, 0, IV_SIZE);
+            System.arraycopy(plaintext, 0, ciphertext, IV_SIZE, length);
+
+            Gcm gcm = this.gcm.get();
+            gcm.start(ciphertext, 0, associated);
+            gcm.encrypt(ciphertext, IV_SIZE, length);
+            gcm.finish(tag, 0);
+            return;
+         }
+
+         public int open(byte [] ciphertext, int length, byte [] associated, byte [] tag, byte [] plaintext) throws DecryptException {
+            if (length < IV_SIZE) {
+               throw new DecryptException("IV is missing, file may be corrupt");
+            }
+
+            int plaintext_length = length - IV_SIZE;
+            if (plaintext_length > plaintext.length) {
+               throw new DecryptException("ciphertext is too long, file may be corrupt");
+            }
+
+            Scratch scratch = SCRATCH.get();
+            Gcm gcm = this.gcm.get();
+            gcm.start(ciphertext, 0, associated);
+
+            gcm.authenticate(ciphertext, IV_SIZE, plaintext_length);
+            gcm.finish(scratch.tag_expected, 0);
+            checkTag(scratch.tag_expected, tag, 0);
+
+            // Only decrypt once the tag has been checked, so damaged data
+            // never makes it out.
+            System.arraycopy(ciphertext, IV_SIZE, plaintext, 0, plaintext_length);
+            gcm.applyKeystream(plaintext, 0, plaintext_length);
+            return plaintext_length;
          }
-         return newWord;
       }
-      private static byte sBox(byte b){
-         byte s = (byte)(b ^ leftCircularShift(b, 1) ^ leftCircularShift(b, 2) ^ leftCircularShift(b, 3) ^ leftCircularShift(b, 4) ^ 99);
-         return s;
+
+      // The ciphertext is the IV followed by the encrypted data.
+      public byte [] seal(byte [] plaintext, byte [] associated, byte [] tag, byte [] secrets) throws java.lang.Exception {
+         return this.session(secrets).seal(plaintext, associated, tag);
+      }
+
+      public byte [] open(byte [] ciphertext, byte [] associated, byte [] tag, byte [] secrets) throws java.lang.Exception {
+         return this.session(secrets).open(ciphertext, associated, tag);
       }
-      private static byte leftCircularShift(byte b, int d){
-         byte newByte = (byte)((b << d) | (b >> Integer.SIZE-d));
-         return newByte;
+
+      private static void checkTag(byte [] expected, byte [] data, int offset) throws DecryptException {
+         if (!java.security.MessageDigest.isEqual(expected, java.util.Arrays.copyOfRange(data, offset, offset + TAG_SIZE))) {
+            throw new DecryptException("authentication failed, file may be corrupt or tampered with");
+         }
+
+         return;
       }
-      private static byte[] wordXOR(byte[] w1, byte[] w2){
-         byte[] newWord = new byte[w1.length];
-         for(int i = 0; i<w1.length; i++){
-            newWord[i] = (byte)(w1[i] ^ w2[i]);
+
+      // State for encrypting or decrypting a single message.  Data may be
+      // given in any number of pieces, but every piece except the last must
+      // be a whole number of blocks.
+      //
+      // A single Gcm can be reused for any number of messages by calling
+      // 'start' before each one.
+      private static class Gcm {
+         private final AesEngine engine;
+         private final Ghash ghash;
+         private final byte [] counter;
+         private final byte [] keystream;
+         private final byte [] tag_mask;
+         private long associated_length;
+         private int counter_value;
+         private long length;
+
+         public Gcm(AesEngine engine, Ghash.Key key) {
+            this.engine = engine;
+            this.ghash = new Ghash(key);
+            this.counter = new byte [AesEngine.BLOCK_SIZE];
+            this.keystream = new byte [KEYSTREAM_SIZE];
+            this.tag_mask = new byte [AesEngine.BLOCK_SIZE];
+            return;
+         }
+
+         public Gcm(AesEngine engine, byte [] iv, int iv_offset, byte [] associated) {
+            this(engine, new Ghash.Key(engine));
+            this.start(iv, iv_offset, associated);
+            return;
+         }
+
+         // Starts a new message with the IV in 'iv' at 'iv_offset'.
+         public void start(byte [] iv, int iv_offset, byte [] associated) {
+            // With a 96-bit IV, the first counter block is the IV followed by
+            // a 32-bit 1.  That block encrypts the tag and the data starts at
+            // the next one.
+            System.arraycopy(iv, iv_offset, this.counter, 0, IV_SIZE);
+            this.counter_value = 1;
+            this.setCounter();
+            this.engine.encryptBlock(this.counter, 0, this.tag_mask, 0);
+
+            this.ghash.reset();
+            this.ghash.update(associated, 0, associated.length);
+            this.associated_length = associated.length;
+            this.length = 0;
+            return;
+         }
+
+         public void encrypt(byte [] data, int offset, int length) {
+            this.addEncryptedLength(length);
+            this.applyKeystream(data, offset, length);
+            this.ghash.update(data, offset, length);
+            return;
+         }
+
+         public void decrypt(byte [] data, int offset, int length) throws DecryptException {
+            this.authenticate(data, offset, length);
+            this.applyKeystream(data, offset, length);
+            return;
+         }
+
+         // Hashes ciphertext without decrypting it.  It can be decrypted
+         // afterwards with 'applyKeystream'.
+         public void authenticate(byte [] data, int offset, int length) throws DecryptException {
+            this.addLength(length);
+            this.ghash.update(data, offset, length);
+            return;
+         }
+
+         // Same as the array versions, but reads 'length' bytes of 'input' at
+         // 'input_index' and writes to 'output' at 'output_index' without
+         // copying through an array.  Buffer positions aren't changed.
+         public void encrypt(java.nio.ByteBuffer input, int input_index, java.nio.ByteBuffer output, int output_index, int length) {
+            this.addEncryptedLength(length);
+            this.applyKeystream(input, input_index, output, output_index, length);
+            this.ghash.update(output, output_index, length);
+            return;
+         }
+
+         public void authenticate(java.nio.ByteBuffer data, int index, int length) throws DecryptException {
+            this.addLength(length);
+            this.ghash.update(data, index, length);
+            return;
+         }
+
+         // Returns the tag for everything processed so far.
+         public byte [] finish() {
+            byte [] tag = new byte [TAG_SIZE];
+            this.finish(tag, 0);
+            return tag;
+         }
+
+         // Same as above, writing the tag into 'tag' at 'offset'.
+         public void finish(byte [] tag, int offset) {
+            this.ghash.updateBlock(this.associated_length << 3, this.length << 3);
+
+            LONG_BIG_ENDIAN.set(tag, offset, this.ghash.y_hi);
+            LONG_BIG_ENDIAN.set(tag, offset + 8, this.ghash.y_lo);
+            for (int i = 0; i < TAG_SIZE; ++i) {
+               tag[offset + i] ^= this.tag_mask[i];
+            }
+
+            return;
+         }
+
+         // Encrypting too much is the caller's mistake, while too much
+         // ciphertext means the data is corrupt, so the two throw differently.
+         private void addEncryptedLength(long length) {
+            this.length += length;
+            if (this.length > MAX_LENGTH) {
+               throw new java.lang.IllegalArgumentException("data is too long to be encrypted with a single IV");
+            }
+
+            return;
          }
-         return newWord;
+
+         private void addLength(long length) throws DecryptException {
+            this.length += length;
+            if (this.length > MAX_LENGTH) {
+               throw new DecryptException("data is too long to be processed with a single IV");
+            }
+
+            return;
+         }
+
+         public void applyKeystream(byte [] data, int offset, int length) {
+            for (int i = 0; i < length; ) {
+               int count = this.nextKeystream(length - i);
+               Kernels.xor(data, offset + i, this.keystream, 0, data, offset + i, count);
+               i += count;
+            }
+
+            return;
+         }
+
+         public void applyKeystream(java.nio.ByteBuffer input, int input_index, java.nio.ByteBuffer output, int output_index, int length) {
+            for (int i = 0; i < length; ) {
+               int count = this.nextKeystream(length - i);
+               Kernels.xor(input, input_index + i, this.keystream, 0, output, output_index + i, count);
+               i += count;
+            }
+
+            return;
+         }
+
+         // Generates the keystream for up to 'length' more bytes, as many as
+         // fit in 'keystream', and returns how many bytes it covers.  A
+         // partial block at the end still uses up a whole counter value.
+         private int nextKeystream(int length) {
+            int count = Math.min(length, this.keystream.length);
+            for (int i = 0; i < count; i += AesEngine.BLOCK_SIZE) {
+               this.counter_value += 1;
+               this.setCounter();
+               this.engine.encryptBlock(this.counter, 0, this.keystream, i);
+            }
+
+            return count;
+         }
+
+         private void setCounter() {
+            this.counter[12] = (byte)(this.counter_value >>> 24);
+            this.counter[13] = (byte)(this.counter_value >>> 16);
+            this.counter[14] = (byte)(this.counter_value >>> 8);
+            this.counter[15] = (byte)this.counter_value;
+            return;
+         }
+      }
+
+      // GHASH using Shoup's method with 8-bit tables.  Multiplying by the hash
+      // key H is done a byte at a time, using a table of every byte value
+      // multiplied by H and a second table to reduce the bits shifted out of
+      // the bottom.  That's 16 table lookups per block instead of 128
+      // conditional shifts and XORs.
+      //
+      // Field elements are stored as two longs, where the most significant bit
+      // of 'hi' is the coefficient of x^0, as the standard defines.
+      private static class Ghash {
+         // The reduction polynomial x^128 + x^7 + x^2 + x + 1 in bit-reflected
+         // form.
+         private static final long R = 0xe1L << 56;
+
+         // REDUCE[b] is what needs to be XORed into the top of 'hi' after
+         // shifting an element right by 8 bits, where 'b' is the byte which
+         // was shifted out.
+         private static final long [] REDUCE = new long [256];
+
+         static {
+            for (int b = 0; b < 256; ++b) {
+               long hi = 0;
+               long lo = b;
+               for (int i = 0; i < 8; ++i) {
+                  long carry = lo & 1;
+                  lo = (lo >>> 1) | (hi << 63);
+                  hi = (hi >>> 1) ^ (-carry & R);
+               }
+
+               REDUCE[b] = hi;
+            }
+         }
+
+         // Every byte value multiplied by the hash key H.  These only depend
+         // on the AES key, so they can be built once and shared between any
+         // number of messages and threads.
+         public static class Key {
+            public final long [] table_hi;
+            public final long [] table_lo;
+
+            public Key(AesEngine engine) {
+               byte [] h = new byte [AesEngine.BLOCK_SIZE];
+               engine.encryptBlock(h, 0, h, 0);
+
+               this.table_hi = new long [256];
+               this.table_lo = new long [256];
+
+               // The top bit of a byte is the lowest power of x, so 0x80 is H
+               // itself and every bit below it is another multiplication by x.
+               this.table_hi[0x80] = (long)LONG_BIG_ENDIAN.get(h, 0);
+               this.table_lo[0x80] = (long)LONG_BIG_ENDIAN.get(h, 8);
+               for (int b = 0x40; b != 0; b >>>= 1) {
+                  long hi = this.table_hi[b << 1];
+                  long lo = this.table_lo[b << 1];
+                  long carry = lo & 1;
+                  this.table_lo[b] = (lo >>> 1) | (hi << 63);
+                  this.table_hi[b] = (hi >>> 1) ^ (-carry & R);
+               }
+
+               // Multiplication distributes over XOR, so the rest are built
+               // from the single bit entries.
+               for (int b = 2; b < 256; b <<= 1) {
+                  for (int i = 1; i < b; ++i) {
+                     this.table_hi[b + i] = this.table_hi[b] ^ this.table_hi[i];
+                     this.table_lo[b + i] = this.table_lo[b] ^ this.table_lo[i];
+                  }
+               }
+
+               return;
+            }
+         }
+
+         private final long [] table_hi;
+         private final long [] table_lo;
+         private final byte [] block;        // space for a partial block
+         public long y_hi;
+         public long y_lo;
+
+         public Ghash(Key key) {
+            this.table_hi = key.table_hi;
+            this.table_lo = key.table_lo;
+            this.block = new byte [AesEngine.BLOCK_SIZE];
+            this.reset();
+            return;
+         }
+
+         public void reset() {
+            this.y_hi = 0;
+            this.y_lo = 0;
+            return;
+         }
+
+         // Hashes 'length' bytes of 'data'.  A partial block at the end is
+         // padded with zeros, so only the last call may have one.
+         public void update(byte [] data, int offset, int length) {
+            int end = offset + length - (length % AesEngine.BLOCK_SIZE);
+            for (; offset < end; offset += AesEngine.BLOCK_SIZE) {
+               this.updateBlock((long)LONG_BIG_ENDIAN.get(data, offset), (long)LONG_BIG_ENDIAN.get(data, offset + 8));
+            }
+
+            if (length % AesEngine.BLOCK_SIZE != 0) {
+               java.util.Arrays.fill(this.block, (byte)0);
+               System.arraycopy(data, offset, this.block, 0, length % AesEngine.BLOCK_SIZE);
+               this.updateBlock((long)LONG_BIG_ENDIAN.get(this.block, 0), (long)LONG_BIG_ENDIAN.get(this.block, 8));
+            }
+
+            return;
+         }
+
+         // Same as above, reading 'length' bytes of 'data' at 'index' without
+         // changing its position.
+         public void update(java.nio.ByteBuffer data, int index, int length) {
+            int end = index + length - (length % AesEngine.BLOCK_SIZE);
+            for (; index < end; index += AesEngine.BLOCK_SIZE) {
+               this.updateBlock((long)LONG_BIG_ENDIAN_BUFFER.get(data, index), (long)LONG_BIG_ENDIAN_BUFFER.get(data, index + 8));
+            }
+
+            if (length % AesEngine.BLOCK_SIZE != 0) {
+               java.util.Arrays.fill(this.block, (byte)0);
+               data.get(index, this.block, 0, length % AesEngine.BLOCK_SIZE);
+               this.updateBlock((long)LONG_BIG_ENDIAN.get(this.block, 0), (long)LONG_BIG_ENDIAN.get(this.block, 8));
+            }
+
+            return;
+         }
+
+         // Y = (Y ^ block) * H
+         public void updateBlock(long block_hi, long block_lo) {
+            long x_hi = this.y_hi ^ block_hi;
+            long x_lo = this.y_lo ^ block_lo;
+
+            // Horner's method from the last byte to the first, multiplying
+            // by x^8 (a right shift by a byte) between each one.
+            int b = (int)x_lo & 0xff;
+            long z_hi = this.table_hi[b];
+            long z_lo = this.table_lo[b];
+
+            for (int shift = 8; shift < 64; shift += 8) {
+               b = (int)(x_lo >>> shift) & 0xff;
+               int rem = (int)z_lo & 0xff;
+               z_lo = ((z_hi << 56) | (z_lo >>> 8)) ^ this.table_lo[b];
+               z_hi = (z_hi >>> 8) ^ REDUCE[rem] ^ this.table_hi[b];
+            }
+            for (int shift = 0; shift < 64; shift += 8) {
+               b = (int)(x_hi >>> shift) & 0xff;
+               int rem = (int)z_lo & 0xff;
+               z_lo = ((z_hi << 56) | (z_lo >>> 8)) ^ this.table_lo[b];
+               z_hi = (z_hi >>> 8) ^ REDUCE[rem] ^ this.table_hi[b];
+            }
+
+            this.y_hi = z_hi;
+            this.y_lo = z_lo;
+            return;
+         }
+      }
+
+      // Views of byte arrays and buffers as big-endian longs.  The buffer view
+      // ignores the buffer's own byte order.
+      private static final java.lang.invoke.VarHandle LONG_BIG_ENDIAN = java.lang.invoke.MethodHandles.byteArrayViewVarHandle(long [].class, java.nio.ByteOrder.BIG_ENDIAN);
+      private static final java.lang.invoke.VarHandle LONG_BIG_ENDIAN_BUFFER = java.lang.invoke.MethodHandles.byteBufferViewVarHandle(long [].class, java.nio.ByteOrder.BIG_ENDIAN);
+   }
+
+   // Throws if 'output' doesn't have room for 'length' more bytes.
+   private static void checkRemaining(java.nio.ByteBuffer output, int length) {
+      if (output.remaining() < length) {
+         throw new java.nio.BufferOverflowException();
+      }
+
+      return;
+   }
+
+   // Thrown when the input data can't be decrypted, usually because the data is
+   // corrupt or was truncated.
+   public static class DecryptException extends java.lang.Exception {
+      public DecryptException(String msg) {
+         super(msg);
       }
    }
-}
\ No newline at end of file
+}
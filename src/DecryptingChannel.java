@@ -0,0 +1,181 @@
+// Read-only channel over the plaintext of an encrypted file.  Reads decrypt
+// the data on the fly, and the position can be moved anywhere in the file
+// without decrypting the data before it.  This only works on files with
+// chunked data (see 'Container'), since the chunk index is what tells us
+// where each part of the plaintext is stored.
+//
+// The most recently used chunks are kept decrypted in a small cache, so
+// reading through a file or jumping around a small part of it only decrypts
+// each chunk once.
+public class DecryptingChannel implements java.nio.channels.SeekableByteChannel {
+   // How many decrypted chunks are kept by default.
+   public static final int DEFAULT_CACHE_CHUNKS = 8;
+
+   private final java.nio.channels.FileChannel file;
+   private final long data_offset;
+   private final Container.Codec codec;
+   private final Container.Index index;
+   private final java.util.LinkedHashMap<Integer, byte []> cache;
+   private long position;
+   private boolean open;
+
+   // Opens the file at 'path', checking 'password' against its header.
+   public static DecryptingChannel open(java.nio.file.Path path, String password) throws java.lang.Exception {
+      return open(path, password, DEFAULT_CACHE_CHUNKS);
+   }
+
+   // Same as above, but keeps up to 'cache_chunks' decrypted chunks.  At
+   // least one chunk has to be kept, since reads copy out of the cache.
+   public static DecryptingChannel open(java.nio.file.Path path, String password, int cache_chunks) throws java.lang.Exception {
+      if (cache_chunks < 1) {
+         throw new java.lang.IllegalArgumentException("cache must hold at least one chunk");
+      }
+
+      java.nio.channels.FileChannel file = java.nio.channels.FileChannel.open(path, java.nio.file.StandardOpenOption.READ);
+
+      try {
+         Header header = Header.deserializeVerified(java.nio.channels.Channels.newInputStream(file), password);
+         if (header.chunk_size == 0 || header.armored) {
+            throw new RandomAccessUnsupportedException("file doesn't support random access");
+         }
+
+         byte [] secrets = Kdf.derive(password, header);
+         Container.Codec codec = new Container.Codec(header, header.algorithm.cryptor(), secrets);
+         return new DecryptingChannel(file, file.position(), codec, cache_chunks);
+      } catch (java.lang.Exception e) {
+         file.close();
+         throw e;
+      }
+   }
+
+   private DecryptingChannel(java.nio.channels.FileChannel file, long data_offset, Container.Codec codec, final int cache_chunks) throws java.lang.Exception {
+      this.file = file;
+      this.data_offset = data_offset;
+      this.codec = codec;
+      this.index = Container.Index.read(file, data_offset, codec);
+      this.cache = new java.util.LinkedHashMap<Integer, byte []>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(java.util.Map.Entry<Integer, byte []> eldest) {
+            if (this.size() <= cache_chunks) {
+               return false;
+            }
+
+            // Chunks come from the buffer pool, so they go back to it once
+            // they drop out of the cache.
+            Buffers.release(eldest.getValue());
+            return true;
+         }
+      };
+      this.position = 0;
+      this.open = true;
+      return;
+   }
+
+   // Returns an input stream reading from the current position.  Skipping
+   // on the stream moves the position without decrypting anything.
+   public java.io.InputStream newInputStream() {
+      return java.nio.channels.Channels.newInputStream(this);
+   }
+
+   public synchronized int read(java.nio.ByteBuffer destination) throws java.io.IOException {
+      this.ensureOpen();
+
+      if (this.position >= this.index.length) {
+         return -1;
+      }
+
+      int total = 0;
+      while (destination.hasRemaining() && this.position < this.index.length) {
+         int number = this.index.find(this.position);
+         byte [] chunk = this.chunk(number);
+
+         int chunk_offset = (int)(this.position - this.index.start(number));
+         int count = Math.min(destination.remaining(), this.index.chunks.get(number).plaintext_length - chunk_offset);
+         destination.put(chunk, chunk_offset, count);
+
+         this.position += count;
+         total += count;
+      }
+
+      return total;
+   }
+
+   public synchronized long position() throws java.io.IOException {
+      this.ensureOpen();
+      return this.position;
+   }
+
+   public synchronized DecryptingChannel position(long position) throws java.io.IOException {
+      this.ensureOpen();
+      if (position < 0) {
+         throw new java.lang.IllegalArgumentException("position must not be negative");
+      }
+
+      this.position = position;
+      return this;
+   }
+
+   // The length of the plaintext.
+   public long size() throws java.io.IOException {
+      this.ensureOpen();
+      return this.index.length;
+   }
+
+   public int write(java.nio.ByteBuffer source) {
+      throw new java.nio.channels.NonWritableChannelException();
+   }
+
+   public DecryptingChannel truncate(long size) {
+      throw new java.nio.channels.NonWritableChannelException();
+   }
+
+   public synchronized boolean isOpen() {
+      return this.open;
+   }
+
+   public synchronized void close() throws java.io.IOException {
+      if (!this.open) {
+         return;
+      }
+
+      this.open = false;
+      for (byte [] chunk : this.cache.values()) {
+         Buffers.release(chunk);
+      }
+      this.cache.clear();
+      this.file.close();
+      return;
+   }
+
+   // Returns chunk 'number' decrypted, from the cache if it's there.
+   private byte [] chunk(int number) throws java.io.IOException {
+      byte [] chunk = this.cache.get(number);
+      if (chunk != null) {
+         return chunk;
+      }
+
+      try {
+         chunk = Container.readChunk(this.file, this.data_offset, this.codec, this.index, number);
+      } catch (java.io.IOException e) {
+         throw e;
+      } catch (java.lang.Exception e) {
+         throw new java.io.IOException(e);
+      }
+
+      this.cache.put(number, chunk);
+      return chunk;
+   }
+
+   private void ensureOpen() throws java.nio.channels.ClosedChannelException {
+      if (!this.open) {
+         throw new java.nio.channels.ClosedChannelException();
+      }
+
+      return;
+   }
+}
+
+class RandomAccessUnsupportedException extends java.lang.Exception {
+   public RandomAccessUnsupportedException(String err) {
+      super(err);
+   }
+}
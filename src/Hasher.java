@@ -1,17 +1,453 @@
 public interface Hasher {
    // Hashes the given byte data into an arbitrarily long byte array, known as
-   // the 'digest'.
+   // the 'digest'.  This is the same as calling 'update' with 'data' and then
+   // 'finish'.
    public byte [] digest(byte [] data);
 
+   // Feeds 'length' bytes of 'data' starting at 'offset' into the running
+   // hash.  This can be called any number of times, which allows hashing data
+   // which doesn't fit in memory.
+   public void update(byte [] data, int offset, int length);
+
+   // Feeds the remaining bytes of 'data' into the running hash, advancing its
+   // position to its limit.
+   public void update(java.nio.ByteBuffer data);
+
+   // Completes the running hash and returns the digest.  The hasher is reset
+   // afterwards so it can be reused for another message.
+   public byte [] finish();
+
+   // Same as above, but writes the digest into 'output' at its position and
+   // advances it.  This works on heap and direct buffers.
+   public void finish(java.nio.ByteBuffer output);
+
+   // Implementation of SHA-512 as specified in FIPS PUB 180-4.  Input is fed
+   // through a single 128-byte block buffer, so memory use is constant no
+   // matter how much data is hashed.
    public static class Sha512 implements Hasher {
+      // Size of a single block in bytes.
+      public static final int BLOCK_SIZE = 128;
+
+      // Size of the digest in bytes.
+      public static final int DIGEST_SIZE = 64;
+
+      private final long [] state;     // hash state for the blocks processed so far
+      private final long [] schedule;  // message schedule, reused for every block
+      private final byte [] block;     // partially filled block waiting for more data
+      private int block_length;        // number of bytes in 'block'
+      private long message_length;     // total number of bytes fed in so far
+
+      public Sha512() {
+         this.state = new long [8];
+         this.schedule = new long [80];
+         this.block = new byte [BLOCK_SIZE];
+         this.reset();
+         return;
+      }
+
+      // Discards any data fed in so far and starts a new message.
+      public void reset() {
+         System.arraycopy(INITIAL_STATE, 0, this.state, 0, 8);
+         this.block_length = 0;
+         this.message_length = 0;
+         return;
+      }
+
+      // Replaces the state of this hasher with the state of 'other', as if
+      // all of the data fed into 'other' had been fed into this one instead.
+      public void copyFrom(Sha512 other) {
+         System.arraycopy(other.state, 0, this.state, 0, 8);
+         System.arraycopy(other.block, 0, this.block, 0, other.block_length);
+         this.block_length = other.block_length;
+         this.message_length = other.message_length;
+         return;
+      }
+
       public byte [] digest(byte [] data) {
+         this.update(data, 0, data.length);
+         return this.finish();
+      }
+
+      public void update(byte [] data, int offset, int length) {
+         this.message_length += length;
+
+         // Top up the partial block first, if there is one.
+         if (this.block_length != 0) {
+            int count = Math.min(BLOCK_SIZE - this.block_length, length);
+            System.arraycopy(data, offset, this.block, this.block_length, count);
+            this.block_length += count;
+            offset += count;
+            length -= count;
+
+            if (this.block_length != BLOCK_SIZE) {
+               return;
+            }
+
+            this.processBlock(this.block, 0);
+            this.block_length = 0;
+         }
+
+         // Whole blocks are processed straight from the caller's array.
+         while (length >= BLOCK_SIZE) {
+            this.processBlock(data, offset);
+            offset += BLOCK_SIZE;
+            length -= BLOCK_SIZE;
+         }
+
+         System.arraycopy(data, offset, this.block, 0, length);
+         this.block_length = length;
+         return;
+      }
+
+      public void update(java.nio.ByteBuffer data) {
+         if (data.hasArray()) {
+            int position = data.position();
+            this.update(data.array(), data.arrayOffset() + position, data.remaining());
+            data.position(data.limit());
+            return;
+         }
+
+         // Direct buffers are read in place when there's no partial block.
+         // Otherwise the data is copied through the block buffer until there
+         // is a whole block's worth.
+         while (this.block_length == 0 && data.remaining() >= BLOCK_SIZE) {
+            this.processBlock(data, data.position());
+            data.position(data.position() + BLOCK_SIZE);
+            this.message_length += BLOCK_SIZE;
+         }
+
+         while (data.hasRemaining()) {
+            int count = Math.min(BLOCK_SIZE - this.block_length, data.remaining());
+            data.get(this.block, this.block_length, count);
+            this.block_length += count;
+            this.message_length += count;
+
+            if (this.block_length == BLOCK_SIZE) {
+               this.processBlock(this.block, 0);
+               this.block_length = 0;
+            }
+         }
+
+         return;
+      }
+
+      public byte [] finish() {
+         byte [] hash = new byte [DIGEST_SIZE];
+         this.finish(hash, 0);
+         return hash;
+      }
+
+      // Same as 'finish', but writes the digest into 'output' at 'offset'
+      // instead of allocating a new array.
+      public void finish(byte [] output, int offset) {
+         final int FOOTER_LENGTH = 16;
+         final byte EXTEND_LEADING_BIT = (byte)0b10000000;
+
+         // Append the sentinel '1' bit, then pad with zeroes until there's
+         // exactly enough room left in the block for the 128-bit length.
+         this.block[this.block_length++] = EXTEND_LEADING_BIT;
+         if (this.block_length > BLOCK_SIZE - FOOTER_LENGTH) {
+            java.util.Arrays.fill(this.block, this.block_length, BLOCK_SIZE, (byte)0);
+            this.processBlock(this.block, 0);
+            this.block_length = 0;
+         }
+         java.util.Arrays.fill(this.block, this.block_length, BLOCK_SIZE - FOOTER_LENGTH, (byte)0);
+
+         // The length is in bits, so the top 3 bits of the byte count spill
+         // over into the upper 64 bits.
+         LONG_BIG_ENDIAN.set(this.block, BLOCK_SIZE - 16, this.message_length >>> 61);
+         LONG_BIG_ENDIAN.set(this.block, BLOCK_SIZE - 8, this.message_length << 3);
+         this.processBlock(this.block, 0);
+
+         for (int i = 0; i < 8; ++i) {
+            LONG_BIG_ENDIAN.set(output, offset + (i << 3), this.state[i]);
+         }
+
+         this.reset();
+         return;
+      }
+
+      public void finish(java.nio.ByteBuffer output) {
+         if (output.remaining() < DIGEST_SIZE) {
+            throw new java.nio.BufferOverflowException();
+         }
+
+         // The block buffer has been processed by the time the digest comes
+         // out, so it's free to hold the digest on the way to the buffer.
+         this.finish(this.block, 0);
+         output.put(this.block, 0, DIGEST_SIZE);
+         return;
+      }
+
+      // Views of byte arrays and buffers as big-endian longs.  These compile
+      // down to a single load or store plus a byte swap on little-endian CPUs,
+      // instead of 8 separate byte accesses.  The buffer view ignores the
+      // buffer's own byte order.
+      private static final java.lang.invoke.VarHandle LONG_BIG_ENDIAN = java.lang.invoke.MethodHandles.byteArrayViewVarHandle(long [].class, java.nio.ByteOrder.BIG_ENDIAN);
+      private static final java.lang.invoke.VarHandle LONG_BIG_ENDIAN_BUFFER = java.lang.invoke.MethodHandles.byteBufferViewVarHandle(long [].class, java.nio.ByteOrder.BIG_ENDIAN);
+
+      // Used to populate initial state.  Fractional part of the square root of
+      // the first 8 prime numbers.
+      static final long [] INITIAL_STATE = {
+         0x6a09e667f3bcc908L, 0xbb67ae8584caa73bL, 0x3c6ef372fe94f82bL, 0xa54ff53a5f1d36f1L,
+         0x510e527fade682d1L, 0x9b05688c2b3e6c1fL, 0x1f83d9abfb41bd6bL, 0x5be0cd19137e2179L,
+      };
+
+      // Used for 80 rounds.  Fractional part of the cube root of the first 80
+      // prime numbers.
+      static final long [] ROUND_CONSTANTS = {
+         0x428a2f98d728ae22L, 0x7137449123ef65cdL, 0xb5c0fbcfec4d3b2fL, 0xe9b5dba58189dbbcL,
+         0x3956c25bf348b538L, 0x59f111f1b605d019L, 0x923f82a4af194f9bL, 0xab1c5ed5da6d8118L,
+         0xd807aa98a3030242L, 0x12835b0145706fbeL, 0x243185be4ee4b28cL, 0x550c7dc3d5ffb4e2L,
+         0x72be5d74f27b896fL, 0x80deb1fe3b1696b1L, 0x9bdc06a725c71235L, 0xc19bf174cf692694L,
+         0xe49b69c19ef14ad2L, 0xefbe4786384f25e3L, 0x0fc19dc68b8cd5b5L, 0x240ca1cc77ac9c65L,
+         0x2de92c6f592b0275L, 0x4a7484aa6ea6e483L, 0x5cb0a9dcbd41fbd4L, 0x76f988da831153b5L,
+         0x983e5152ee66dfabL, 0xa831c66d2db43210L, 0xb00327c898fb213fL, 0xbf597fc7beef0ee4L,
+         0xc6e00bf33da88fc2L, 0xd5a79147930aa725L, 0x06ca6351e003826fL, 0x142929670a0e6e70L,
+         0x27b70a8546d22ffcL, 0x2e1b21385c26c926L, 0x4d2c6dfc5ac42aedL, 0x53380d139d95b3dfL,
+         0x650a73548baf63deL, 0x766a0abb3c77b2a8L, 0x81c2c92e47edaee6L, 0x92722c851482353bL,
+         0xa2bfe8a14cf10364L, 0xa81a664bbc423001L, 0xc24b8b70d0f89791L, 0xc76c51a30654be30L,
+         0xd192e819d6ef5218L, 0xd69906245565a910L, 0xf40e35855771202aL, 0x106aa07032bbd1b8L,
+         0x19a4c116b8d2d0c8L, 0x1e376c085141ab53L, 0x2748774cdf8eeb99L, 0x34b0bcb5e19b48a8L,
+         0x391c0cb3c5c95a63L, 0x4ed8aa4ae3418acbL, 0x5b9cca4f7763e373L, 0x682e6ff3d6b2b8a3L,
+         0x748f82ee5defb2fcL, 0x78a5636f43172f60L, 0x84c87814a1f0ab72L, 0x8cc702081a6439ecL,
+         0x90befffa23631e28L, 0xa4506cebde82bde9L, 0xbef9a3f7b2c67915L, 0xc67178f2e372532bL,
+         0xca273eceea26619cL, 0xd186b8c721c0c207L, 0xeada7dd6cde0eb1eL, 0xf57d4f7fee6ed178L,
+         0x06f067aa72176fbaL, 0x0a637dc5a2c898a6L, 0x113f9804bef90daeL, 0x1b710b35131c471bL,
+         0x28db77f523047d84L, 0x32caab7b40c72493L, 0x3c9ebe0a15c9bebcL, 0x431d67c49c100d4cL,
+         0x4cc5d4becb3e42b6L, 0x597f299cfc657e2aL, 0x5fcb6fab3ad6faecL, 0x6c44198c4a475817L,
+      };
+
+      // Digests a single 1024-bit block of bytes in 'data' at offset 'offset'
+      // and adds the results to the hash state.
+      private void processBlock(byte [] data, int offset) {
+         final long [] w = this.schedule;
+         for (int i = 0; i < 16; ++i) {
+            w[i] = (long)LONG_BIG_ENDIAN.get(data, offset + (i << 3));
+         }
+
+         this.compress();
+         return;
+      }
+
+      // Same as above, but reads the block from 'data' at absolute position
+      // 'offset'.
+      private void processBlock(java.nio.ByteBuffer data, int offset) {
+         final long [] w = this.schedule;
+         for (int i = 0; i < 16; ++i) {
+            w[i] = (long)LONG_BIG_ENDIAN_BUFFER.get(data, offset + (i << 3));
+         }
+
+         this.compress();
+         return;
+      }
+
+      // Runs the compression function over the block loaded into the first 16
+      // words of the message schedule.
+      private void compress() {
+         final long [] w = this.schedule;
+         final long [] k = ROUND_CONSTANTS;
+
+         // Create the rest of the message schedule (W(t))
+         for (int i = 16; i < 80; ++i) {
+            w[i] = g1(w[i - 2]) + w[i - 7] + g0(w[i - 15]) + w[i - 16];
+         }
+
+         // Initialize the working variables.  These are locals rather than an
+         // array so the JIT can keep them all in registers.
+         long a = this.state[0];
+         long b = this.state[1];
+         long c = this.state[2];
+         long d = this.state[3];
+         long e = this.state[4];
+         long f = this.state[5];
+         long g = this.state[6];
+         long h = this.state[7];
+
+         // Each round normally shifts every working variable down by one.
+         // Unrolling 8 rounds at a time lets us rotate which variable plays
+         // which role instead, so nothing has to be moved at all.
+         for (int i = 0; i < 80; i += 8) {
+            h += f1(e) + ch(e, f, g) + k[i]     + w[i];     d += h; h += f0(a) + maj(a, b, c);
+            g += f1(d) + ch(d, e, f) + k[i + 1] + w[i + 1]; c += g; g += f0(h) + maj(h, a, b);
+            f += f1(c) + ch(c, d, e) + k[i + 2] + w[i + 2]; b += f; f += f0(g) + maj(g, h, a);
+            e += f1(b) + ch(b, c, d) + k[i + 3] + w[i + 3]; a += e; e += f0(f) + maj(f, g, h);
+            d += f1(a) + ch(a, b, c) + k[i + 4] + w[i + 4]; h += d; d += f0(e) + maj(e, f, g);
+            c += f1(h) + ch(h, a, b) + k[i + 5] + w[i + 5]; g += c; c += f0(d) + maj(d, e, f);
+            b += f1(g) + ch(g, h, a) + k[i + 6] + w[i + 6]; f += b; b += f0(c) + maj(c, d, e);
+            a += f1(f) + ch(f, g, h) + k[i + 7] + w[i + 7]; e += a; a += f0(b) + maj(b, c, d);
+         }
+
+         // Sum together the new hash
+         this.state[0] += a;
+         this.state[1] += b;
+         this.state[2] += c;
+         this.state[3] += d;
+         this.state[4] += e;
+         this.state[5] += f;
+         this.state[6] += g;
+         this.state[7] += h;
+         return;
+      }
+
+      // See FIPS PUB 180-4 section 4.1.3 for explanations for these functions
+
+      private static long ch(long x, long y, long z) {
+         return (x & y) ^ (~x & z);
+      }
+
+      private static long maj(long x, long y, long z) {
+         return (x & y) ^ (x & z) ^ (y & z);
+      }
+
+      private static long f0(long x) {
+         return Long.rotateRight(x, 28) ^ Long.rotateRight(x, 34) ^ Long.rotateRight(x, 39);
+      }
+
+      private static long f1(long x) {
+         return Long.rotateRight(x, 14) ^ Long.rotateRight(x, 18) ^ Long.rotateRight(x, 41);
+      }
+
+      private static long g0(long x) {
+         return Long.rotateRight(x, 1) ^ Long.rotateRight(x, 8) ^ (x >>> 7);
+      }
+
+      private static long g1(long x) {
+         return Long.rotateRight(x, 19) ^ Long.rotateRight(x, 61) ^ (x >>> 6);
+      }
+   }
+
+   // HMAC (RFC 2104) using SHA-512.  The key is absorbed once when the hasher
+   // is constructed and the keyed states are saved, so every message after
+   // that costs the same as hashing it plus one extra block.
+   public static class HmacSha512 implements Hasher {
+      private final Sha512 inner_keyed;   // inner hash after absorbing the key
+      private final Sha512 outer_keyed;   // outer hash after absorbing the key
+      private final Sha512 inner;         // inner hash for the current message
+      private final Sha512 outer;         // used to finish each message
+      private final byte [] inner_digest;
+
+      public HmacSha512(byte [] key) {
+         final byte PAD_INNER = 0x36;
+         final byte PAD_OUTER = 0x5c;
+
+         // Keys longer than a block are hashed down first.
+         if (key.length > Sha512.BLOCK_SIZE) {
+            key = new Sha512().digest(key);
+         }
+
+         byte [] pad = new byte [Sha512.BLOCK_SIZE];
+         System.arraycopy(key, 0, pad, 0, key.length);
+
+         for (int i = 0; i < Sha512.BLOCK_SIZE; ++i) {
+            pad[i] ^= PAD_INNER;
+         }
+         this.inner_keyed = new Sha512();
+         this.inner_keyed.update(pad, 0, Sha512.BLOCK_SIZE);
+
+         for (int i = 0; i < Sha512.BLOCK_SIZE; ++i) {
+            pad[i] ^= PAD_INNER ^ PAD_OUTER;
+         }
+         this.outer_keyed = new Sha512();
+         this.outer_keyed.update(pad, 0, Sha512.BLOCK_SIZE);
+
+         this.inner = new Sha512();
+         this.inner.copyFrom(this.inner_keyed);
+         this.outer = new Sha512();
+         this.inner_digest = new byte [Sha512.DIGEST_SIZE];
+         return;
+      }
+
+      public byte [] digest(byte [] data) {
+         this.update(data, 0, data.length);
+         return this.finish();
+      }
+
+      public void update(byte [] data, int offset, int length) {
+         this.inner.update(data, offset, length);
+         return;
+      }
+
+      public void update(java.nio.ByteBuffer data) {
+         this.inner.update(data);
+         return;
+      }
+
+      public byte [] finish() {
+         byte [] mac = new byte [Sha512.DIGEST_SIZE];
+         this.finish(mac, 0);
+         return mac;
+      }
+
+      // Same as 'finish', but writes the result into 'output' at 'offset'
+      // instead of allocating a new array.
+      public void finish(byte [] output, int offset) {
+         this.inner.finish(this.inner_digest, 0);
+         this.inner.copyFrom(this.inner_keyed);
+
+         this.outer.copyFrom(this.outer_keyed);
+         this.outer.update(this.inner_digest, 0, Sha512.DIGEST_SIZE);
+         this.outer.finish(output, offset);
+         return;
+      }
+
+      public void finish(java.nio.ByteBuffer output) {
+         this.inner.finish(this.inner_digest, 0);
+         this.inner.copyFrom(this.inner_keyed);
+
+         this.outer.copyFrom(this.outer_keyed);
+         this.outer.update(this.inner_digest, 0, Sha512.DIGEST_SIZE);
+         this.outer.finish(output);
+         return;
+      }
+   }
+
+   // The original hash used to derive keys for files written before 'Sha512'
+   // followed FIPS PUB 180-4.  It differs from SHA-512 in a few places and
+   // only handles a single block of input, but keys for existing files depend
+   // on its exact output, so it's kept as-is for deriving them.  Don't use
+   // this for anything new.
+   public static class Sha512Legacy implements Hasher {
+      // Data is collected until 'finish', since the whole message is needed
+      // at once.  Inputs are always tiny, so this is fine.
+      private final java.io.ByteArrayOutputStream pending = new java.io.ByteArrayOutputStream();
+
+      public void update(byte [] data, int offset, int length) {
+         this.pending.write(data, offset, length);
+         return;
+      }
+
+      public void update(java.nio.ByteBuffer data) {
+         byte [] bytes = new byte [data.remaining()];
+         data.get(bytes);
+         this.pending.write(bytes, 0, bytes.length);
+         return;
+      }
+
+      public byte [] finish() {
+         byte [] data = this.pending.toByteArray();
+         this.pending.reset();
+         return digestLegacy(data);
+      }
+
+      public void finish(java.nio.ByteBuffer output) {
+         output.put(this.finish());
+         return;
+      }
+
+      public byte [] digest(byte [] data) {
+         this.update(data, 0, data.length);
+         return this.finish();
+      }
+
+      private static byte [] digestLegacy(byte [] data) {
          // Base data preprocessed to be 1024-bit aligned and contain the
          // length of the base data encoded as a 128-bit integer.
          byte [] data_preprocessed = preprocessData(data);
 
          // State of the hash digest for each iteration
          long [] state = new long[8];
-         System.arraycopy(INITIAL_STATE, 0, state, 0, 8);
+         System.arraycopy(Sha512.INITIAL_STATE, 0, state, 0, 8);
 
          // Process each 1024-bit block in the preprocessed data
          for (int i = 0; i < data_preprocessed.length; i += 128) {
@@ -103,38 +539,6 @@ public interface Hasher {
          return value;
       }
 
-      // Used to populate initial state.  Fractional part of the square root of
-      // the first 8 prime numbers.
-      private static final long [] INITIAL_STATE = {
-         0x6a09e667f3bcc908L, 0xbb67ae8584caa73bL, 0x3c6ef372fe94f82bL, 0xa54ff53a5f1d36f1L,
-         0x510e527fade682d1L, 0x9b05688c2b3e6c1fL, 0x1f83d9abfb41bd6bL, 0x5be0cd19137e2179L,
-      };
-
-      // Used for 80 rounds.  Fractional part of the cube root of the first 80
-      // prime numbers.  Yes, I copy-pasted these from somewhere else.
-      private static final long [] ROUND_CONSTANTS = {
-         0x428a2f98d728ae22L, 0x7137449123ef65cdL, 0xb5c0fbcfec4d3b2fL, 0xe9b5dba58189dbbcL,
-         0x3956c25bf348b538L, 0x59f111f1b605d019L, 0x923f82a4af194f9bL, 0xab1c5ed5da6d8118L,
-         0xd807aa98a3030242L, 0x12835b0145706fbeL, 0x243185be4ee4b28cL, 0x550c7dc3d5ffb4e2L,
-         0x72be5d74f27b896fL, 0x80deb1fe3b1696b1L, 0x9bdc06a725c71235L, 0xc19bf174cf692694L,
-         0xe49b69c19ef14ad2L, 0xefbe4786384f25e3L, 0x0fc19dc68b8cd5b5L, 0x240ca1cc77ac9c65L,
-         0x2de92c6f592b0275L, 0x4a7484aa6ea6e483L, 0x5cb0a9dcbd41fbd4L, 0x76f988da831153b5L,
-         0x983e5152ee66dfabL, 0xa831c66d2db43210L, 0xb00327c898fb213fL, 0xbf597fc7beef0ee4L,
-         0xc6e00bf33da88fc2L, 0xd5a79147930aa725L, 0x06ca6351e003826fL, 0x142929670a0e6e70L,
-         0x27b70a8546d22ffcL, 0x2e1b21385c26c926L, 0x4d2c6dfc5ac42aedL, 0x53380d139d95b3dfL,
-         0x650a73548baf63deL, 0x766a0abb3c77b2a8L, 0x81c2c92e47edaee6L, 0x92722c851482353bL,
-         0xa2bfe8a14cf10364L, 0xa81a664bbc423001L, 0xc24b8b70d0f89791L, 0xc76c51a30654be30L,
-         0xd192e819d6ef5218L, 0xd69906245565a910L, 0xf40e35855771202aL, 0x106aa07032bbd1b8L,
-         0x19a4c116b8d2d0c8L, 0x1e376c085141ab53L, 0x2748774cdf8eeb99L, 0x34b0bcb5e19b48a8L,
-         0x391c0cb3c5c95a63L, 0x4ed8aa4ae3418acbL, 0x5b9cca4f7763e373L, 0x682e6ff3d6b2b8a3L,
-         0x748f82ee5defb2fcL, 0x78a5636f43172f60L, 0x84c87814a1f0ab72L, 0x8cc702081a6439ecL,
-         0x90befffa23631e28L, 0xa4506cebde82bde9L, 0xbef9a3f7b2c67915L, 0xc67178f2e372532bL,
-         0xca273eceea26619cL, 0xd186b8c721c0c207L, 0xeada7dd6cde0eb1eL, 0xf57d4f7fee6ed178L,
-         0x06f067aa72176fbaL, 0x0a637dc5a2c898a6L, 0x113f9804bef90daeL, 0x1b710b35131c471bL,
-         0x28db77f523047d84L, 0x32caab7b40c72493L, 0x3c9ebe0a15c9bebcL, 0x431d67c49c100d4cL,
-         0x4cc5d4becb3e42b6L, 0x597f299cfc657e2aL, 0x5fcb6fab3ad6faecL, 0x6c44198c4a475817L,
-      };
-      
       // Digests a single 1024-bit block of bytes in 'data' at offset 'offset'
       // and stores the results in 'state', which should be an array of8 longs.
       private static void processBlock(long [] state, byte [] data, int offset) {
@@ -160,7 +564,7 @@ public interface Hasher {
          // Run the magic sauce
          // I have no clue what's happening here but it works I guess :)
          for (int i = 0; i < 80; ++i) {
-            long t1 = v[7] + f1(v[4]) + ch(v[4], v[5], v[6]) + ROUND_CONSTANTS[i] + schedule[i];
+            long t1 = v[7] + f1(v[4]) + ch(v[4], v[5], v[6]) + Sha512.ROUND_CONSTANTS[i] + schedule[i];
             long t2 = f0(v[0]) + maj(v[0], v[1], v[2]);
 
             v[7] = v[6];
@@ -225,4 +629,3 @@ public interface Hasher {
       }
    }
 }
-
@@ -1,55 +1,144 @@
 public class Header {
-   public Cryptor.Algorithm algorithm; // algorithm used to encrypt
-   public byte [] hash;                // hash of the secrets key
+   public int                 version;          // format version of the header
+   public Cryptor.Algorithm   algorithm;        // algorithm used to encrypt
+   public byte []             hash;             // hash of the secrets key
+   public boolean             armored;          // whether the payload is Base64 armored
+   public byte []             kdf_salt;         // salt used to derive the secrets, 'null' for version 1
+   public int                 kdf_iterations;   // PBKDF2 iterations used to derive the secrets, 0 for version 1
+   public int                 chunk_size;       // plaintext length of each chunk, 0 if the data isn't chunked
+   public byte []             nonce;            // random value unique to the file, 'null' if the data isn't chunked
+   public Container.Compression compression;    // how each chunk is compressed, 'None' if the data isn't chunked
+   public boolean             digests;          // whether the chunk index holds a digest of each chunk
 
    // The length of the secrets hash.
    public static final int HASH_LENGTH = 4;
 
-   // Constructs the header using the given algorithm and a 4-byte hash of the
-   // secrets key, which is used to check the password.
-   public Header(Cryptor.Algorithm algorithm, byte [] hash) {
+   // The original fixed-size header, where the secrets are derived from the
+   // password with a single salted hash.
+   public static final int VERSION_LEGACY = 1;
+
+   // Extensible header made of tagged records, where the secrets are derived
+   // with PBKDF2 using the salt and iteration count stored in the header.
+   public static final int VERSION_CURRENT = 2;
+
+   // Constructs a version 1 header using the given algorithm and a 4-byte hash
+   // of the secrets key, which is used to check the password.  'armored' marks
+   // the data following the header as Base64 encoded.
+   public Header(Cryptor.Algorithm algorithm, byte [] hash, boolean armored) {
+      this.version = VERSION_LEGACY;
       this.algorithm = algorithm;
+      this.armored = armored;
       this.hash = new byte [HASH_LENGTH];
       System.arraycopy(hash, 0, this.hash, 0, HASH_LENGTH);
+      this.kdf_salt = null;
+      this.kdf_iterations = 0;
+      this.chunk_size = 0;
+      this.nonce = null;
+      this.compression = Container.Compression.None;
+      this.digests = false;
+      return;
+   }
+
+   // Constructs a current version header.  This is the same as above, but
+   // also stores the salt and iteration count used to derive the secrets.
+   public Header(Cryptor.Algorithm algorithm, byte [] hash, boolean armored, byte [] kdf_salt, int kdf_iterations) {
+      this(algorithm, hash, armored);
+      this.version = VERSION_CURRENT;
+      this.kdf_salt = kdf_salt.clone();
+      this.kdf_iterations = kdf_iterations;
+      return;
+   }
+
+   // Constructs a current version header for chunked data, see 'Container'.
+   // This is the same as above, but also stores the chunk size and the nonce
+   // used to authenticate the chunks.
+   public Header(Cryptor.Algorithm algorithm, byte [] hash, boolean armored, byte [] kdf_salt, int kdf_iterations, int chunk_size, byte [] nonce) {
+      this(algorithm, hash, armored, kdf_salt, kdf_iterations);
+      this.chunk_size = chunk_size;
+      this.nonce = nonce.clone();
       return;
    }
 
-   private static final byte MAGIC_HEADER_UPPER = 'E';   // EnCrypt
-   private static final byte MAGIC_HEADER_LOWER = 'H';   // Header
-   private static final byte MAGIC_FOOTER_UPPER = 'E';   // EnCrypt
-   private static final byte MAGIC_FOOTER_LOWER = 'F';   // Footer
+   private static final byte MAGIC_HEADER_UPPER    = 'E';   // EnCrypt
+   private static final byte MAGIC_HEADER_LOWER    = 'H';   // Header
+   private static final byte MAGIC_VERSIONED_LOWER = 'V';   // Versioned header
+   private static final byte MAGIC_FOOTER_UPPER    = 'E';   // EnCrypt
+   private static final byte MAGIC_FOOTER_LOWER    = 'F';   // Footer
 
-   private static final byte [] MAGIC_HEADER = {MAGIC_HEADER_UPPER, MAGIC_HEADER_LOWER};
-   private static final byte [] MAGIC_FOOTER = {MAGIC_FOOTER_UPPER, MAGIC_FOOTER_LOWER};
+   private static final byte [] MAGIC_HEADER    = {MAGIC_HEADER_UPPER, MAGIC_HEADER_LOWER};
+   private static final byte [] MAGIC_VERSIONED = {MAGIC_HEADER_UPPER, MAGIC_VERSIONED_LOWER};
+   private static final byte [] MAGIC_FOOTER    = {MAGIC_FOOTER_UPPER, MAGIC_FOOTER_LOWER};
 
    private static final java.util.HashMap<Cryptor.Algorithm, Byte> MAP_ALGORITHM = new java.util.HashMap<Cryptor.Algorithm, Byte>() {{
       put(Cryptor.Algorithm.Plaintext,       (byte)0);
       put(Cryptor.Algorithm.ConstantOffset,  (byte)1);
       put(Cryptor.Algorithm.AES256,          (byte)2);
+      put(Cryptor.Algorithm.AES256CTR,       (byte)3);
+      put(Cryptor.Algorithm.AES256GCM,       (byte)4);
    }};
 
    private static final Cryptor.Algorithm [] MAP_BYTE_ALGORITHM = {
       Cryptor.Algorithm.Plaintext,
       Cryptor.Algorithm.ConstantOffset,
       Cryptor.Algorithm.AES256,
+      Cryptor.Algorithm.AES256CTR,
+      Cryptor.Algorithm.AES256GCM,
    };
 
+   private static final java.util.HashMap<Container.Compression, Byte> MAP_COMPRESSION = new java.util.HashMap<Container.Compression, Byte>() {{
+      put(Container.Compression.None,     (byte)0);
+      put(Container.Compression.Deflate,  (byte)1);
+   }};
+
+   private static final Container.Compression [] MAP_BYTE_COMPRESSION = {
+      Container.Compression.None,
+      Container.Compression.Deflate,
+   };
+
+   // Flags are stored in the top bits of the algorithm byte.  Files written
+   // before flags existed always have these bits cleared.
+   private static final byte FLAG_ARMORED    = (byte)0b10000000;
+   private static final byte MASK_ALGORITHM  = (byte)0b01111111;
+
    private static final int HEADER_BYTE_LENGTH = MAGIC_HEADER.length + HASH_LENGTH + 1 + MAGIC_FOOTER.length;
 
+   // Record tags for version 2 headers.  Tags may never be reused for
+   // something else once files have been written with them.
+   private static final int TAG_ALGORITHM       = 1;  // byte     algorithm | flags
+   private static final int TAG_HASH            = 2;  // byte[4]  hash
+   private static final int TAG_KDF_SALT        = 3;  // byte[]   kdf salt
+   private static final int TAG_KDF_ITERATIONS  = 4;  // int32    kdf iterations
+   private static final int TAG_CHUNK_SIZE      = 5;  // int32    chunk size
+   private static final int TAG_NONCE           = 6;  // byte[]   nonce
+   private static final int TAG_COMPRESSION     = 7;  // byte     compression
+   private static final int TAG_DIGESTS         = 8;  // (empty)  present if the index holds digests
+
    public void serialize(java.io.OutputStream output) throws java.io.IOException {
+      switch (this.version) {
+      case VERSION_LEGACY:
+         this.serializeLegacy(output);
+         return;
+
+      case VERSION_CURRENT:
+         this.serializeVersioned(output);
+         return;
+      }
+
+      throw new java.lang.IllegalStateException(String.format("can't serialize header version %d", this.version));
+   }
+
+   private void serializeLegacy(java.io.OutputStream output) throws java.io.IOException {
       // Serialized data will be formatted as such:
       //
       // byte     magic_header_upper
       // byte     magic_header_lower
       // byte[4]  hash
-      // byte     algorithm
+      // byte     algorithm | flags
       // byte     magic_footer_upper
       // byte     magic_footer_lower
       //
       // We have the 4 bytes worth of magic numbers to protect against
       // accidental false positives of random date being interpreted as valid.
-   
-      byte algorithm_byte = MAP_ALGORITHM.get(this.algorithm);
 
       byte [] header = new byte [HEADER_BYTE_LENGTH];
       // header
@@ -59,7 +148,7 @@ public class Header {
       System.arraycopy(this.hash, 0, header, MAGIC_HEADER.length, HASH_LENGTH);
 
       // algorithm
-      header[MAGIC_HEADER.length + HASH_LENGTH] = algorithm_byte;
+      header[MAGIC_HEADER.length + HASH_LENGTH] = this.algorithmByte();
 
       // footer
       System.arraycopy(MAGIC_FOOTER, 0, header, MAGIC_HEADER.length + HASH_LENGTH + 1, MAGIC_FOOTER.length);
@@ -68,19 +157,151 @@ public class Header {
       return;
    }
 
+   private void serializeVersioned(java.io.OutputStream output) throws java.io.IOException {
+      // Serialized data will be formatted as such:
+      //
+      // byte     magic_header_upper
+      // byte     magic_versioned_lower
+      // byte     version
+      // uint16   records_length
+      // record[] records
+      // byte     magic_footer_upper
+      // byte     magic_footer_lower
+      //
+      // Where each record is formatted as such:
+      //
+      // byte     tag
+      // uint16   value_length
+      // byte[]   value
+      //
+      // All integers are big-endian.  Readers skip records with tags they
+      // don't know about, so new records can be added without breaking
+      // older readers.
+
+      java.io.ByteArrayOutputStream records_bytes = new java.io.ByteArrayOutputStream();
+      java.io.DataOutputStream records = new java.io.DataOutputStream(records_bytes);
+
+      writeRecord(records, TAG_ALGORITHM, new byte [] {this.algorithmByte()});
+      writeRecord(records, TAG_HASH, this.hash);
+      writeRecord(records, TAG_KDF_SALT, this.kdf_salt);
+      writeRecord(records, TAG_KDF_ITERATIONS, java.nio.ByteBuffer.allocate(4).putInt(this.kdf_iterations).array());
+      if (this.chunk_size != 0) {
+         writeRecord(records, TAG_CHUNK_SIZE, java.nio.ByteBuffer.allocate(4).putInt(this.chunk_size).array());
+         writeRecord(records, TAG_NONCE, this.nonce);
+      }
+      // Only written when used, so uncompressed files are still read by
+      // versions which don't know about compression.
+      if (this.compression != Container.Compression.None) {
+         writeRecord(records, TAG_COMPRESSION, new byte [] {MAP_COMPRESSION.get(this.compression)});
+      }
+      if (this.digests) {
+         writeRecord(records, TAG_DIGESTS, new byte [0]);
+      }
+
+      java.io.ByteArrayOutputStream header_bytes = new java.io.ByteArrayOutputStream();
+      java.io.DataOutputStream header = new java.io.DataOutputStream(header_bytes);
+      header.write(MAGIC_VERSIONED);
+      header.writeByte(this.version);
+      header.writeShort(records_bytes.size());
+      records_bytes.writeTo(header);
+      header.write(MAGIC_FOOTER);
+
+      // Written all at once so unbuffered outputs only see a single write.
+      header_bytes.writeTo(output);
+      return;
+   }
+
+   private static void writeRecord(java.io.DataOutputStream output, int tag, byte [] value) throws java.io.IOException {
+      output.writeByte(tag);
+      output.writeShort(value.length);
+      output.write(value);
+      return;
+   }
+
+   private byte algorithmByte() {
+      byte algorithm_byte = MAP_ALGORITHM.get(this.algorithm);
+      if (this.armored) {
+         algorithm_byte |= FLAG_ARMORED;
+      }
+
+      return algorithm_byte;
+   }
+
+   // Reads a header of any version.  Only the header is consumed from 'input',
+   // so it's left positioned at the start of the data.
    public static Header deserialize(java.io.InputStream input) throws java.lang.Exception {
-      byte [] header_bytes = new byte [HEADER_BYTE_LENGTH];
-      if (input.read(header_bytes) < HEADER_BYTE_LENGTH) {
-         throw new DeserializeException("header is missing or damaged, file may be corrupt");
+      byte [] magic = input.readNBytes(MAGIC_HEADER.length);
+
+      if (java.util.Arrays.equals(magic, MAGIC_HEADER)) {
+         return deserializeLegacy(magic, input);
+      }
+      if (java.util.Arrays.equals(magic, MAGIC_VERSIONED)) {
+         return deserializeVersioned(input);
       }
 
-      // header
-      for (int i = 0; i < MAGIC_HEADER.length; ++i) {
-         if (header_bytes[i] != MAGIC_HEADER[i]) {
-            throw new DeserializeException("header is missing or damaged, file may be corrupt");
+      throw new DeserializeException("header is missing or damaged, file may be corrupt");
+   }
+
+   // Same as above, but also derives the secrets from 'password' and checks
+   // them against the hash in the header.  Throws IncorrectPasswordException
+   // if they don't match.
+   public static Header deserializeVerified(java.io.InputStream input, String password) throws java.lang.Exception {
+      long start = System.nanoTime();
+      Header header = deserialize(input);
+      Metrics.timeSince(Metrics.Timer.Header, start);
+
+      byte [] secrets = Kdf.derive(password, header);
+      byte [] secrets_hash = secretsHash(secrets, header.version);
+
+      for (int i = 0; i < HASH_LENGTH; ++i) {
+         if (header.hash[i] != secrets_hash[i]) {
+            throw new IncorrectPasswordException("password is incorrect");
          }
       }
 
+      return header;
+   }
+
+   // Runs another round of salting+hashing to hash the encryption secrets
+   // for use with the file header (used for checking passwords).  Version 1
+   // headers were written using 'Sha512Legacy', so they still need it.
+   public static byte [] secretsHash(byte [] secrets, int version) {
+      final byte [] SECRETS_SALT = "### ENCRYPT 2024 ###".getBytes();
+
+      byte [] secrets_salted = new byte [secrets.length + SECRETS_SALT.length];
+      System.arraycopy(secrets, 0, secrets_salted, 0, secrets.length);
+      System.arraycopy(SECRETS_SALT, 0, secrets_salted, secrets.length, SECRETS_SALT.length);
+
+      Hasher hasher;
+      if (version == VERSION_LEGACY) {
+         hasher = new Hasher.Sha512Legacy();
+      } else {
+         hasher = new Hasher.Sha512();
+      }
+      
+      byte [] hash512 = hasher.digest(secrets_salted);
+      
+      // Compress the 64-byte hash to 4 bytes by XORing every 4th byte with
+      // the previous.  This should help verify passwords without leaking
+      // secrets combined with the 2nd round of salting + hashing.
+      byte [] hash = new byte[HASH_LENGTH];
+      System.arraycopy(hash512, 0, hash, 0, HASH_LENGTH);
+      for (int block_offset = HASH_LENGTH; block_offset < 64; block_offset += HASH_LENGTH) {
+         for (int i = 0; i < HASH_LENGTH; ++i) {
+            hash[i] ^= hash512[block_offset + i];
+         }
+      }
+
+      return hash;
+   }
+
+   private static Header deserializeLegacy(byte [] magic, java.io.InputStream input) throws java.lang.Exception {
+      byte [] header_bytes = new byte [HEADER_BYTE_LENGTH];
+      System.arraycopy(magic, 0, header_bytes, 0, magic.length);
+      if (input.readNBytes(header_bytes, magic.length, HEADER_BYTE_LENGTH - magic.length) < HEADER_BYTE_LENGTH - magic.length) {
+         throw new DeserializeException("header is missing or damaged, file may be corrupt");
+      }
+
       // footer
       for (int i = 0; i < MAGIC_FOOTER.length; ++i) {
          if (header_bytes[MAGIC_HEADER.length + HASH_LENGTH + 1 + i] != MAGIC_FOOTER[i]) {
@@ -93,14 +314,148 @@ public class Header {
       System.arraycopy(header_bytes, MAGIC_HEADER.length, hash, 0, HASH_LENGTH);
 
       // algorithm
-      byte algorithm_byte = header_bytes[MAGIC_HEADER.length + HASH_LENGTH];
+      Header header = new Header(Cryptor.Algorithm.Plaintext, hash, false);
+      header.parseAlgorithmByte(header_bytes[MAGIC_HEADER.length + HASH_LENGTH]);
+
+      return header;
+   }
+
+   private static Header deserializeVersioned(java.io.InputStream input) throws java.lang.Exception {
+      java.io.DataInputStream header_input = new java.io.DataInputStream(input);
+
+      int version;
+      int records_length;
+      byte [] records;
+      byte [] footer;
+      try {
+         version = header_input.readUnsignedByte();
+         if (version != VERSION_CURRENT) {
+            throw new DeserializeException(String.format("header version %d is not supported", version));
+         }
+
+         records_length = header_input.readUnsignedShort();
+         records = header_input.readNBytes(records_length);
+         footer = header_input.readNBytes(MAGIC_FOOTER.length);
+      } catch (java.io.EOFException e) {
+         throw new DeserializeException("header is missing or damaged, file may be corrupt");
+      }
+
+      if (records.length != records_length || !java.util.Arrays.equals(footer, MAGIC_FOOTER)) {
+         throw new DeserializeException("header is missing or damaged, file may be corrupt");
+      }
+
+      Header header = new Header(Cryptor.Algorithm.Plaintext, new byte [HASH_LENGTH], false, new byte [0], 0);
+      boolean has_algorithm = false;
+      boolean has_hash = false;
+      boolean has_kdf_salt = false;
+      boolean has_kdf_iterations = false;
+
+      java.nio.ByteBuffer buffer = java.nio.ByteBuffer.wrap(records);
+      while (buffer.hasRemaining()) {
+         if (buffer.remaining() < 3) {
+            throw new DeserializeException("header record is truncated, file may be corrupt");
+         }
+
+         int tag = buffer.get() & 0xff;
+         int length = buffer.getShort() & 0xffff;
+         if (length > buffer.remaining()) {
+            throw new DeserializeException("header record is truncated, file may be corrupt");
+         }
+
+         byte [] value = new byte [length];
+         buffer.get(value);
+
+         switch (tag) {
+         case TAG_ALGORITHM:
+            expectLength(value, 1);
+            header.parseAlgorithmByte(value[0]);
+            has_algorithm = true;
+            break;
+
+         case TAG_HASH:
+            expectLength(value, HASH_LENGTH);
+            header.hash = value;
+            has_hash = true;
+            break;
+
+         case TAG_KDF_SALT:
+            header.kdf_salt = value;
+            has_kdf_salt = true;
+            break;
+
+         case TAG_KDF_ITERATIONS:
+            expectLength(value, 4);
+            header.kdf_iterations = java.nio.ByteBuffer.wrap(value).getInt();
+            if (header.kdf_iterations <= 0 || header.kdf_iterations > Kdf.MAX_ITERATIONS) {
+               throw new DeserializeException("key derivation iteration count is invalid");
+            }
+            has_kdf_iterations = true;
+            break;
+
+         case TAG_CHUNK_SIZE:
+            expectLength(value, 4);
+            header.chunk_size = java.nio.ByteBuffer.wrap(value).getInt();
+            if (header.chunk_size <= 0) {
+               throw new DeserializeException("chunk size is invalid");
+            }
+            break;
+
+         case TAG_NONCE:
+            header.nonce = value;
+            break;
+
+         case TAG_COMPRESSION:
+            expectLength(value, 1);
+            if ((value[0] & 0xff) >= MAP_BYTE_COMPRESSION.length) {
+               throw new DeserializeException("compression byte is invalid");
+            }
+            header.compression = MAP_BYTE_COMPRESSION[value[0] & 0xff];
+            break;
+
+         case TAG_DIGESTS:
+            expectLength(value, 0);
+            header.digests = true;
+            break;
+
+         default:
+            // Unknown records come from newer versions of the program and are
+            // skipped.
+            break;
+         }
+      }
+
+      // Chunked data needs both the chunk size and the nonce.
+      if (!has_algorithm || !has_hash || !has_kdf_salt || !has_kdf_iterations || (header.chunk_size != 0) != (header.nonce != null)) {
+         throw new DeserializeException("header is missing required records, file may be corrupt");
+      }
+      // Only chunks are ever compressed or have digests.
+      if (header.compression != Container.Compression.None && header.chunk_size == 0) {
+         throw new DeserializeException("compression is only valid for chunked data, file may be corrupt");
+      }
+      if (header.digests && header.chunk_size == 0) {
+         throw new DeserializeException("digests are only valid for chunked data, file may be corrupt");
+      }
+
+      return header;
+   }
+
+   private static void expectLength(byte [] value, int length) throws DeserializeException {
+      if (value.length != length) {
+         throw new DeserializeException("header record has the wrong length, file may be corrupt");
+      }
+
+      return;
+   }
+
+   private void parseAlgorithmByte(byte algorithm_byte) throws DeserializeException {
+      this.armored = (algorithm_byte & FLAG_ARMORED) != 0;
+      algorithm_byte &= MASK_ALGORITHM;
       if (algorithm_byte >= MAP_BYTE_ALGORITHM.length) {
          throw new DeserializeException("algorithm byte is invalid");
       }
 
-      Cryptor.Algorithm algorithm = MAP_BYTE_ALGORITHM[algorithm_byte];
-   
-      return new Header(algorithm, hash);
+      this.algorithm = MAP_BYTE_ALGORITHM[algorithm_byte];
+      return;
    }
 
    public static class DeserializeException extends java.lang.Exception {
@@ -108,5 +463,10 @@ public class Header {
          super(msg);
       }
    }
-}
 
+   public static class IncorrectPasswordException extends java.lang.Exception {
+      public IncorrectPasswordException(String msg) {
+         super(msg);
+      }
+   }
+}
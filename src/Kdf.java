@@ -0,0 +1,212 @@
+// Password-based key derivation.  Keys are derived with PBKDF2 (RFC 8018)
+// using HMAC-SHA512, with a random salt for every file and a tunable number of
+// iterations, both of which are stored in the file header.  The iterations
+// make every password guess expensive for an attacker, but they're just as
+// expensive for us, so derived keys are kept in a small cache.  This way a
+// batch of files encrypted with the same password and salt only pays for the
+// derivation once.
+public class Kdf {
+   // Length of the random salt generated for each file.
+   public static final int SALT_LENGTH = 16;
+
+   // Default number of PBKDF2 iterations for new files.
+   public static final int DEFAULT_ITERATIONS = 210_000;
+
+   // Most PBKDF2 iterations a file may ask for.  The password can only be
+   // checked once the key has been derived, so without a limit a damaged or
+   // crafted header could keep us busy for hours before being rejected.
+   public static final int MAX_ITERATIONS = 16 * DEFAULT_ITERATIONS;
+
+   // Length of the derived key, which matches the length of the secrets the
+   // cryptors have always been given.
+   public static final int KEY_LENGTH = Hasher.Sha512.DIGEST_SIZE;
+
+   // Maximum number of derived keys kept in the cache.
+   private static final int CACHE_CAPACITY = 64;
+
+   private static final java.security.SecureRandom RANDOM = new java.security.SecureRandom();
+
+   // Generates a new random salt.
+   public static byte [] generateSalt() {
+      byte [] salt = new byte [SALT_LENGTH];
+      RANDOM.nextBytes(salt);
+      return salt;
+   }
+
+   // Derives the key for 'password' with the given salt and iteration count,
+   // reusing a previously derived key if there is one.  This is safe to call
+   // from multiple threads.  If several threads ask for the same key at once,
+   // only one of them derives it and the rest wait for the result.
+   public static byte [] derive(String password, byte [] salt, int iterations) throws java.lang.Exception {
+      byte [] password_bytes = password.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+
+      java.util.concurrent.FutureTask<byte []> task;
+      boolean owner = false;
+      synchronized (CACHE) {
+         java.nio.ByteBuffer cache_key = cacheKey(password_bytes, salt, iterations);
+
+         task = CACHE.get(cache_key);
+         if (task == null) {
+            task = new java.util.concurrent.FutureTask<byte []>(new Derivation(password_bytes, salt, iterations));
+            CACHE.put(cache_key, task);
+            owner = true;
+         }
+      }
+
+      // The derivation runs outside of the lock, so deriving one key doesn't
+      // hold up threads which need a different one.
+      if (owner) {
+         task.run();
+      }
+
+      try {
+         return task.get().clone();
+      } catch (java.util.concurrent.ExecutionException e) {
+         synchronized (CACHE) {
+            CACHE.values().remove(task);
+         }
+         java.lang.Throwable cause = e.getCause();
+         if (cause instanceof java.lang.Error) {
+            throw (java.lang.Error)cause;
+         }
+         throw (java.lang.Exception)cause;
+      }
+   }
+
+   // Derives the secrets used to encrypt the data in a file with the given
+   // header.  Keys derived with PBKDF2 are cached, so calling this again for
+   // the same header is cheap.
+   public static byte [] derive(String password, Header header) throws java.lang.Exception {
+      long start = System.nanoTime();
+      try {
+         switch (header.version) {
+         case Header.VERSION_LEGACY:
+            return deriveLegacy(password);
+
+         default:
+            return derive(password, header.kdf_salt, header.kdf_iterations);
+         }
+      } finally {
+         Metrics.timeSince(Metrics.Timer.Kdf, start);
+      }
+   }
+
+   // Derives secrets for version 1 headers, which use a single salted hash
+   // rather than PBKDF2.
+   private static byte [] deriveLegacy(String password) {
+      // This will use standard salting + hashing, which works in the following
+      // way:
+      //
+      // 1. We append some constant string value to the password, which is
+      // called 'salting'.  This protects the password from 'rainbow tables',
+      // which are essentially pre-computer brute-force attacks.
+      //
+      // 2. We run a hashing algorithm to convert the password into a list of
+      // bytes which protects encrypted data from sharing similar keys with
+      // similar passwords, if that makes sense.
+      //
+      // The output byte data will be used as the key, or as we call it, secrets
+      // used to encrypt/decrypt data.
+      //
+      // Also worth noting that this function must have the same output for
+      // each unique input across versions.  Basically, once implemented, the
+      // output can never change, otherwise it will invalidate encryption keys
+      // for older files, thus making them impossible to decrypt.
+      // This is why it uses 'Sha512Legacy' rather than 'Sha512'.
+
+      final String PASSWORD_SALT = "### ENCRYPT 2024 ###";
+
+      String password_salted = password + PASSWORD_SALT;
+
+      byte [] password_salted_bytes = password_salted.getBytes();
+
+      Hasher hasher = new Hasher.Sha512Legacy();
+
+      byte [] hash = hasher.digest(password_salted_bytes);
+
+      return hash;
+   }
+
+   // Derives 'length' bytes from 'password' and 'salt' using PBKDF2 with
+   // HMAC-SHA512 and 'iterations' rounds.  This always runs the derivation,
+   // without touching the cache.
+   public static byte [] pbkdf2(byte [] password, byte [] salt, int iterations, int length) {
+      final int HASH_LENGTH = Hasher.Sha512.DIGEST_SIZE;
+
+      Hasher.HmacSha512 hmac = new Hasher.HmacSha512(password);
+
+      byte [] key = new byte [length];
+      byte [] block_index = new byte [4];
+      byte [] u = new byte [HASH_LENGTH];
+      byte [] t = new byte [HASH_LENGTH];
+
+      // T_i = U_1 ^ U_2 ^ ... ^ U_c
+      // U_1 = HMAC(password, salt || i)
+      // U_j = HMAC(password, U_(j-1))
+      int block = 1;
+      for (int offset = 0; offset < length; offset += HASH_LENGTH) {
+         block_index[0] = (byte)(block >>> 24);
+         block_index[1] = (byte)(block >>> 16);
+         block_index[2] = (byte)(block >>> 8);
+         block_index[3] = (byte)block;
+
+         hmac.update(salt, 0, salt.length);
+         hmac.update(block_index, 0, block_index.length);
+         hmac.finish(u, 0);
+         System.arraycopy(u, 0, t, 0, HASH_LENGTH);
+
+         for (int i = 1; i < iterations; ++i) {
+            hmac.update(u, 0, HASH_LENGTH);
+            hmac.finish(u, 0);
+            for (int j = 0; j < HASH_LENGTH; ++j) {
+               t[j] ^= u[j];
+            }
+         }
+
+         System.arraycopy(t, 0, key, offset, Math.min(HASH_LENGTH, length - offset));
+         block += 1;
+      }
+
+      return key;
+   }
+
+   // Runs a single key derivation for the cache.
+   private static class Derivation implements java.util.concurrent.Callable<byte []> {
+      private final byte [] password;
+      private final byte [] salt;
+      private final int iterations;
+
+      public Derivation(byte [] password, byte [] salt, int iterations) {
+         this.password = password;
+         this.salt = salt.clone();
+         this.iterations = iterations;
+         return;
+      }
+
+      public byte [] call() {
+         return pbkdf2(this.password, this.salt, this.iterations, KEY_LENGTH);
+      }
+   }
+
+   // Least-recently-used cache of derived keys.  The oldest entry is dropped
+   // once the cache is full.
+   private static final java.util.LinkedHashMap<java.nio.ByteBuffer, java.util.concurrent.FutureTask<byte []>> CACHE = new java.util.LinkedHashMap<java.nio.ByteBuffer, java.util.concurrent.FutureTask<byte []>>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(java.util.Map.Entry<java.nio.ByteBuffer, java.util.concurrent.FutureTask<byte []>> eldest) {
+         return this.size() > CACHE_CAPACITY;
+      }
+   };
+
+   // The cache is keyed on a hash of the derivation parameters rather than the
+   // parameters themselves, so the cache doesn't hold on to the password.
+   // ByteBuffer compares by content, which makes it a handy map key.
+   private static java.nio.ByteBuffer cacheKey(byte [] password, byte [] salt, int iterations) {
+      Hasher.Sha512 hasher = new Hasher.Sha512();
+
+      byte [] lengths = java.nio.ByteBuffer.allocate(12).putInt(password.length).putInt(salt.length).putInt(iterations).array();
+      hasher.update(lengths, 0, lengths.length);
+      hasher.update(password, 0, password.length);
+      hasher.update(salt, 0, salt.length);
+
+      return java.nio.ByteBuffer.wrap(hasher.finish());
+   }
+}
@@ -0,0 +1,112 @@
+// Bulk byte operations used by the transforms which work a byte at a time,
+// such as adding a constant or XORing a keystream into the data.  Both
+// operations act on every byte on its own, so the data is processed 8 bytes
+// at a time as longs, which works the same whatever order the bytes of the
+// long are in.  Longs are read in the CPU's own byte order so no swapping is
+// needed, and whatever is left over at the end is done a byte at a time.
+//
+// Byte loops over arrays are only sometimes vectorized by the JIT, and loops
+// over buffers never are, since every access goes through 'get' and 'put'.
+// Going through longs instead is several times faster for arrays and over ten
+// times faster for direct buffers, which is what memory-mapped files use.
+public class Kernels {
+   // Every byte of a long with only its top bit set.
+   private static final long HIGH_BITS = 0x8080808080808080L;
+
+   // Every byte of a long set to 1, which spreads a byte across a long when
+   // multiplied by it.
+   private static final long LOW_BYTES = 0x0101010101010101L;
+
+   // Adds 'value' to each of the 'length' bytes in 'input' starting at
+   // 'input_offset', storing the results in 'output' starting at
+   // 'output_offset'.  Additions wrap around within each byte.  'input' and
+   // 'output' may be the same array, as long as the offsets are too.
+   public static void add(byte [] input, int input_offset, byte [] output, int output_offset, int length, byte value) {
+      long values = (value & 0xffL) * LOW_BYTES;
+
+      int i = 0;
+      for (; i <= length - 8; i += 8) {
+         LONG_NATIVE.set(output, output_offset + i, addBytes((long)LONG_NATIVE.get(input, input_offset + i), values));
+      }
+      for (; i < length; ++i) {
+         output[output_offset + i] = (byte)(input[input_offset + i] + value);
+      }
+
+      return;
+   }
+
+   // Same as above, but for buffers, starting at the absolute indexes
+   // 'input_index' and 'output_index'.  The positions of the buffers are
+   // left alone.
+   public static void add(java.nio.ByteBuffer input, int input_index, java.nio.ByteBuffer output, int output_index, int length, byte value) {
+      // Heap buffers go straight to their arrays.  The buffer views are then
+      // only ever used on direct buffers, which the JIT handles much better
+      // than a mix of both.
+      if (input.hasArray() && output.hasArray()) {
+         add(input.array(), input.arrayOffset() + input_index, output.array(), output.arrayOffset() + output_index, length, value);
+         return;
+      }
+
+      long values = (value & 0xffL) * LOW_BYTES;
+
+      int i = 0;
+      for (; i <= length - 8; i += 8) {
+         LONG_NATIVE_BUFFER.set(output, output_index + i, addBytes((long)LONG_NATIVE_BUFFER.get(input, input_index + i), values));
+      }
+      for (; i < length; ++i) {
+         output.put(output_index + i, (byte)(input.get(input_index + i) + value));
+      }
+
+      return;
+   }
+
+   // XORs the 'length' bytes in 'input' starting at 'input_offset' with the
+   // bytes of 'key' starting at 'key_offset', storing the results in 'output'
+   // starting at 'output_offset'.  'input' and 'output' may be the same
+   // array, as long as the offsets are too.
+   public static void xor(byte [] input, int input_offset, byte [] key, int key_offset, byte [] output, int output_offset, int length) {
+      int i = 0;
+      for (; i <= length - 8; i += 8) {
+         LONG_NATIVE.set(output, output_offset + i, (long)LONG_NATIVE.get(input, input_offset + i) ^ (long)LONG_NATIVE.get(key, key_offset + i));
+      }
+      for (; i < length; ++i) {
+         output[output_offset + i] = (byte)(input[input_offset + i] ^ key[key_offset + i]);
+      }
+
+      return;
+   }
+
+   // Same as above, but for buffers, starting at the absolute indexes
+   // 'input_index' and 'output_index'.  The positions of the buffers are
+   // left alone.
+   public static void xor(java.nio.ByteBuffer input, int input_index, byte [] key, int key_offset, java.nio.ByteBuffer output, int output_index, int length) {
+      if (input.hasArray() && output.hasArray()) {
+         xor(input.array(), input.arrayOffset() + input_index, key, key_offset, output.array(), output.arrayOffset() + output_index, length);
+         return;
+      }
+
+      int i = 0;
+      for (; i <= length - 8; i += 8) {
+         LONG_NATIVE_BUFFER.set(output, output_index + i, (long)LONG_NATIVE_BUFFER.get(input, input_index + i) ^ (long)LONG_NATIVE.get(key, key_offset + i));
+      }
+      for (; i < length; ++i) {
+         output.put(output_index + i, (byte)(input.get(input_index + i) ^ key[key_offset + i]));
+      }
+
+      return;
+   }
+
+   // Adds each byte of 'values' to the matching byte of 'data'.  The top bit
+   // of every byte is cleared before adding so carries can't spill into the
+   // next byte, then the top bits are put back with an XOR, which is how they
+   // would have been added without the carry out.
+   private static long addBytes(long data, long values) {
+      return ((data & ~HIGH_BITS) + (values & ~HIGH_BITS)) ^ ((data ^ values) & HIGH_BITS);
+   }
+
+   // Views of byte arrays and buffers as longs in the CPU's own byte order,
+   // which compile down to a single load or store.  The buffer view ignores
+   // the buffer's own byte order.
+   private static final java.lang.invoke.VarHandle LONG_NATIVE = java.lang.invoke.MethodHandles.byteArrayViewVarHandle(long [].class, java.nio.ByteOrder.nativeOrder());
+   private static final java.lang.invoke.VarHandle LONG_NATIVE_BUFFER = java.lang.invoke.MethodHandles.byteBufferViewVarHandle(long [].class, java.nio.ByteOrder.nativeOrder());
+}
@@ -2,192 +2,623 @@ public class Main {
    public static void main(String [] args_cmd) throws java.lang.Exception {
       Arguments args = Arguments.parse(args_cmd);
 
-      // We use buffered file streams so massive files don't have to be loaded
-      // into memory all at once, which also avoids reading over the whole file
-      // twice, once for the memory copy and another to run the algorithm.
-      java.io.BufferedInputStream input = new java.io.BufferedInputStream(new java.io.FileInputStream(args.input));
-      java.io.BufferedOutputStream output = new java.io.BufferedOutputStream(new java.io.FileOutputStream(args.output));
-
       String password = readPassword(args);
 
-      byte [] secrets      = deriveSecrets(password);
-      byte [] secrets_hash = deriveSecretsHash(secrets);
+      // Progress and statistics are both worked out from running totals.
+      Metrics.Totals totals = null;
+      Metrics.Progress progress = null;
+      if (args.progress || args.stats) {
+         totals = new Metrics.Totals();
+         Metrics.addListener(totals);
+      }
+      if (!args.batch && !args.range && !args.server && !args.input.equals(Arguments.STANDARD_STREAM)) {
+         Metrics.count(Metrics.Counter.BytesExpected, new java.io.File(args.input).length());
+      }
+      if (args.progress) {
+         progress = new Metrics.Progress(totals, System.err);
+         progress.start();
+      }
 
-      Cryptor cryptor;
-      switch (args.mode) {
-      case Encrypt:
-         writeHeader(output, args.algorithm, secrets_hash);
-         cryptor = chooseCryptor(args.algorithm);
+      try {
+         if (args.server) {
+            Server.run(args, password);
+         } else if (args.batch) {
+            Batch.run(args, password);
+         } else {
+            runFile(args, password, args.input, args.output, Kdf.generateSalt());
+         }
+      } finally {
+         if (progress != null) {
+            progress.finish();
+         }
+         if (args.stats) {
+            System.err.println(totals.summary());
+         }
+         if (totals != null) {
+            Metrics.removeListener(totals);
+         }
+      }
 
-         cryptor.encrypt(input, output, secrets);
-         break;
+      return;
+   }
 
-      case Decrypt:
-         Cryptor.Algorithm algorithm = readAndVerifyHeader(input, secrets_hash);
-         cryptor = chooseCryptor(algorithm);
+   // Encrypts or decrypts a single file from 'input' to 'output'.  When
+   // encrypting, the key is derived using 'kdf_salt', which lets a batch of
+   // files share a single key derivation.  This is safe to call from multiple
+   // threads at once.
+   static void runFile(Arguments args, String password, String input, String output, byte [] kdf_salt) throws java.lang.Exception {
+      // Streams hash the file being checksummed as it goes through them.
+      // Channels skip the streams for most of the data, so the file is hashed
+      // on every core once it has been written instead.
+      TreeHash.Stream checksum = null;
+      if (args.checksum != null && !args.nio) {
+         checksum = CHECKSUM.stream();
+      }
 
-         cryptor.decrypt(input, output, secrets);
-         break;
+      if (args.range) {
+         runRange(args, password, input, output);
+      } else if (args.incremental) {
+         runIncremental(args, password, input, output, kdf_salt, checksum);
+      } else if (args.nio) {
+         runChannels(args, password, input, output, kdf_salt);
+      } else {
+         runStreams(args, password, input, output, kdf_salt, checksum);
       }
 
-      input.close();
-      output.close();
+      if (args.checksum != null) {
+         String path = checksumsInput(args) ? input : output;
+         byte [] digest = checksum != null ? checksum.finish() : CHECKSUM.hashFile(java.nio.file.Paths.get(path));
 
+         // The checksum can't go to stdout when the output does.
+         java.io.PrintStream out = output.equals(Arguments.STANDARD_STREAM) ? System.err : System.out;
+         out.println(String.format("%s (%s) = %s", CHECKSUM_TAG, path, TreeHash.toHex(digest)));
+      }
+
+      Metrics.count(Metrics.Counter.Files, 1);
       return;
    }
 
-   // Attempts to read plaintext password from the source specified in arguments.
-   private static String readPassword(Arguments args) throws java.lang.Exception {
-      String file_path = args.secrets;
-      if (file_path == null) {
-         return readPasswordPrompt();
+   // Tree hash used for '--checksum'.  This is shared so the per-thread
+   // hashers and buffers are reused from file to file.
+   private static final TreeHash CHECKSUM = TreeHash.sha512();
+
+   // Names the checksum when it's printed.  This is a BSD-style tagged line,
+   // but the tag is our own, since the tree hash won't match a plain SHA-512
+   // and 'sha512sum -c' shouldn't be fooled into checking it as one.
+   private static final String CHECKSUM_TAG = "TREE-SHA512-1M";
+
+   // Whether the file to checksum is the input, which it is when it's the
+   // plaintext being encrypted or the ciphertext being decrypted.
+   private static boolean checksumsInput(Arguments args) {
+      return (args.mode == Arguments.Mode.Encrypt) == (args.checksum == Arguments.Checksum.Plaintext);
+   }
+
+   // Runs the program over file streams.
+   // If 'checksum' isn't 'null', the file being checksummed is fed into it
+   // as it's read or written.
+   private static void runStreams(Arguments args, String password, String path_input, String path_output, byte [] kdf_salt, TreeHash.Stream checksum) throws java.lang.Exception {
+      // We use buffered file streams so massive files don't have to be loaded
+      // into memory all at once, which also avoids reading over the whole file
+      // twice, once for the memory copy and another to run the algorithm.
+      java.io.InputStream input_file = new Metrics.CountingInputStream(openInput(path_input));
+      java.io.OutputStream output_file = new Metrics.CountingOutputStream(openOutput(path_output));
+      if (checksum != null && checksumsInput(args)) {
+         input_file = new TreeHash.HashingInputStream(input_file, checksum);
+      } else if (checksum != null) {
+         output_file = new TreeHash.HashingOutputStream(output_file, checksum);
       }
 
-      return readPasswordFile(file_path);
+      java.io.BufferedInputStream input = new java.io.BufferedInputStream(input_file, bufferSize(path_input));
+      java.io.BufferedOutputStream output = new java.io.BufferedOutputStream(output_file, bufferSize(path_output));
+
+      Header header;
+      byte [] secrets;
+      try {
+         header = processHeader(args, password, kdf_salt, input, output);
+         secrets = Kdf.derive(password, header);
+      } catch (java.lang.Exception e) {
+         closeQuietly(input);
+         closeQuietly(output);
+         throw e;
+      }
+
+      processPayload(args.mode, header, input, output, secrets);
+      return;
    }
 
-   // Reads password from the user using a terminal prompt.
-   private static String readPasswordPrompt() throws ConsoleUnavailableException {
-      java.io.Console console = System.console();
-      if (console == null) {
-         throw new ConsoleUnavailableException("console unavailable");
+   // Size of the buffers used for stdin and stdout.  Pipes only hand over a
+   // small amount with each read or write, so a large buffer keeps the number
+   // of calls down without holding on to more than this much of the stream.
+   private static final int STANDARD_STREAM_BUFFER_SIZE = 1024 * 1024;
+
+   // Opens 'path' for reading, or stdin if it's '-'.
+   private static java.io.InputStream openInput(String path) throws java.lang.Exception {
+      if (path.equals(Arguments.STANDARD_STREAM)) {
+         return new java.io.FileInputStream(java.io.FileDescriptor.in);
       }
 
-      char [] data = console.readPassword("Please enter the password: ");
+      return new java.io.FileInputStream(path);
+   }
 
-      return new String(data);
+   // Opens 'path' for writing, or stdout if it's '-'.
+   private static java.io.OutputStream openOutput(String path) throws java.lang.Exception {
+      if (path.equals(Arguments.STANDARD_STREAM)) {
+         return new java.io.FileOutputStream(java.io.FileDescriptor.out);
+      }
+
+      return new java.io.FileOutputStream(path);
    }
 
-   // Reads password from a user-specified file path.
-   private static String readPasswordFile(String path) throws java.lang.Exception {
-      byte [] bytes = readFileBytes(path);
+   // Size of the buffer to put in front of 'path'.  Files keep the usual
+   // default.
+   private static int bufferSize(String path) {
+      if (path.equals(Arguments.STANDARD_STREAM)) {
+         return STANDARD_STREAM_BUFFER_SIZE;
+      }
 
-      return new String(bytes);
+      return 8192;
    }
 
-   // This is only available in Java 11...
-   private static byte [] readFileBytes(String path) throws java.lang.Exception {
-      final int BUFFER_SIZE = 1024;
+   // Runs the program over file channels.  Chunked data is decrypted using
+   // the chunk index, reading, decrypting and writing every chunk at its own
+   // position in both files on every core at once.  Encrypting has to write
+   // the chunks one after another, since where each one goes depends on the
+   // length of the ones before it, so it goes through streams on top of the
+   // channels, which still encrypt the chunks on every core.  Armored data
+   // has to be read in order as well.
+   //
+   // Files written before the data was split into chunks are handled
+   // directly on the channels.  Length-preserving algorithms read the input
+   // through memory maps and write straight into a memory-mapped region of
+   // the output, and plaintext is handed off to the OS as a plain file copy.
+   private static void runChannels(Arguments args, String password, String path_input, String path_output, byte [] kdf_salt) throws java.lang.Exception {
+      java.nio.channels.FileChannel input = java.nio.channels.FileChannel.open(
+         java.nio.file.Paths.get(path_input),
+         java.nio.file.StandardOpenOption.READ
+      );
+
+      // Both channels are closed however this ends, since batch and server
+      // modes keep going after a file fails.
+      try {
+         java.nio.channels.FileChannel output = java.nio.channels.FileChannel.open(
+            java.nio.file.Paths.get(path_output),
+            java.nio.file.StandardOpenOption.READ,
+            java.nio.file.StandardOpenOption.WRITE,
+            java.nio.file.StandardOpenOption.CREATE,
+            java.nio.file.StandardOpenOption.TRUNCATE_EXISTING
+         );
+
+         try {
+            // The header is tiny, so it goes through unbuffered streams which
+            // leave the channel positions directly after it.
+            java.io.InputStream input_stream = new Metrics.CountingInputStream(java.nio.channels.Channels.newInputStream(input));
+            java.io.OutputStream output_stream = new Metrics.CountingOutputStream(java.nio.channels.Channels.newOutputStream(output));
+            Header header = processHeader(args, password, kdf_salt, input_stream, output_stream);
+            byte [] secrets = Kdf.derive(password, header);
+            Cryptor cryptor = header.algorithm.cryptor();
+            boolean raw = !header.armored && header.chunk_size == 0;
+            boolean chunked = !header.armored && header.chunk_size != 0;
+
+            if (raw && cryptor instanceof Cryptor.Plaintext) {
+               transferChannel(input, output);
+            } else if (raw && cryptor instanceof Cryptor.Transform) {
+               mapChannel(args.mode, (Cryptor.Transform)cryptor, input, output, secrets);
+            } else if (chunked && args.mode == Arguments.Mode.Decrypt) {
+               Container.decrypt(input, input.position(), new Container.Codec(header, cryptor, secrets), output, output.position());
+            } else {
+               processPayload(args.mode, header, new java.io.BufferedInputStream(input_stream), new java.io.BufferedOutputStream(output_stream), secrets);
+            }
+         } finally {
+            output.close();
+         }
+      } finally {
+         input.close();
+      }
 
-      java.io.FileInputStream stream_input = new java.io.FileInputStream(new java.io.File(path));
+      return;
+   }
+
+   // Decrypts only the requested range of a file.  The chunk index is read
+   // from the end of the file, so only the chunks covering the range are read
+   // and decrypted.
+   private static void runRange(Arguments args, String password, String path_input, String path_output) throws java.lang.Exception {
+      DecryptingChannel input = DecryptingChannel.open(java.nio.file.Paths.get(path_input), password);
+      try {
+         java.io.BufferedOutputStream output = new java.io.BufferedOutputStream(new Metrics.CountingOutputStream(openOutput(path_output)), bufferSize(path_output));
+         try {
+            long end = Math.min(args.range_end, input.size());
+            input.position(args.range_start);
+
+            // Only the range is read, so that's what progress is measured
+            // against.  The plaintext coming out of the channel counts as the
+            // input.
+            Metrics.count(Metrics.Counter.BytesExpected, Math.max(0, end - args.range_start));
+
+            byte [] chunk = Buffers.acquire(Container.DEFAULT_CHUNK_SIZE);
+            try {
+               java.nio.ByteBuffer buffer = java.nio.ByteBuffer.wrap(chunk);
+               for (long position = args.range_start; position < end; position += buffer.position()) {
+                  buffer.clear();
+                  buffer.limit((int)Math.min(buffer.capacity(), end - position));
+                  input.read(buffer);
+                  Metrics.count(Metrics.Counter.BytesIn, buffer.position());
+                  output.write(chunk, 0, buffer.position());
+               }
+            } finally {
+               Buffers.release(chunk);
+            }
+         } finally {
+            output.close();
+         }
+      } finally {
+         input.close();
+      }
+
+      return;
+   }
+
+   // Encrypts the input over the existing output, only encrypting the chunks
+   // which changed since it was written.  The existing output is built on if
+   // it was written with '--incremental' using the same password and
+   // settings, keeping its header so its chunks stay valid.  Otherwise the
+   // output is written in full, with digests so the next run can be
+   // incremental.  The new version is written next to the output and moved
+   // over it once finished, so the output is never left half written.
+   // If 'checksum' isn't 'null', the file being checksummed is fed into it
+   // as it's read or written.
+   private static void runIncremental(Arguments args, String password, String path_input, String path_output, byte [] kdf_salt, TreeHash.Stream checksum) throws java.lang.Exception {
+      java.nio.file.Path output_path = java.nio.file.Paths.get(path_output).toAbsolutePath();
+      java.nio.file.Path temporary = createTemporary(output_path);
+      java.io.InputStream input = null;
+      java.io.OutputStream output = null;
+      Container.Writer writer = null;
+      java.nio.channels.FileChannel previous_file = null;
+
+      try {
+         input = new Metrics.CountingInputStream(openInput(path_input));
+         output = new Metrics.CountingOutputStream(new java.io.FileOutputStream(temporary.toFile()));
+         if (checksum != null && checksumsInput(args)) {
+            input = new TreeHash.HashingInputStream(input, checksum);
+         } else if (checksum != null) {
+            output = new TreeHash.HashingOutputStream(output, checksum);
+         }
 
-      java.io.ByteArrayOutputStream stream_output = new java.io.ByteArrayOutputStream();
+         input = new java.io.BufferedInputStream(input, bufferSize(path_input));
+         output = new java.io.BufferedOutputStream(output);
 
-      int bytes_read_count;
-      byte [] bytes_read_buffer = new byte[BUFFER_SIZE];
+         Header header = null;
+         if (java.nio.file.Files.exists(output_path)) {
+            previous_file = java.nio.channels.FileChannel.open(output_path, java.nio.file.StandardOpenOption.READ);
+            header = readReusableHeader(args, password, previous_file);
+         }
 
-      while ((bytes_read_count = stream_input.read(bytes_read_buffer, 0, BUFFER_SIZE)) != -1) {
-         stream_output.write(bytes_read_buffer, 0, bytes_read_count);
+         boolean reused = header != null;
+         if (reused) {
+            long start = System.nanoTime();
+            header.serialize(output);
+            Metrics.timeSince(Metrics.Timer.Header, start);
+         } else {
+            header = writeHeader(output, args.algorithm, false, chooseCompression(args), true, password, kdf_salt, args.kdf_iterations);
+         }
+
+         byte [] secrets = Kdf.derive(password, header);
+         Container.Codec codec = new Container.Codec(header, header.algorithm.cryptor(), secrets);
+         Container.Previous previous = null;
+         if (reused) {
+            previous = new Container.Previous(previous_file, previous_file.position(), codec);
+         }
+
+         writer = new Container.Writer(output, codec, previous);
+         input.transferTo(writer);
+         input.close();
+         writer.close();
+      } catch (java.lang.Exception e) {
+         if (writer != null) {
+            abortQuietly(writer);
+         }
+         if (input != null) {
+            closeQuietly(input);
+         }
+         if (output != null) {
+            closeQuietly(output);
+         }
+         if (previous_file != null) {
+            closeQuietly(previous_file);
+         }
+         java.nio.file.Files.deleteIfExists(temporary);
+         throw e;
+      }
+
+      if (previous_file != null) {
+         previous_file.close();
       }
+      java.nio.file.Files.move(temporary, output_path, java.nio.file.StandardCopyOption.REPLACE_EXISTING, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+      return;
+   }
 
-      byte [] bytes = stream_output.toByteArray();
+   // Creates the file the new version of 'output_path' is written to, next to
+   // the output so it can be moved over it.  'Files.createTempFile' would make
+   // it readable only by its owner, which the move would carry over to the
+   // output.  Instead it gets the permissions of the existing output, or the
+   // usual permissions for a new file if there's no output yet.
+   private static java.nio.file.Path createTemporary(java.nio.file.Path output_path) throws java.lang.Exception {
+      java.nio.file.Path temporary;
+      while (true) {
+         String name = String.format("%s.%016x.tmp", output_path.getFileName(), java.util.concurrent.ThreadLocalRandom.current().nextLong());
+         temporary = output_path.resolveSibling(name);
+         try {
+            java.nio.file.Files.createFile(temporary);
+            break;
+         } catch (java.nio.file.FileAlreadyExistsException e) {
+            continue;
+         }
+      }
+
+      boolean posix = output_path.getFileSystem().supportedFileAttributeViews().contains("posix");
+      if (posix && java.nio.file.Files.exists(output_path)) {
+         try {
+            java.nio.file.Files.setPosixFilePermissions(temporary, java.nio.file.Files.getPosixFilePermissions(output_path));
+         } catch (java.lang.Exception e) {
+            java.nio.file.Files.deleteIfExists(temporary);
+            throw e;
+         }
+      }
 
-      return bytes;
+      return temporary;
    }
 
-   private static final java.util.HashMap<Cryptor.Algorithm, Cryptor> MAP_CRYPTOR = new java.util.HashMap<Cryptor.Algorithm, Cryptor>() {{
-      put(Cryptor.Algorithm.Plaintext,       new Cryptor.Plaintext());
-      put(Cryptor.Algorithm.ConstantOffset,  new Cryptor.ConstantOffset());
-      put(Cryptor.Algorithm.AES256,          new Cryptor.AES256());
-   }};
+   // Reads the header of the existing output for '--incremental', leaving
+   // 'file' positioned at the start of the data.  Returns 'null' if the output
+   // can't be built on, which is when it wasn't written with
+   // '--incremental', was written with different settings, or isn't an
+   // encrypted file at all.  If it was encrypted with a different password,
+   // the password check throws instead, so a mistyped password can't quietly
+   // re-encrypt the whole output under a new key.
+   private static Header readReusableHeader(Arguments args, String password, java.nio.channels.FileChannel file) throws java.lang.Exception {
+      Header header;
+      try {
+         header = Header.deserializeVerified(java.nio.channels.Channels.newInputStream(file), password);
+      } catch (Header.DeserializeException e) {
+         return null;
+      }
 
-   private static Cryptor chooseCryptor(Cryptor.Algorithm algorithm) {
-      return MAP_CRYPTOR.get(algorithm);
+      if (!header.digests || header.armored || header.algorithm != args.algorithm || header.compression != chooseCompression(args) || header.kdf_iterations != args.kdf_iterations) {
+         return null;
+      }
+
+      return header;
    }
 
-   private static byte [] deriveSecrets(String password) {
-      // This will use standard salting + hashing, which works in the following
-      // way:
-      //
-      // 1. We append some constant string value to the password, which is
-      // called 'salting'.  This protects the password from 'rainbow tables',
-      // which are essentially pre-computer brute-force attacks.
-      //
-      // 2. We run a hashing algorithm to convert the password into a list of
-      // bytes which protects encrypted data from sharing similar keys with
-      // similar passwords, if that makes sense.
-      //
-      // The output byte data will be used as the key, or as we call it, secrets
-      // used to encrypt/decrypt data.
-      //
-      // Also worth noting that this function must have the same output for
-      // each unique input across versions.  Basically, once implemented, the
-      // output can never change, otherwise it will invalidate encryption keys
-      // for older files, thus making them impossible to decrypt.
+   // Copies everything after the current position of 'input' to 'output'.
+   private static void transferChannel(java.nio.channels.FileChannel input, java.nio.channels.FileChannel output) throws java.lang.Exception {
+      long position = input.position();
+      long end = input.size();
+
+      // This may transfer less than requested, so we loop until it's done.
+      while (position < end) {
+         long start = System.nanoTime();
+         long count = input.transferTo(position, end - position, output);
+         Metrics.timeSince(Metrics.Timer.Write, start);
+         Metrics.count(Metrics.Counter.BytesIn, count);
+         Metrics.count(Metrics.Counter.BytesOut, count);
+         position += count;
+      }
 
-      final String PASSWORD_SALT = "### ENCRYPT 2024 ###";
+      return;
+   }
+
+   // Size of each memory-mapped window.  Mapping the whole file at once isn't
+   // possible since a single map is limited to 2 GiB.
+   private static final long MAP_WINDOW_SIZE = 64L * 1024L * 1024L;
+
+   // Transforms everything after the current position of 'input' and writes
+   // it after the current position of 'output', mapping both files one window
+   // at a time.
+   private static void mapChannel(Arguments.Mode mode, Cryptor.Transform cryptor, java.nio.channels.FileChannel input, java.nio.channels.FileChannel output, byte [] secrets) throws java.lang.Exception {
+      long position_input = input.position();
+      long position_output = output.position();
+      long end = input.size();
+
+      while (position_input < end) {
+         long window = Math.min(MAP_WINDOW_SIZE, end - position_input);
+
+         java.nio.MappedByteBuffer map_input = input.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, position_input, window);
+         java.nio.MappedByteBuffer map_output = output.map(java.nio.channels.FileChannel.MapMode.READ_WRITE, position_output, window);
+
+         // Page faults on the maps are counted towards the cipher, since they
+         // happen while it runs.
+         long start = System.nanoTime();
+         switch (mode) {
+         case Encrypt:
+            cryptor.encrypt(map_input, map_output, secrets);
+            break;
+
+         case Decrypt:
+            cryptor.decrypt(map_input, map_output, secrets);
+            break;
+         }
+         Metrics.timeSince(Metrics.Timer.Cipher, start);
+         Metrics.count(Metrics.Counter.BytesIn, window);
+         Metrics.count(Metrics.Counter.BytesOut, window);
 
-      String password_salted = password + PASSWORD_SALT;
+         position_input += window;
+         position_output += window;
+      }
 
-      byte [] password_salted_bytes = password_salted.getBytes();
+      return;
+   }
 
-      Hasher hasher = new Hasher.Sha512();
+   // Writes a new header when encrypting, or reads and verifies the existing
+   // header when decrypting.  Returns the header for the file.
+   private static Header processHeader(Arguments args, String password, byte [] kdf_salt, java.io.InputStream input, java.io.OutputStream output) throws java.lang.Exception {
+      switch (args.mode) {
+      case Encrypt:
+         return writeHeader(output, args.algorithm, args.armor, chooseCompression(args), false, password, kdf_salt, args.kdf_iterations);
 
-      byte [] hash = hasher.digest(password_salted_bytes);
+      case Decrypt:
+         return Header.deserializeVerified(input, password);
+      }
 
-      return hash;
+      return null;
    }
 
-   // Runs another round of salting+hashing to hash the encryption secrets
-   // for use with the file header (used for checking passwords).
-   private static byte [] deriveSecretsHash(byte [] secrets) {
-      final byte [] SECRETS_SALT = "### ENCRYPT 2024 ###".getBytes();
+   // Compression asked for by the arguments.
+   private static Container.Compression chooseCompression(Arguments args) {
+      return args.compress ? Container.Compression.Deflate : Container.Compression.None;
+   }
 
-      byte [] secrets_salted = new byte [secrets.length + SECRETS_SALT.length];
-      System.arraycopy(secrets, 0, secrets_salted, 0, secrets.length);
-      System.arraycopy(SECRETS_SALT, 0, secrets_salted, secrets.length, SECRETS_SALT.length);
+   // Runs the cryptor for 'header' over the data after the header, then
+   // closes both streams.  If anything goes wrong, both streams are still
+   // closed and any chunk writer is stopped, so a failed file doesn't leave
+   // pipeline threads or open files behind.
+   private static void processPayload(Arguments.Mode mode, Header header, java.io.InputStream input, java.io.OutputStream output, byte [] secrets) throws java.lang.Exception {
+      Cryptor cryptor = header.algorithm.cryptor();
+      Container.Writer writer = null;
+      boolean finished = false;
+
+      try {
+         // Base64 armoring is applied as a stream wrapper around the data
+         // after the header, so it's encoded and decoded as the data passes
+         // through.  Chunked data is also handled by stream wrappers, which
+         // split the data into chunks and run the cryptor on each of them.
+         switch (mode) {
+         case Encrypt:
+            if (header.armored) {
+               output = java.util.Base64.getEncoder().wrap(output);
+            }
+
+            if (header.chunk_size != 0) {
+               writer = new Container.Writer(output, new Container.Codec(header, cryptor, secrets));
+               output = writer;
+               input.transferTo(output);
+            } else {
+               long start = System.nanoTime();
+               cryptor.encrypt(input, output, secrets);
+               Metrics.timeSince(Metrics.Timer.Cipher, start);
+            }
+            break;
+
+         case Decrypt:
+            if (header.armored) {
+               input = java.util.Base64.getDecoder().wrap(input);
+            }
+
+            if (header.chunk_size != 0) {
+               input = new Container.Reader(input, new Container.Codec(header, cryptor, secrets));
+               input.transferTo(output);
+            } else {
+               long start = System.nanoTime();
+               cryptor.decrypt(input, output, secrets);
+               Metrics.timeSince(Metrics.Timer.Cipher, start);
+            }
+            break;
+         }
 
-      Hasher hasher = new Hasher.Sha512();
-      
-      byte [] hash512 = hasher.digest(secrets_salted);
-      
-      // Compress the 64-byte hash to 4 bytes by XORing every 4th byte with
-      // the previous.  This should help verify passwords without leaking
-      // secrets combined with the 2nd round of salting + hashing.
-      byte [] hash = new byte[Header.HASH_LENGTH];
-      System.arraycopy(hash512, 0, hash, 0, Header.HASH_LENGTH);
-      for (int block_offset = Header.HASH_LENGTH; block_offset < 64; block_offset += Header.HASH_LENGTH) {
-         for (int i = 0; i < Header.HASH_LENGTH; ++i) {
-            hash[i] ^= hash512[block_offset + i];
+         // Unchunked data is read and written by the cryptor itself, so its
+         // cipher time also covers that I/O.
+         //
+         // Closing the chunk writer writes out the chunk index, and closing
+         // the Base64 encoder writes out any remaining encoded bytes.  Both
+         // close the underlying stream.
+         input.close();
+         output.close();
+         finished = true;
+      } finally {
+         if (!finished) {
+            if (writer != null) {
+               abortQuietly(writer);
+            }
+            closeQuietly(input);
+            closeQuietly(output);
          }
       }
 
-      return hash;
+      return;
    }
 
-   // Attempts to write the header to the destination.  'secrets' should be the
-   // 4-byte hash of the real secrets.
-   private static void writeHeader(java.io.OutputStream output, Cryptor.Algorithm algorithm, byte [] secrets) throws java.lang.Exception {
-      Header header = new Header(algorithm, secrets);
-      header.serialize(output);
+   // Closes 'stream' after something else has already gone wrong, so the
+   // original error is the one reported.
+   private static void closeQuietly(java.io.Closeable stream) {
+      try {
+         stream.close();
+      } catch (java.lang.Exception e) {
+         // The original error is more useful.
+      }
+
       return;
    }
 
-   // Attempts to read the header from the given file and verifies the algorithm
-   // and password are correct.  'secrets' should be the 4-byte hash of the
-   // real secrets.  Returns the parsed algorithm for the file.
-   private static Cryptor.Algorithm readAndVerifyHeader(java.io.InputStream input, byte [] secrets) throws java.lang.Exception {
-      Header header_read = Header.deserialize(input);
+   // Stops 'writer' without writing its index, after something else has
+   // already gone wrong.
+   private static void abortQuietly(Container.Writer writer) {
+      try {
+         writer.abort();
+      } catch (java.lang.Exception e) {
+         // The original error is more useful.
+      }
 
-      for (int i = 0; i < Header.HASH_LENGTH; ++i) {
-         if (header_read.hash[i] != secrets[i]) {
-            throw new MalformedHeaderException("password is incorrect");
-         }
+      return;
+   }
+
+   // Attempts to read plaintext password from the source specified in arguments.
+   private static String readPassword(Arguments args) throws java.lang.Exception {
+      String file_path = args.secrets;
+      if (file_path == null) {
+         return readPasswordPrompt();
       }
 
-      return header_read.algorithm;
+      return readPasswordFile(file_path);
    }
-}
 
-class ConsoleUnavailableException extends java.lang.Exception {
-   public ConsoleUnavailableException(String err) {
-      super(err);
+   // Reads password from the user using a terminal prompt.
+   private static String readPasswordPrompt() throws ConsoleUnavailableException {
+      java.io.Console console = System.console();
+      if (console == null) {
+         throw new ConsoleUnavailableException("console unavailable");
+      }
+
+      char [] data = console.readPassword("Please enter the password: ");
+
+      return new String(data);
+   }
+
+   // Reads password from a user-specified file path.
+   private static String readPasswordFile(String path) throws java.lang.Exception {
+      byte [] bytes = readFileBytes(path);
+
+      return new String(bytes);
+   }
+
+   // Reads the whole file in one go, sized from the file itself rather than
+   // growing a buffer as it goes.
+   private static byte [] readFileBytes(String path) throws java.lang.Exception {
+      return java.nio.file.Files.readAllBytes(java.nio.file.Paths.get(path));
+   }
+
+   // Attempts to write a new header to the destination.  The secrets are
+   // derived from 'password' and 'kdf_salt' with 'kdf_iterations' rounds, and
+   // the data is split into chunks, each compressed with 'compression' before
+   // it's encrypted.  'digests' keeps a digest of every chunk in the index.
+   // Returns the header which was written.
+   private static Header writeHeader(java.io.OutputStream output, Cryptor.Algorithm algorithm, boolean armored, Container.Compression compression, boolean digests, String password, byte [] kdf_salt, int kdf_iterations) throws java.lang.Exception {
+      long start = System.nanoTime();
+      byte [] secrets = Kdf.derive(password, kdf_salt, kdf_iterations);
+      Metrics.timeSince(Metrics.Timer.Kdf, start);
+
+      byte [] secrets_hash = Header.secretsHash(secrets, Header.VERSION_CURRENT);
+
+      Header header = new Header(algorithm, secrets_hash, armored, kdf_salt, kdf_iterations, Container.DEFAULT_CHUNK_SIZE, Container.generateNonce());
+      header.compression = compression;
+      header.digests = digests;
+      start = System.nanoTime();
+      header.serialize(output);
+      Metrics.timeSince(Metrics.Timer.Header, start);
+      return header;
    }
 }
 
-class MalformedHeaderException extends java.lang.Exception {
-   public MalformedHeaderException(String err) {
+class ConsoleUnavailableException extends java.lang.Exception {
+   public ConsoleUnavailableException(String err) {
       super(err);
    }
 }
-
@@ -0,0 +1,281 @@
+// Instrumentation for the hot paths of the program.  Timers measure how long
+// is spent in each stage, such as deriving keys or running the cipher, and
+// counters track how many bytes have gone in and out.  Everything recorded
+// here is passed on to the registered listeners, so applications embedding
+// the program can export it to their own metrics systems.  When nobody is
+// listening, recording is just a check of an empty list.
+//
+// Timers are summed across threads, so with chunks being processed on every
+// core the cipher time can add up to more than the time which actually
+// passed.
+public class Metrics {
+   // Stages of the program which are timed.
+   public static enum Timer {
+      Kdf,        // deriving the secrets from the password
+      Header,     // reading and writing headers
+      Cipher,     // encrypting and decrypting data
+      Compress,   // compressing and decompressing chunks
+      Read,       // reading input files
+      Write,      // writing output files
+   }
+
+   // Quantities which are counted.
+   public static enum Counter {
+      BytesExpected,    // size of the input files which are going to be processed
+      BytesIn,          // bytes read from input files
+      BytesOut,         // bytes written to output files
+      Files,            // files which have been processed
+      BuffersAllocated, // bytes of buffers allocated because none could be reused
+      ChunksReused,     // chunks copied unchanged from an earlier version of a file
+   }
+
+   // Receives everything recorded.  These are called from whichever thread
+   // did the work, often several at once, so implementations must be
+   // thread-safe and should return quickly.
+   public static interface Listener {
+      // Called after 'nanos' nanoseconds were spent in 'timer'.
+      public void time(Timer timer, long nanos);
+
+      // Called when 'counter' increases by 'amount'.
+      public void count(Counter counter, long amount);
+   }
+
+   private static final java.util.concurrent.CopyOnWriteArrayList<Listener> LISTENERS = new java.util.concurrent.CopyOnWriteArrayList<Listener>();
+
+   public static void addListener(Listener listener) {
+      LISTENERS.add(listener);
+      return;
+   }
+
+   public static void removeListener(Listener listener) {
+      LISTENERS.remove(listener);
+      return;
+   }
+
+   // Records that 'nanos' nanoseconds were spent in 'timer'.
+   public static void time(Timer timer, long nanos) {
+      for (Listener listener : LISTENERS) {
+         listener.time(timer, nanos);
+      }
+
+      return;
+   }
+
+   // Records that 'counter' increased by 'amount'.
+   public static void count(Counter counter, long amount) {
+      for (Listener listener : LISTENERS) {
+         listener.count(counter, amount);
+      }
+
+      return;
+   }
+
+   // Records the time since 'start', which should come from System.nanoTime().
+   public static void timeSince(Timer timer, long start) {
+      if (!LISTENERS.isEmpty()) {
+         time(timer, System.nanoTime() - start);
+      }
+
+      return;
+   }
+
+   // Listener which keeps running totals of everything.
+   public static class Totals implements Listener {
+      private final java.util.concurrent.atomic.LongAdder [] timers;
+      private final java.util.concurrent.atomic.LongAdder [] counters;
+      private final long start;
+
+      public Totals() {
+         this.timers = new java.util.concurrent.atomic.LongAdder [Timer.values().length];
+         this.counters = new java.util.concurrent.atomic.LongAdder [Counter.values().length];
+         for (int i = 0; i < this.timers.length; ++i) {
+            this.timers[i] = new java.util.concurrent.atomic.LongAdder();
+         }
+         for (int i = 0; i < this.counters.length; ++i) {
+            this.counters[i] = new java.util.concurrent.atomic.LongAdder();
+         }
+
+         this.start = System.nanoTime();
+         return;
+      }
+
+      public void time(Timer timer, long nanos) {
+         this.timers[timer.ordinal()].add(nanos);
+         return;
+      }
+
+      public void count(Counter counter, long amount) {
+         this.counters[counter.ordinal()].add(amount);
+         return;
+      }
+
+      public long nanos(Timer timer) {
+         return this.timers[timer.ordinal()].sum();
+      }
+
+      public long value(Counter counter) {
+         return this.counters[counter.ordinal()].sum();
+      }
+
+      // Nanoseconds since these totals were created.
+      public long elapsed() {
+         return System.nanoTime() - this.start;
+      }
+
+      // A human-readable summary of the totals.
+      public String summary() {
+         double seconds = this.elapsed() / 1e9;
+
+         StringBuilder summary = new StringBuilder();
+         summary.append(String.format("files:          %d%n", this.value(Counter.Files)));
+         summary.append(String.format("bytes in:       %s%n", formatBytes(this.value(Counter.BytesIn))));
+         summary.append(String.format("bytes out:      %s%n", formatBytes(this.value(Counter.BytesOut))));
+         summary.append(String.format("buffers:        %s allocated%n", formatBytes(this.value(Counter.BuffersAllocated))));
+         summary.append(String.format("reused:         %d chunks%n", this.value(Counter.ChunksReused)));
+         summary.append(String.format("elapsed:        %.3f s%n", seconds));
+         summary.append(String.format("throughput:     %s/s%n", formatBytes((long)(this.value(Counter.BytesIn) / Math.max(seconds, 1e-9)))));
+         summary.append(String.format("time in (summed across threads):%n"));
+         summary.append(String.format("   kdf:         %.3f s%n", this.nanos(Timer.Kdf) / 1e9));
+         summary.append(String.format("   header:      %.3f s%n", this.nanos(Timer.Header) / 1e9));
+         summary.append(String.format("   cipher:      %.3f s%n", this.nanos(Timer.Cipher) / 1e9));
+         summary.append(String.format("   compress:    %.3f s%n", this.nanos(Timer.Compress) / 1e9));
+         summary.append(String.format("   read:        %.3f s%n", this.nanos(Timer.Read) / 1e9));
+         summary.append(String.format("   write:       %.3f s", this.nanos(Timer.Write) / 1e9));
+         return summary.toString();
+      }
+   }
+
+   // Shows a live progress line with the rate and estimated time remaining,
+   // redrawn a few times a second until it's stopped.
+   public static class Progress extends Thread {
+      private static final long INTERVAL_MILLIS = 250;
+
+      private final Totals totals;
+      private final java.io.PrintStream output;
+      private volatile boolean running;
+
+      public Progress(Totals totals, java.io.PrintStream output) {
+         this.totals = totals;
+         this.output = output;
+         this.running = true;
+         this.setDaemon(true);
+         return;
+      }
+
+      public void run() {
+         while (this.running) {
+            this.draw();
+
+            try {
+               Thread.sleep(INTERVAL_MILLIS);
+            } catch (java.lang.InterruptedException e) {
+               break;
+            }
+         }
+
+         return;
+      }
+
+      // Stops updating and draws the final line.
+      public void finish() throws java.lang.InterruptedException {
+         this.running = false;
+         this.interrupt();
+         this.join();
+
+         this.draw();
+         this.output.println();
+         return;
+      }
+
+      private void draw() {
+         long done = this.totals.value(Counter.BytesIn);
+         long expected = Math.max(this.totals.value(Counter.BytesExpected), done);
+         double seconds = this.totals.elapsed() / 1e9;
+         double rate = done / Math.max(seconds, 1e-9);
+
+         String eta = "--:--";
+         if (rate > 0) {
+            long remaining = (long)((expected - done) / rate);
+            eta = String.format("%d:%02d", remaining / 60, remaining % 60);
+         }
+
+         double percent = expected == 0 ? 0.0 : 100.0 * done / expected;
+
+         // Padded so a shorter line fully covers the previous one.
+         this.output.print(String.format("\r%s / %s  %5.1f%%  %s/s  ETA %s   ", formatBytes(done), formatBytes(expected), percent, formatBytes((long)rate), eta));
+         this.output.flush();
+         return;
+      }
+   }
+
+   // Input stream which counts and times everything read through it.
+   public static class CountingInputStream extends java.io.FilterInputStream {
+      public CountingInputStream(java.io.InputStream input) {
+         super(input);
+      }
+
+      public int read() throws java.io.IOException {
+         long start = System.nanoTime();
+         int b = this.in.read();
+         timeSince(Timer.Read, start);
+         if (b != -1) {
+            count(Counter.BytesIn, 1);
+         }
+
+         return b;
+      }
+
+      public int read(byte [] data, int offset, int length) throws java.io.IOException {
+         long start = System.nanoTime();
+         int count = this.in.read(data, offset, length);
+         timeSince(Timer.Read, start);
+         if (count > 0) {
+            count(Counter.BytesIn, count);
+         }
+
+         return count;
+      }
+
+      public long skip(long length) throws java.io.IOException {
+         long count = this.in.skip(length);
+         count(Counter.BytesIn, count);
+         return count;
+      }
+   }
+
+   // Output stream which counts and times everything written through it.
+   public static class CountingOutputStream extends java.io.FilterOutputStream {
+      public CountingOutputStream(java.io.OutputStream output) {
+         super(output);
+      }
+
+      public void write(int b) throws java.io.IOException {
+         long start = System.nanoTime();
+         this.out.write(b);
+         timeSince(Timer.Write, start);
+         count(Counter.BytesOut, 1);
+         return;
+      }
+
+      public void write(byte [] data, int offset, int length) throws java.io.IOException {
+         long start = System.nanoTime();
+         this.out.write(data, offset, length);
+         timeSince(Timer.Write, start);
+         count(Counter.BytesOut, length);
+         return;
+      }
+   }
+
+   static String formatBytes(long bytes) {
+      final String [] UNITS = {"B", "KiB", "MiB", "GiB", "TiB"};
+
+      double value = bytes;
+      int unit = 0;
+      while (value >= 1024.0 && unit < UNITS.length - 1) {
+         value /= 1024.0;
+         unit += 1;
+      }
+
+      return String.format("%.1f %s", value, UNITS[unit]);
+   }
+}
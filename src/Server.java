@@ -0,0 +1,452 @@
+// Server mode, which keeps the program running and takes jobs as JSON lines,
+// so many small files don't each pay for starting the JVM and deriving the
+// key.  Jobs are read from stdin, or from a UNIX-domain socket if a path is
+// given, one JSON object per line:
+//
+//    {"id": 1, "mode": "encrypt", "input": "a.txt", "output": "a.enc", "algorithm": "aes256-gcm"}
+//    {"id": 2, "mode": "decrypt", "input": "a.enc", "output": "a.txt"}
+//
+// 'armor' and 'compress' may also be given as true or false when encrypting.
+// Every job uses the server's password, and jobs encrypted by the same server
+// share a salt, so the key is only derived once and the session for it is
+// reused through 'Cryptor.SessionCache'.  Jobs run concurrently, each on its
+// own virtual thread where the JVM supports them, with at most '--jobs'
+// running at once across every connection.  Once that many are running, no
+// more lines are read until one finishes, so a client sending jobs faster
+// than they run is held back rather than queueing them all in memory.  A
+// reply is written for each job as it finishes, so replies may come back in
+// a different order:
+//
+//    {"id": 2, "ok": true, "bytes": 1234, "micros": 850}
+//    {"id": 1, "ok": false, "error": "java.nio.file.NoSuchFileException: a.txt"}
+//
+// 'bytes' is the size of the input file and 'micros' how long the job took.
+public class Server {
+   // Runs the server until stdin is closed or, for a socket, until the
+   // process is stopped.
+   public static void run(Arguments args, String password) throws java.lang.Exception {
+      java.util.concurrent.ExecutorService executor = newExecutor();
+      java.util.concurrent.Semaphore running = new java.util.concurrent.Semaphore(args.jobs);
+      byte [] kdf_salt = Kdf.generateSalt();
+
+      // Derive the key for encrypting before taking any jobs so it doesn't
+      // count towards the latency of whichever jobs come first.
+      long start = System.nanoTime();
+      Kdf.derive(password, kdf_salt, args.kdf_iterations);
+      Metrics.timeSince(Metrics.Timer.Kdf, start);
+
+      try {
+         if (args.server_socket == null) {
+            java.io.BufferedReader input = new java.io.BufferedReader(new java.io.InputStreamReader(System.in, java.nio.charset.StandardCharsets.UTF_8));
+            java.io.Writer output = new java.io.OutputStreamWriter(System.out, java.nio.charset.StandardCharsets.UTF_8);
+            serve(args, password, kdf_salt, executor, running, input, output);
+         } else {
+            listen(args, password, kdf_salt, executor, running);
+         }
+      } finally {
+         executor.shutdownNow();
+      }
+
+      return;
+   }
+
+   // Creates an executor which runs every task on a new virtual thread.
+   // Virtual threads only exist from Java 21, so they're looked up at run
+   // time, with a cached pool of ordinary threads used on older JVMs.
+   private static java.util.concurrent.ExecutorService newExecutor() {
+      try {
+         java.lang.reflect.Method method = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+         return (java.util.concurrent.ExecutorService)method.invoke(null);
+      } catch (java.lang.ReflectiveOperationException e) {
+         return java.util.concurrent.Executors.newCachedThreadPool();
+      }
+   }
+
+   // Accepts connections on the UNIX-domain socket at 'args.server_socket',
+   // serving each one on its own thread.  A socket file left behind by an
+   // earlier server is replaced.
+   private static void listen(final Arguments args, final String password, final byte [] kdf_salt, final java.util.concurrent.ExecutorService executor, final java.util.concurrent.Semaphore running) throws java.lang.Exception {
+      final java.nio.file.Path path = java.nio.file.Paths.get(args.server_socket);
+      java.nio.file.Files.deleteIfExists(path);
+
+      java.nio.channels.ServerSocketChannel server = java.nio.channels.ServerSocketChannel.open(java.net.StandardProtocolFamily.UNIX);
+      server.bind(java.net.UnixDomainSocketAddress.of(path));
+
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+         public void run() {
+            try {
+               java.nio.file.Files.deleteIfExists(path);
+            } catch (java.io.IOException e) {
+               // Nothing more can be done while shutting down.
+            }
+
+            return;
+         }
+      });
+
+      try {
+         while (true) {
+            final java.nio.channels.SocketChannel client = server.accept();
+            executor.submit(new java.util.concurrent.Callable<Void>() {
+               public Void call() throws java.lang.Exception {
+                  try {
+                     java.io.BufferedReader input = new java.io.BufferedReader(new java.io.InputStreamReader(java.nio.channels.Channels.newInputStream(client), java.nio.charset.StandardCharsets.UTF_8));
+                     java.io.Writer output = new java.io.OutputStreamWriter(java.nio.channels.Channels.newOutputStream(client), java.nio.charset.StandardCharsets.UTF_8);
+                     serve(args, password, kdf_salt, executor, running, input, output);
+                  } finally {
+                     client.close();
+                  }
+
+                  return null;
+               }
+            });
+         }
+      } finally {
+         server.close();
+         java.nio.file.Files.deleteIfExists(path);
+      }
+   }
+
+   // Reads jobs from 'input' until it's closed, running each on 'executor'
+   // and writing its reply to 'output'.  A permit from 'running' is taken
+   // before each line is read and given back once its job has replied, so
+   // reading stops while every permit is in use.  Returns once every job has
+   // replied.
+   private static void serve(final Arguments args, final String password, final byte [] kdf_salt, java.util.concurrent.ExecutorService executor, final java.util.concurrent.Semaphore running, java.io.BufferedReader input, final java.io.Writer output) throws java.lang.Exception {
+      java.util.ArrayList<java.util.concurrent.Future<?>> futures = new java.util.ArrayList<java.util.concurrent.Future<?>>();
+
+      while (true) {
+         running.acquire();
+
+         String line;
+         try {
+            line = input.readLine();
+         } catch (java.io.IOException e) {
+            running.release();
+            throw e;
+         }
+         if (line == null) {
+            running.release();
+            break;
+         }
+         if (line.isBlank()) {
+            running.release();
+            continue;
+         }
+
+         final String job = line;
+         try {
+            futures.add(executor.submit(new java.util.concurrent.Callable<Void>() {
+               public Void call() throws java.lang.Exception {
+                  try {
+                     reply(output, runJob(args, password, kdf_salt, job));
+                  } finally {
+                     running.release();
+                  }
+
+                  return null;
+               }
+            }));
+         } catch (java.util.concurrent.RejectedExecutionException e) {
+            running.release();
+            throw e;
+         }
+
+         // Forget jobs which have already replied so a long-lived connection
+         // doesn't keep every one of them around.
+         futures.removeIf(new java.util.function.Predicate<java.util.concurrent.Future<?>>() {
+            public boolean test(java.util.concurrent.Future<?> future) {
+               return future.isDone();
+            }
+         });
+      }
+
+      for (java.util.concurrent.Future<?> future : futures) {
+         future.get();
+      }
+
+      return;
+   }
+
+   // Runs a single job, catching any error so one bad job doesn't stop the
+   // rest.  Returns the reply for it.
+   private static String runJob(Arguments server_args, String password, byte [] kdf_salt, String line) {
+      long start = System.nanoTime();
+      Object id = null;
+
+      try {
+         java.util.HashMap<String, Object> job = parseObject(line);
+         id = job.get("id");
+
+         Arguments args = Arguments.parse(jobArguments(server_args, job));
+         long bytes = java.nio.file.Files.size(java.nio.file.Paths.get(args.input));
+         Main.runFile(args, password, args.input, args.output, kdf_salt);
+
+         long micros = (System.nanoTime() - start) / 1000;
+         return String.format("{\"id\": %s, \"ok\": true, \"bytes\": %d, \"micros\": %d}", formatValue(id), bytes, micros);
+      } catch (java.lang.Exception e) {
+         return String.format("{\"id\": %s, \"ok\": false, \"error\": %s}", formatValue(id), formatValue(e.toString()));
+      }
+   }
+
+   // Turns a job into command-line arguments so it goes through the same
+   // checks as a single run.  Settings which aren't part of a job, such as
+   // '--nio', are taken from the server's own arguments.
+   private static String [] jobArguments(Arguments server_args, java.util.HashMap<String, Object> job) throws java.lang.Exception {
+      java.util.ArrayList<String> args = new java.util.ArrayList<String>();
+
+      for (java.util.Map.Entry<String, Object> field : job.entrySet()) {
+         String key = field.getKey();
+         Object value = field.getValue();
+
+         if (key.equals("id")) {
+            continue;
+         } else if (key.equals("armor") || key.equals("compress")) {
+            if (!(value instanceof Boolean)) {
+               throw new MalformedJobException(String.format("\'%s\' must be true or false", key));
+            }
+            if ((Boolean)value) {
+               args.add(String.format("--%s", key));
+            }
+         } else if (key.equals("mode") || key.equals("input") || key.equals("output") || key.equals("algorithm")) {
+            if (!(value instanceof String)) {
+               throw new MalformedJobException(String.format("\'%s\' must be a string", key));
+            }
+            // The server's own stdin and stdout can't be shared between jobs.
+            if ((key.equals("input") || key.equals("output")) && value.equals(Arguments.STANDARD_STREAM)) {
+               throw new MalformedJobException(String.format("\'%s\' can't be stdin or stdout", key));
+            }
+            args.add(String.format("--%s=%s", key, value));
+         } else {
+            throw new MalformedJobException(String.format("unknown field \'%s\'", key));
+         }
+      }
+
+      if (server_args.nio) {
+         args.add("--nio");
+      }
+      if (!"decrypt".equals(job.get("mode"))) {
+         args.add(String.format("--kdf-iterations=%d", server_args.kdf_iterations));
+      }
+
+      return args.toArray(new String [0]);
+   }
+
+   // Writes a reply on its own line.  Replies come from many threads at once,
+   // so they're written one at a time.
+   private static void reply(java.io.Writer output, String reply) throws java.io.IOException {
+      synchronized (output) {
+         output.write(reply);
+         output.write('\n');
+         output.flush();
+      }
+
+      return;
+   }
+
+   // --- JSON -----------------------------------------------------------------
+
+   // Parses a single flat JSON object.  Values may be strings, numbers,
+   // booleans or null, which is everything a job needs.  Numbers are kept as
+   // their text since they're only ever echoed back.
+   private static java.util.HashMap<String, Object> parseObject(String text) throws MalformedJobException {
+      JsonReader reader = new JsonReader(text);
+      java.util.HashMap<String, Object> object = new java.util.HashMap<String, Object>();
+
+      reader.expect('{');
+      if (!reader.consume('}')) {
+         do {
+            String key = reader.readString();
+            reader.expect(':');
+            object.put(key, reader.readValue());
+         } while (reader.consume(','));
+         reader.expect('}');
+      }
+
+      reader.skipWhitespace();
+      if (!reader.atEnd()) {
+         throw new MalformedJobException("unexpected text after the job");
+      }
+
+      return object;
+   }
+
+   // Formats a value from 'parseObject' back into JSON.
+   private static String formatValue(Object value) {
+      if (value == null) {
+         return "null";
+      }
+      if (value instanceof Boolean) {
+         return value.toString();
+      }
+      if (value instanceof JsonNumber) {
+         return ((JsonNumber)value).text;
+      }
+
+      String string = value.toString();
+      StringBuilder quoted = new StringBuilder(string.length() + 2);
+      quoted.append('\"');
+      for (int i = 0; i < string.length(); ++i) {
+         char c = string.charAt(i);
+         if (c == '\"' || c == '\\') {
+            quoted.append('\\').append(c);
+         } else if (c < 0x20) {
+            quoted.append(String.format("\\u%04x", (int)c));
+         } else {
+            quoted.append(c);
+         }
+      }
+      quoted.append('\"');
+      return quoted.toString();
+   }
+
+   // A number from a job, kept as written.
+   private static class JsonNumber {
+      public final String text;
+
+      public JsonNumber(String text) {
+         this.text = text;
+         return;
+      }
+   }
+
+   // Walks through the text of a job one token at a time.
+   private static class JsonReader {
+      private final String text;
+      private int index;
+
+      public JsonReader(String text) {
+         this.text = text;
+         this.index = 0;
+         return;
+      }
+
+      public boolean atEnd() {
+         return this.index >= this.text.length();
+      }
+
+      public void skipWhitespace() {
+         while (!this.atEnd() && Character.isWhitespace(this.text.charAt(this.index))) {
+            this.index += 1;
+         }
+
+         return;
+      }
+
+      // Skips 'c' if it's the next character, returning whether it was.
+      public boolean consume(char c) {
+         this.skipWhitespace();
+         if (!this.atEnd() && this.text.charAt(this.index) == c) {
+            this.index += 1;
+            return true;
+         }
+
+         return false;
+      }
+
+      public void expect(char c) throws MalformedJobException {
+         if (!this.consume(c)) {
+            throw new MalformedJobException(String.format("expected \'%c\' at position %d", c, this.index));
+         }
+
+         return;
+      }
+
+      public Object readValue() throws MalformedJobException {
+         this.skipWhitespace();
+         if (this.atEnd()) {
+            throw new MalformedJobException("job ended early");
+         }
+
+         char c = this.text.charAt(this.index);
+         if (c == '\"') {
+            return this.readString();
+         }
+         if (this.text.startsWith("true", this.index)) {
+            this.index += 4;
+            return Boolean.TRUE;
+         }
+         if (this.text.startsWith("false", this.index)) {
+            this.index += 5;
+            return Boolean.FALSE;
+         }
+         if (this.text.startsWith("null", this.index)) {
+            this.index += 4;
+            return null;
+         }
+
+         int start = this.index;
+         while (!this.atEnd() && "+-0123456789.eE".indexOf(this.text.charAt(this.index)) != -1) {
+            this.index += 1;
+         }
+         if (start == this.index) {
+            throw new MalformedJobException(String.format("unexpected \'%c\' at position %d", c, start));
+         }
+
+         String number = this.text.substring(start, this.index);
+         try {
+            Double.parseDouble(number);
+         } catch (NumberFormatException e) {
+            throw new MalformedJobException(String.format("invalid number \'%s\'", number));
+         }
+
+         return new JsonNumber(number);
+      }
+
+      public String readString() throws MalformedJobException {
+         this.expect('\"');
+
+         StringBuilder string = new StringBuilder();
+         while (true) {
+            if (this.atEnd()) {
+               throw new MalformedJobException("unterminated string");
+            }
+
+            char c = this.text.charAt(this.index++);
+            if (c == '\"') {
+               break;
+            }
+            if (c != '\\') {
+               string.append(c);
+               continue;
+            }
+
+            if (this.atEnd()) {
+               throw new MalformedJobException("unterminated string");
+            }
+            char escape = this.text.charAt(this.index++);
+            switch (escape) {
+               case '\"': string.append('\"'); break;
+               case '\\': string.append('\\'); break;
+               case '/':  string.append('/');  break;
+               case 'b':  string.append('\b'); break;
+               case 'f':  string.append('\f'); break;
+               case 'n':  string.append('\n'); break;
+               case 'r':  string.append('\r'); break;
+               case 't':  string.append('\t'); break;
+               case 'u':
+                  if (this.index + 4 > this.text.length()) {
+                     throw new MalformedJobException("unterminated string");
+                  }
+                  try {
+                     string.append((char)Integer.parseInt(this.text.substring(this.index, this.index + 4), 16));
+                  } catch (NumberFormatException e) {
+                     throw new MalformedJobException("invalid escape in string");
+                  }
+                  this.index += 4;
+                  break;
+               default:
+                  throw new MalformedJobException(String.format("invalid escape \'\\%c\' in string", escape));
+            }
+         }
+
+         return string.toString();
+      }
+   }
+}
+
+class MalformedJobException extends java.lang.Exception {
+   public MalformedJobException(String err) {
+      super(err);
+   }
+}
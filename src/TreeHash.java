@@ -0,0 +1,361 @@
+// Tree hashing, which splits data into fixed-size leaves, hashes every leaf
+// on its own and then combines the leaf digests pairwise up to a single root.
+// Unlike a plain hash, the leaves can all be hashed at once, so whole files
+// are hashed on every core.  The tree has the same shape as in RFC 6962:
+//
+//    leaf = H(0x00 || data)
+//    node = H(0x01 || left || right)
+//
+// where the left side of every node covers the largest power of two leaves
+// which is less than the number of leaves below it.  Empty data is a single
+// empty leaf.  Any 'Hasher' can be used, and the root depends on the leaf
+// size, so both have to match for two roots to be compared.
+public class TreeHash {
+   // Size of the leaves used for checksums.
+   public static final int DEFAULT_LEAF_SIZE = 1024 * 1024;
+
+   private static final byte [] PREFIX_LEAF = {0x00};
+   private static final byte [] PREFIX_NODE = {0x01};
+
+   // How many leaves 'Stream' may be hashing at once before it waits for
+   // the oldest.  This is enough to keep every core busy without holding too
+   // much of the data in memory.
+   private static final int STREAM_DEPTH = Math.max(2, java.util.concurrent.ForkJoinPool.getCommonPoolParallelism() * 2);
+
+   private final int leaf_size;
+
+   // Hashers aren't thread-safe, so every thread gets its own.
+   private final ThreadLocal<Hasher> hasher;
+
+   // 'hashers' supplies a new hasher for each thread which hashes leaves.
+   public TreeHash(final java.util.function.Supplier<Hasher> hashers, final int leaf_size) {
+      this.leaf_size = leaf_size;
+      this.hasher = new ThreadLocal<Hasher>() {
+         protected Hasher initialValue() {
+            return hashers.get();
+         }
+      };
+      return;
+   }
+
+   // Tree hash using SHA-512 and the default leaf size, which is what
+   // checksums use.
+   public static TreeHash sha512() {
+      return new TreeHash(new java.util.function.Supplier<Hasher>() {
+         public Hasher get() {
+            return new Hasher.Sha512();
+         }
+      }, DEFAULT_LEAF_SIZE);
+   }
+
+   public int leafSize() {
+      return this.leaf_size;
+   }
+
+   // Hashes the whole file at 'path', reading and hashing its leaves on
+   // every core.
+   public byte [] hashFile(java.nio.file.Path path) throws java.lang.Exception {
+      java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(path, java.nio.file.StandardOpenOption.READ);
+      try {
+         long leaves = Math.max(1, (channel.size() + this.leaf_size - 1) / this.leaf_size);
+         return java.util.concurrent.ForkJoinPool.commonPool().invoke(new FileNode(channel, 0, leaves));
+      } finally {
+         channel.close();
+      }
+   }
+
+   // Starts hashing data which is written bit by bit, such as a file while it
+   // is being encrypted.  Leaves are hashed in the background as soon as
+   // they're full.
+   public Stream stream() {
+      return new Stream();
+   }
+
+   // Largest power of two which is less than 'count', which must be at least
+   // 2.  This is how many leaves go on the left of a node.
+   private static long splitPoint(long count) {
+      return Long.highestOneBit(count - 1);
+   }
+
+   private byte [] leaf(byte [] data, int length) {
+      Hasher hasher = this.hasher.get();
+      hasher.update(PREFIX_LEAF, 0, 1);
+      hasher.update(data, 0, length);
+      return hasher.finish();
+   }
+
+   private byte [] leaf(java.nio.ByteBuffer data) {
+      Hasher hasher = this.hasher.get();
+      hasher.update(PREFIX_LEAF, 0, 1);
+      hasher.update(data);
+      return hasher.finish();
+   }
+
+   private byte [] node(byte [] left, byte [] right) {
+      Hasher hasher = this.hasher.get();
+      hasher.update(PREFIX_NODE, 0, 1);
+      hasher.update(left, 0, left.length);
+      hasher.update(right, 0, right.length);
+      return hasher.finish();
+   }
+
+   // Combines the leaf digests from 'lower' up to but not including 'upper'
+   // into the root of their subtree.
+   private byte [] combine(java.util.ArrayList<byte []> leaves, int lower, int upper) {
+      if (upper - lower == 1) {
+         return leaves.get(lower);
+      }
+
+      int split = lower + (int)splitPoint(upper - lower);
+      return this.node(this.combine(leaves, lower, split), this.combine(leaves, split, upper));
+   }
+
+   // Hashes the subtree of a file covering the leaves from 'lower' up to but
+   // not including 'upper', splitting it in two until there's one leaf left.
+   private class FileNode extends java.util.concurrent.RecursiveTask<byte []> {
+      private final java.nio.channels.FileChannel channel;
+      private final long lower;
+      private final long upper;
+
+      public FileNode(java.nio.channels.FileChannel channel, long lower, long upper) {
+         this.channel = channel;
+         this.lower = lower;
+         this.upper = upper;
+         return;
+      }
+
+      protected byte [] compute() {
+         if (this.upper - this.lower == 1) {
+            return this.computeLeaf();
+         }
+
+         long split = this.lower + splitPoint(this.upper - this.lower);
+         FileNode left = new FileNode(this.channel, this.lower, split);
+         FileNode right = new FileNode(this.channel, split, this.upper);
+
+         left.fork();
+         byte [] digest_right = right.compute();
+         return TreeHash.this.node(left.join(), digest_right);
+      }
+
+      // Leaves are read into direct buffers so the hasher can work on them
+      // in place.
+      private byte [] computeLeaf() {
+         java.nio.ByteBuffer buffer = Buffers.acquireDirect(TreeHash.this.leaf_size);
+         try {
+            long position = this.lower * TreeHash.this.leaf_size;
+            while (buffer.hasRemaining()) {
+               int count = this.channel.read(buffer, position + buffer.position());
+               if (count == -1) {
+                  break;
+               }
+            }
+
+            buffer.flip();
+            return TreeHash.this.leaf(buffer);
+         } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+         } finally {
+            Buffers.releaseDirect(buffer);
+         }
+      }
+   }
+
+   // Output stream which tree hashes everything written to it.  Each leaf is
+   // handed to the common pool once it's full, so hashing overlaps with
+   // whatever is producing the data.  Call 'finish' for the root once all of
+   // the data has been written.  This isn't thread-safe.
+   public class Stream extends java.io.OutputStream {
+      private final java.util.ArrayList<byte []> digests;                 // digests of the leaves so far
+      private final java.util.ArrayDeque<Leaf> pending;                 // leaves being hashed, oldest first
+      private final java.util.ArrayDeque<byte []> free;                   // leaf buffers which can be reused
+      private byte [] leaf;            // leaf being filled
+      private int leaf_length;         // number of bytes in 'leaf'
+      private boolean finished;
+
+      private Stream() {
+         this.digests = new java.util.ArrayList<byte []>();
+         this.pending = new java.util.ArrayDeque<Leaf>();
+         this.free = new java.util.ArrayDeque<byte []>();
+         this.leaf = Buffers.acquire(TreeHash.this.leaf_size);
+         this.leaf_length = 0;
+         this.finished = false;
+         return;
+      }
+
+      public void write(int b) {
+         this.leaf[this.leaf_length++] = (byte)b;
+         if (this.leaf_length == this.leaf.length) {
+            this.submit();
+         }
+
+         return;
+      }
+
+      public void write(byte [] data, int offset, int length) {
+         while (length > 0) {
+            int count = Math.min(this.leaf.length - this.leaf_length, length);
+            System.arraycopy(data, offset, this.leaf, this.leaf_length, count);
+            this.leaf_length += count;
+            offset += count;
+            length -= count;
+
+            if (this.leaf_length == this.leaf.length) {
+               this.submit();
+            }
+         }
+
+         return;
+      }
+
+      // Hashes the last leaf, waits for the rest and returns the root.  The
+      // stream can't be written to afterwards.
+      public byte [] finish() {
+         if (this.finished) {
+            throw new IllegalStateException("tree hash has already been finished");
+         }
+
+         // A partial leaf is only hashed if it has data, unless there's no
+         // data at all, which is a single empty leaf.
+         if (this.leaf_length != 0 || (this.digests.isEmpty() && this.pending.isEmpty())) {
+            this.submit();
+         }
+         while (!this.pending.isEmpty()) {
+            this.collect();
+         }
+
+         // Every leaf has been hashed, so the buffers can go back to the pool.
+         this.finished = true;
+         Buffers.release(this.leaf);
+         this.leaf = null;
+         for (byte [] buffer : this.free) {
+            Buffers.release(buffer);
+         }
+         this.free.clear();
+         return TreeHash.this.combine(this.digests, 0, this.digests.size());
+      }
+
+      // Starts hashing the current leaf and moves on to a new one.
+      private void submit() {
+         if (this.pending.size() >= STREAM_DEPTH) {
+            this.collect();
+         }
+
+         Leaf task = new Leaf(this.leaf, this.leaf_length);
+         task.fork();
+         this.pending.addLast(task);
+
+         this.leaf = this.free.isEmpty() ? Buffers.acquire(TreeHash.this.leaf_size) : this.free.removeFirst();
+         this.leaf_length = 0;
+         return;
+      }
+
+      // Waits for the oldest leaf being hashed and recycles its buffer.
+      private void collect() {
+         Leaf task = this.pending.removeFirst();
+         this.digests.add(task.join());
+         this.free.addLast(task.data);
+         return;
+      }
+   }
+
+   // Hashes a single leaf for 'Stream'.
+   private class Leaf extends java.util.concurrent.RecursiveTask<byte []> {
+      private final byte [] data;
+      private final int length;
+
+      public Leaf(byte [] data, int length) {
+         this.data = data;
+         this.length = length;
+         return;
+      }
+
+      protected byte [] compute() {
+         return TreeHash.this.leaf(this.data, this.length);
+      }
+   }
+
+   // Input stream which feeds everything read through it into a 'Stream'.
+   public static class HashingInputStream extends java.io.FilterInputStream {
+      private final Stream stream;
+
+      public HashingInputStream(java.io.InputStream input, Stream stream) {
+         super(input);
+         this.stream = stream;
+         return;
+      }
+
+      public int read() throws java.io.IOException {
+         int b = this.in.read();
+         if (b != -1) {
+            this.stream.write(b);
+         }
+
+         return b;
+      }
+
+      public int read(byte [] data, int offset, int length) throws java.io.IOException {
+         int count = this.in.read(data, offset, length);
+         if (count > 0) {
+            this.stream.write(data, offset, count);
+         }
+
+         return count;
+      }
+
+      // Skipped data still has to be hashed, so it's read instead.
+      public long skip(long length) throws java.io.IOException {
+         byte [] scratch = new byte [(int)Math.min(length, 8192)];
+
+         long skipped = 0;
+         while (skipped < length) {
+            int count = this.read(scratch, 0, (int)Math.min(length - skipped, scratch.length));
+            if (count == -1) {
+               break;
+            }
+            skipped += count;
+         }
+
+         return skipped;
+      }
+
+      public boolean markSupported() {
+         return false;
+      }
+   }
+
+   // Output stream which feeds everything written through it into a
+   // 'Stream'.
+   public static class HashingOutputStream extends java.io.FilterOutputStream {
+      private final Stream stream;
+
+      public HashingOutputStream(java.io.OutputStream output, Stream stream) {
+         super(output);
+         this.stream = stream;
+         return;
+      }
+
+      public void write(int b) throws java.io.IOException {
+         this.out.write(b);
+         this.stream.write(b);
+         return;
+      }
+
+      public void write(byte [] data, int offset, int length) throws java.io.IOException {
+         this.out.write(data, offset, length);
+         this.stream.write(data, offset, length);
+         return;
+      }
+   }
+
+   // Formats a digest as lowercase hex.
+   public static String toHex(byte [] digest) {
+      StringBuilder hex = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+         hex.append(Character.forDigit((b >>> 4) & 0xf, 16));
+         hex.append(Character.forDigit(b & 0xf, 16));
+      }
+
+      return hex.toString();
+   }
+}